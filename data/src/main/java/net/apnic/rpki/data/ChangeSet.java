@@ -0,0 +1,149 @@
+package net.apnic.rpki.data;
+
+import net.apnic.rpki.data.Repository.Node;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The nodes added, modified, and removed between two generations of a repository tree.
+ *
+ * A change set is computed by walking both trees together, skipping any subtree that is the same Node instance in
+ * each.  For repositories that share unchanged subtrees between generations, as FileSystemRepository does, the work
+ * done is proportional to the size of the change rather than of the repository.
+ *
+ * A directory is listed as modified when anything beneath it has changed, since its listing must be rebuilt.  When a
+ * directory is added or removed, so is everything beneath it.  An entry that changes between file and directory is
+ * listed as removed and added.
+ *
+ * @author bje
+ * @since 1.1
+ */
+public final class ChangeSet {
+    private final long generation;
+    private final List<Node> added = new ArrayList<>();
+    private final List<Node> modified = new ArrayList<>();
+    private final List<Node> removed = new ArrayList<>();
+
+    private ChangeSet(long generation) {
+        this.generation = generation;
+    }
+
+    /**
+     * Computes the changes between two trees.
+     *
+     * @param generation the generation number of the current tree
+     * @param previous the root of the previous tree, or null if there was none
+     * @param current the root of the current tree
+     * @return the changes made to previous to produce current
+     * @since 1.1
+     */
+    public static ChangeSet between(long generation, Node previous, Node current) {
+        ChangeSet changes = new ChangeSet(generation);
+        if (previous == null) {
+            changes.addAll(changes.added, current);
+        } else {
+            changes.compare(previous, current);
+        }
+        return changes;
+    }
+
+    private void compare(Node before, Node after) {
+        if (before == after) return;
+        if (before.isDirectory() != after.isDirectory()) {
+            addAll(removed, before);
+            addAll(added, after);
+            return;
+        }
+
+        modified.add(after);
+        if (!after.isDirectory()) return;
+
+        Map<String, Node> beforeChildren = new HashMap<>();
+        for (Node child : before.getChildren()) {
+            beforeChildren.put(child.getName(), child);
+        }
+
+        for (Node child : after.getChildren()) {
+            Node old = beforeChildren.remove(child.getName());
+            if (old == null) {
+                addAll(added, child);
+            } else {
+                compare(old, child);
+            }
+        }
+
+        for (Node old : beforeChildren.values()) {
+            addAll(removed, old);
+        }
+    }
+
+    private void addAll(List<Node> list, Node node) {
+        list.add(node);
+        if (node.isDirectory()) {
+            for (Node child : node.getChildren()) {
+                addAll(list, child);
+            }
+        }
+    }
+
+    /**
+     * Gets the generation number of the tree these changes produced.  Generations start at 1 and increase by one for
+     * each tree a repository publishes.
+     *
+     * @return the generation number of the tree these changes produced
+     * @since 1.1
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Gets the nodes present in the current tree but not the previous one.
+     *
+     * @return the added nodes, from the current tree
+     * @since 1.1
+     */
+    public List<Node> getAdded() {
+        return Collections.unmodifiableList(added);
+    }
+
+    /**
+     * Gets the nodes present in both trees whose content or listing has changed.
+     *
+     * @return the modified nodes, from the current tree
+     * @since 1.1
+     */
+    public List<Node> getModified() {
+        return Collections.unmodifiableList(modified);
+    }
+
+    /**
+     * Gets the nodes present in the previous tree but not the current one.
+     *
+     * @return the removed nodes, from the previous tree
+     * @since 1.1
+     */
+    public List<Node> getRemoved() {
+        return Collections.unmodifiableList(removed);
+    }
+
+    /**
+     * Returns true if there are no changes between the two trees.
+     *
+     * @return true if there are no changes
+     * @since 1.1
+     */
+    public boolean isEmpty() {
+        return added.isEmpty() && modified.isEmpty() && removed.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("generation %d: %d added, %d modified, %d removed", generation, added.size(),
+                modified.size(), removed.size());
+    }
+}
@@ -15,6 +15,18 @@ import static java.nio.file.StandardWatchEventKinds.*;
  * A concrete implementation of Repository that scans a filesystem for changes, retaining them in an in-memory
  * tree.  Symbolic links are NOT followed.
  *
+ * After the initial scan, only directories reported as changed are re-listed, and only files that are new or whose
+ * size, modification time, or file key differ are re-read.  Unchanged subtrees are shared between successive trees.
+ *
+ * A ChangeWatcher is told which nodes were added, modified, and removed by each rebuild.
+ *
+ * Change events are gathered by a RebuildScheduler, so that a burst of changes results in a single rebuild.  Scans
+ * list directories and read files in parallel, using the number of threads given by the RepositoryConfiguration.
+ *
+ * Changes are detected by watching every directory, by periodically verifying the tree against the file system, or
+ * both, as set by the RepositoryConfiguration.  When watch events are lost, the tree is verified against the file
+ * system rather than every watch being re-registered.
+ *
  * @author bje
  * @since 0.9
  */
@@ -22,21 +34,58 @@ public class FileSystemRepository implements Repository, Runnable {
     private static final Logger LOGGER = LoggerFactory.getLogger(FileSystemRepository.class);
 
     private final Path rootPath;
-    private final WatchService watchService = FileSystems.getDefault().newWatchService();
+    private final RebuildScheduler scheduler;
+    private final DirectoryScanner scanner;
+    private final RepositoryConfiguration.ChangeDetection changeDetection;
+    private final long pollInterval;
     private final Map<WatchKey, Path> keys = new HashMap<>();
     private Watcher watcher;
 
+    // Null when polling alone.  Only touched by the repository thread after construction.
+    private WatchService watchService;
+
+    // Directories whose listings have changed, and the entries within them reported as changed, since the last
+    // rebuild.  Only touched by the repository thread.
+    private final Set<Path> changedDirectories = new HashSet<>();
+    private final Set<Path> changedPaths = new HashSet<>();
+    private boolean verifyPending = false;
+
     // This Node is immutable, allowing this value to be safely shared across threads without synchronisation.
     private Node rootNode;
+    private long generation = 0;
+
+    // The last tree the watcher accepted, which the next change set is taken from, so that no change is lost when
+    // the watcher fails to take a tree.  Only touched by the repository thread.
+    private Node deliveredRoot;
 
     /**
-     * Constructs a FileSystemRepository based at the specified root path.
+     * Constructs a FileSystemRepository based at the specified root path, with the default configuration.
      *
      * @param root a Path specifying the root of this repository
      * @throws IOException if a watch service cannot be created
      */
     public FileSystemRepository(Path root) throws IOException {
+        this(root, new RepositoryConfiguration());
+    }
+
+    /**
+     * Constructs a FileSystemRepository based at the specified root path.
+     *
+     * @param root a Path specifying the root of this repository
+     * @param configuration the settings for this repository
+     * @throws IOException if a watch service cannot be created
+     * @since 1.1
+     */
+    public FileSystemRepository(Path root, RepositoryConfiguration configuration) throws IOException {
         this.rootPath = root;
+        this.scheduler = new RebuildScheduler(configuration.getQuietPeriod(), configuration.getMaximumStaleness(),
+                TimeUnit.MILLISECONDS);
+        this.scanner = new DirectoryScanner(root, configuration.getScanThreads(), configuration.getContentMode());
+        this.changeDetection = configuration.getChangeDetection();
+        this.pollInterval = changeDetection == RepositoryConfiguration.ChangeDetection.WATCH
+                ? -1 : configuration.getPollInterval();
+        if (changeDetection != RepositoryConfiguration.ChangeDetection.POLL)
+            this.watchService = FileSystems.getDefault().newWatchService();
         new Thread(this).start();
     }
 
@@ -50,6 +99,16 @@ public class FileSystemRepository implements Repository, Runnable {
         return rootNode;
     }
 
+    /**
+     * Gets the scheduler deciding when this repository rebuilds, for its event and rebuild statistics.
+     *
+     * @return the scheduler deciding when this repository rebuilds
+     * @since 1.1
+     */
+    public RebuildScheduler getRebuildScheduler() {
+        return scheduler;
+    }
+
     private void registerPath(final Path top) throws IOException {
         Files.walkFileTree(top, new SimpleFileVisitor<Path>() {
             @Override
@@ -64,116 +123,108 @@ public class FileSystemRepository implements Repository, Runnable {
 
     @SuppressWarnings("BooleanMethodIsAlwaysInverted")
     private boolean registerRoot() {
-        /* Reset all existing watches */
-        for (WatchKey key : keys.keySet()) {
-            key.cancel();
-        }
-        keys.clear();
-
         try {
             registerPath(rootPath);
         } catch (IOException ex) {
-            LOGGER.error("Repository cannot (re-)register root path: {}", ex.getMessage());
-            try {
-                for (WatchKey key : keys.keySet()) {
-                    key.cancel();
-                    watchService.close();
-                }
-            } catch (Exception innerEx) {
-                LOGGER.warn("And then, an error when closing the watchService: {}", innerEx.getMessage());
+            if (changeDetection == RepositoryConfiguration.ChangeDetection.HYBRID) {
+                abandonWatching(ex);
+                return true;
             }
+
+            LOGGER.error("Repository cannot register root path: {}", ex.getMessage());
+            closeWatchService();
             return false;
         }
 
         return true;
     }
 
-    private final class FinalNode implements Node {
-        private final String name;
-        private final byte[] content;
-        private final List<Node> children;
-        private final BasicFileAttributes attrs;
-
-        protected FinalNode(String name, byte[] content, List<Node> children, BasicFileAttributes attrs) {
-            this.name = name;
-            this.content = content;
-            this.children = children;
-            this.attrs = attrs;
+    // Registers any directory in the tree that is not yet watched, such as those created while events were lost.
+    private void registerUnwatched(Node root) {
+        final Set<Path> watched = new HashSet<>(keys.values());
+        final Deque<Node> pending = new ArrayDeque<>();
+        pending.push(root);
+        try {
+            while (!pending.isEmpty()) {
+                Node node = pending.pop();
+                Path dir = ((FinalNode)node).getPath();
+                if (!watched.contains(dir)) {
+                    keys.put(dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+                }
+                for (Node child : node.getChildren()) {
+                    if (child.isDirectory()) pending.push(child);
+                }
+            }
+        } catch (IOException ex) {
+            if (changeDetection == RepositoryConfiguration.ChangeDetection.HYBRID) {
+                abandonWatching(ex);
+            } else {
+                LOGGER.warn("IOException when registering unwatched path; changes there will be missed: {}", ex.getMessage());
+            }
         }
-
-        @Override public String getName() { return name; }
-        @Override public byte[] getContent() { return content; }
-        @Override public long getSize() { return attrs.size(); }
-        @Override public List<Node> getChildren() { return children; }
-        @Override public long getLastModifiedTime() { return attrs.lastModifiedTime().to(TimeUnit.SECONDS); }
-        @Override public boolean isDirectory() { return attrs.isDirectory(); }
-
-        @Override public String toString() { return name; }
     }
 
-    private String trimName(Path path) {
-        return path.subpath(rootPath.getNameCount() - 1, path.getNameCount()).toString();
+    // The watch service cannot cover the tree, typically because the system's watch limit is reached; rely on polling.
+    private void abandonWatching(IOException cause) {
+        LOGGER.warn("Repository {} cannot watch every directory ({}), polling every {} ms instead",
+                rootPath, cause.getMessage(), pollInterval);
+        closeWatchService();
+        verifyPending = true;
     }
 
-    private void rebuildNodes() {
-        class VisitorState {
-            final List<Node> children = new ArrayList<>();
-            BasicFileAttributes attrs;
-            Path dir;
-
-            VisitorState(Path dir, BasicFileAttributes attrs) {
-                this.dir = dir;
-                this.attrs = attrs;
-            }
-
-            @Override
-            public String toString() {
-                return String.format("{%s dir=%s mode=%s}", super.toString(),
-                        dir != null ? dir.toString() : "<none>",
-                        attrs != null ? attrs.toString() : "<none>");
-            }
+    private void closeWatchService() {
+        for (WatchKey key : keys.keySet()) {
+            key.cancel();
         }
+        keys.clear();
 
         try {
-            final Deque<VisitorState> state = new ArrayDeque<>();
-            state.add(new VisitorState(rootPath, null));
-
-            long startTime = System.currentTimeMillis();
-            final long totalBytes[] = {0};
-
-            Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
-                @Override
-                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                    state.add(new VisitorState(dir, attrs));
-                    return FileVisitResult.CONTINUE;
-                }
-
-                @Override
-                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                    final FinalNode node = new FinalNode(trimName(file), Files.readAllBytes(file), null, attrs);
-                    state.peekLast().children.add(node);
-                    totalBytes[0] += node.getContent().length;
-                    return FileVisitResult.CONTINUE;
-                }
-
-                @Override
-                public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
-                    VisitorState currentState = state.removeLast();
-                    Node node = new FinalNode(trimName(dir), null, currentState.children, currentState.attrs);
-                    state.peekLast().children.add(node);
-
-                    if (exc != null) throw exc;
-                    return FileVisitResult.CONTINUE;
-                }
-            });
-
-            long tookTime = System.currentTimeMillis() - startTime;
-            LOGGER.debug("Filesystem tree rebuilt in {} seconds, approx. {} bytes of file data", tookTime / 1000, totalBytes[0]);
+            watchService.close();
+        } catch (IOException ex) {
+            LOGGER.warn("Error when closing the watchService: {}", ex.getMessage());
+        }
+        watchService = null;
+    }
 
-            rootNode = state.peek().children.get(0);
-            if (watcher != null)
+    /**
+     * Rebuilds the node tree.  Directories with no reported changes at or below them are carried over from the
+     * previous tree as-is, so the work done is proportional to the size of the change, not of the repository.
+     *
+     * A full scan is done for the initial scan.  When polling, or when events have been lost, the previous tree is
+     * verified against the file system instead, and any directories not yet watched are registered.
+     */
+    private void rebuildNodes() {
+        scheduler.rebuildStarted();
+        try {
+            boolean verifying = verifyPending && rootNode != null;
+            Node newRoot = verifying
+                    ? scanner.verify(rootNode)
+                    : scanner.scan(rootNode, changedDirectories, changedPaths);
+
+            changedDirectories.clear();
+            changedPaths.clear();
+            verifyPending = false;
+            if (verifying && watchService != null) registerUnwatched(newRoot);
+            if (newRoot == rootNode && newRoot == deliveredRoot) return;
+
+            // The watcher reads the new tree from the repository, so it is published first
+            if (newRoot != rootNode) {
+                rootNode = newRoot;
+                generation++;
+            }
+            if (watcher instanceof ChangeWatcher) {
+                ChangeSet changes = ChangeSet.between(generation, deliveredRoot, newRoot);
+                LOGGER.debug("FileSystemRepository({}) {}", rootPath, changes);
+                ((ChangeWatcher)watcher).repositoryChanged(this, changes);
+            } else if (watcher != null) {
                 watcher.repositoryUpdated(this);
+            }
+            deliveredRoot = newRoot;
 
+        } catch (IllegalStateException ex) {
+            // Mapped content changed underneath the watcher; the change itself will cause another rebuild, whose
+            // change set is taken from the last tree the watcher accepted
+            LOGGER.warn("Repository update could not be processed, waiting for further changes: {}", ex.getMessage());
         } catch (IOException ex) {
             LOGGER.warn("Failed to rebuild node tree, data will become stale: {}", ex.getMessage());
         }
@@ -183,17 +234,46 @@ public class FileSystemRepository implements Repository, Runnable {
     public void run() {
         String name = "repository-" + rootPath.getFileName().toString();
         Thread.currentThread().setName(name);
-        if (!registerRoot()) return;
+        if (watchService != null && !registerRoot()) return;
 
         rebuildNodes();
+        long nextPoll = System.currentTimeMillis() + pollInterval;
 
         for (;;) {
+            long now = System.currentTimeMillis();
+            if (pollInterval > 0 && now >= nextPoll) {
+                LOGGER.debug("Verifying FileSystemRepository({}) against the file system", rootPath);
+                verifyPending = true;
+                rebuildNodes();
+                nextPoll = System.currentTimeMillis() + pollInterval;
+                continue;
+            }
+
+            long delay = scheduler.getRebuildDelay(now);
+            if (delay == 0) {
+                // Changes have settled, or have waited too long; rebuild the affected part of the tree
+                LOGGER.info("Rebuilding FileSystemRepository({}), {}", rootPath, scheduler);
+                rebuildNodes();
+                continue;
+            }
+            if (pollInterval > 0) delay = delay < 0 ? nextPoll - now : Math.min(delay, nextPoll - now);
+
+            if (watchService == null) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ignored) {
+                    // just re-check
+                }
+                continue;
+            }
+
             WatchKey key;
             try {
-                key = watchService.take();
+                key = delay < 0 ? watchService.take() : watchService.poll(delay, TimeUnit.MILLISECONDS);
             } catch (InterruptedException ex) {
                 continue;
             }
+            if (key == null) continue;
 
             Path dir = keys.get(key);
             if (dir == null) {
@@ -201,24 +281,32 @@ public class FileSystemRepository implements Repository, Runnable {
                 continue;
             }
 
+            int events = 0;
             for (WatchEvent<?> event: key.pollEvents()) {
                 WatchEvent.Kind kind = event.kind();
+                events += event.count();
 
-                // we missed events, reset everything
+                // we missed events; verify the whole tree at the next rebuild
                 if (kind == OVERFLOW) {
-                    if (!registerRoot()) return;
+                    verifyPending = true;
                     break;
                 }
 
-                LOGGER.info("Update to {} triggering FileSystemRepository({}) rebuild", event.context(), rootPath);
+                LOGGER.debug("Update to {} pending FileSystemRepository({}) rebuild", event.context(), rootPath);
 
-                if (kind == ENTRY_CREATE) {
-                    Path child = dir.resolve(FileSystemRepository.<Path>cast(event).context());
+                Path child = dir.resolve(FileSystemRepository.<Path>cast(event).context());
+                changedDirectories.add(dir);
+                changedPaths.add(child);
 
+                if (kind == ENTRY_CREATE) {
                     if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
                         try {
                             registerPath(child);
                         } catch (IOException ex) {
+                            if (changeDetection == RepositoryConfiguration.ChangeDetection.HYBRID) {
+                                abandonWatching(ex);
+                                break;
+                            }
                             LOGGER.warn("IOException when registering new child path; ignoring this addition: {}", ex.getMessage());
                         }
                     }
@@ -230,8 +318,7 @@ public class FileSystemRepository implements Repository, Runnable {
                 keys.remove(key);
             }
 
-            // Something has changed, so rebuild the tree
-            rebuildNodes();
+            scheduler.eventsReceived(System.currentTimeMillis(), Math.max(events, 1));
         }
     }
 
@@ -0,0 +1,141 @@
+package net.apnic.rpki.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An immutable Repository.Node read from a file system, retaining the metadata it was read with so that later scans
+ * can tell whether it is still current.
+ *
+ * A file node either holds its content on the heap, or holds no content at all and maps the file when its content is
+ * requested.  Mappings are not retained, so a large repository does not exhaust the process's map count.
+ *
+ * A node keeps only the few attributes it needs, as primitives, and its name as a PathName shared with its siblings.
+ * Its path is resolved from the scanned root and its name when asked; a repository of millions of files holds no
+ * attributes, Path, or full path String for each one.
+ *
+ * @author bje
+ * @since 0.9
+ */
+final class FinalNode implements Repository.Node {
+    private final PathName name;
+    private final Path root;
+    private final byte[] content;
+    private final List<Repository.Node> children;
+    private final long size;
+    private final long modified;        // in nanoseconds, to compare exactly with freshly read attributes
+    private final boolean directory;
+    private final Object fileKey;
+
+    FinalNode(PathName name, Path root, byte[] content, List<Repository.Node> children, BasicFileAttributes attrs) {
+        this(name, root, content, children, attrs.size(), attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+                attrs.isDirectory(), attrs.fileKey());
+    }
+
+    private FinalNode(PathName name, Path root, byte[] content, List<Repository.Node> children, long size,
+                      long modified, boolean directory, Object fileKey) {
+        this.name = name;
+        this.root = root;
+        this.content = content;
+        this.children = children;
+        this.size = size;
+        this.modified = modified;
+        this.directory = directory;
+        this.fileKey = fileKey;
+    }
+
+    @Override public String getName() { return name.toString(); }
+
+    @Override
+    public byte[] getContent() {
+        if (content != null || directory) return content;
+
+        ByteBuffer buffer = getContentBuffer();
+        byte[] copy = new byte[buffer.remaining()];
+        try {
+            buffer.get(copy);
+        } catch (InternalError ex) {
+            // Reading a mapping past the end of a file truncated since it was mapped faults rather than failing
+            throw changed(getPath(), ex);
+        }
+
+        // The file may have been rewritten in place while it was copied
+        checkCurrent(getPath());
+        return copy;
+    }
+
+    @Override
+    public ByteBuffer getContentBuffer() {
+        if (directory) return null;
+        if (content != null) return ByteBuffer.wrap(content).asReadOnlyBuffer();
+
+        Path path = getPath();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // A file replaced or truncated since the scan would give content inconsistent with this node; the
+            // repository will produce a new node for it once the change is seen.
+            if (channel.size() != size) throw changed(path, null);
+            checkCurrent(path);
+
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Cannot map file content: " + path, ex);
+        }
+    }
+
+    private void checkCurrent(Path path) {
+        try {
+            if (!isCurrent(Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS)))
+                throw changed(path, null);
+        } catch (IOException ex) {
+            throw changed(path, ex);
+        }
+    }
+
+    private static IllegalStateException changed(Path path, Throwable cause) {
+        return new IllegalStateException("File has changed since it was scanned: " + path, cause);
+    }
+
+    @Override public long getSize() { return size; }
+    @Override public List<Repository.Node> getChildren() { return children; }
+    @Override public long getLastModifiedTime() { return TimeUnit.NANOSECONDS.toSeconds(modified); }
+    @Override public long getLastModifiedTimeNanos() { return modified; }
+    @Override public boolean isDirectory() { return directory; }
+    @Override public Object getFileKey() { return fileKey; }
+
+    // The name includes the root directory's own name, so it resolves against the root's parent
+    Path getPath() { return root.resolveSibling(name.toString()); }
+    PathName getPathName() { return name; }
+
+    /**
+     * Returns a node for the same directory, with the same attributes, holding the given children.
+     *
+     * @param children the children of the new node
+     * @return a node for the same directory
+     */
+    FinalNode withChildren(List<Repository.Node> children) {
+        return new FinalNode(name, root, null, children, size, modified, directory, fileKey);
+    }
+
+    /**
+     * Returns true if the given attributes describe the same file content as this node was read from.
+     *
+     * @param other attributes freshly read for this node's path
+     * @return true if size, modification time, and file key all match
+     */
+    boolean isCurrent(BasicFileAttributes other) {
+        return size == other.size()
+                && modified == other.lastModifiedTime().to(TimeUnit.NANOSECONDS)
+                && Objects.equals(fileKey, other.fileKey());
+    }
+
+    @Override public String toString() { return name.toString(); }
+}
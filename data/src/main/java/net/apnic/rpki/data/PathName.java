@@ -0,0 +1,61 @@
+package net.apnic.rpki.data;
+
+import java.nio.charset.Charset;
+
+/**
+ * The name of a node, relative to the repository root, held as a reference to its parent's name and its own last
+ * component in UTF-8.  Names are shared: every node in a directory refers to the one name of that directory, and a
+ * directory re-scanned keeps the name it had, so a deep tree holds each path component once rather than a full path
+ * for every node.
+ *
+ * @author bje
+ * @since 1.1
+ */
+final class PathName {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final PathName parent;
+    private final byte[] leaf;
+
+    private PathName(PathName parent, byte[] leaf) {
+        this.parent = parent;
+        this.leaf = leaf;
+    }
+
+    /**
+     * Returns the name of a repository root.
+     *
+     * @param name the root's name
+     * @return the root's name
+     */
+    static PathName root(String name) {
+        return new PathName(null, name.getBytes(UTF8));
+    }
+
+    /**
+     * Returns the name of an entry in the directory with this name.
+     *
+     * @param leaf the entry's name within the directory
+     * @return the entry's name
+     */
+    PathName child(String leaf) {
+        return new PathName(this, leaf.getBytes(UTF8));
+    }
+
+    @Override
+    public String toString() {
+        int length = leaf.length;
+        for (PathName name = parent; name != null; name = name.parent) {
+            length += name.leaf.length + 1;
+        }
+
+        byte[] bytes = new byte[length];
+        int end = length;
+        for (PathName name = this; name != null; name = name.parent) {
+            end -= name.leaf.length;
+            System.arraycopy(name.leaf, 0, bytes, end, name.leaf.length);
+            if (end > 0) bytes[--end] = '/';
+        }
+        return new String(bytes, UTF8);
+    }
+}
@@ -0,0 +1,120 @@
+package net.apnic.rpki.data;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides when a burst of change events should be turned into a repository rebuild.
+ *
+ * Events are gathered until no new event has arrived for the quiet period, so a publication cycle writing many files
+ * causes one rebuild rather than dozens.  A rebuild is forced once the oldest pending event reaches the maximum
+ * staleness, so a repository under continuous change still becomes visible to clients.
+ *
+ * Scheduling methods are called only from the repository's own thread; the statistics may be read from any thread.
+ *
+ * @author bje
+ * @since 1.1
+ */
+public class RebuildScheduler {
+    private final long quietPeriod;
+    private final long maximumStaleness;
+
+    private long firstPendingEvent = -1;
+    private long lastPendingEvent = -1;
+    private long pendingEvents = 0;
+
+    private final AtomicLong eventCount = new AtomicLong();
+    private final AtomicLong mergedEventCount = new AtomicLong();
+    private final AtomicLong rebuildCount = new AtomicLong();
+
+    /**
+     * Constructs a RebuildScheduler with the given quiet period and maximum staleness.
+     *
+     * A quiet period of zero rebuilds as soon as any event is seen.
+     *
+     * @param quietPeriod how long the repository must be free of events before a rebuild starts
+     * @param maximumStaleness how long after the first pending event a rebuild is forced regardless
+     * @param unit the unit of the quiet period and maximum staleness
+     * @since 1.1
+     */
+    public RebuildScheduler(long quietPeriod, long maximumStaleness, TimeUnit unit) {
+        if (quietPeriod < 0 || maximumStaleness < 0)
+            throw new IllegalArgumentException("Rebuild delays must not be negative");
+
+        this.quietPeriod = unit.toMillis(quietPeriod);
+        this.maximumStaleness = Math.max(unit.toMillis(maximumStaleness), this.quietPeriod);
+    }
+
+    /**
+     * Notes the arrival of change events.
+     *
+     * @param now the current time in milliseconds
+     * @param count the number of events that arrived
+     */
+    void eventsReceived(long now, int count) {
+        if (pendingEvents == 0) firstPendingEvent = now;
+        lastPendingEvent = now;
+        pendingEvents += count;
+        eventCount.addAndGet(count);
+    }
+
+    /**
+     * Returns how long to wait for further events before rebuilding.
+     *
+     * @param now the current time in milliseconds
+     * @return -1 if no rebuild is pending, 0 if a rebuild is due now, else the milliseconds remaining
+     */
+    long getRebuildDelay(long now) {
+        if (pendingEvents == 0) return -1;
+
+        long quietDeadline = lastPendingEvent + quietPeriod;
+        long staleDeadline = firstPendingEvent + maximumStaleness;
+        return Math.max(0, Math.min(quietDeadline, staleDeadline) - now);
+    }
+
+    /**
+     * Notes that a rebuild is starting, folding all pending events into it.
+     */
+    void rebuildStarted() {
+        if (pendingEvents > 1) mergedEventCount.addAndGet(pendingEvents - 1);
+        rebuildCount.incrementAndGet();
+        pendingEvents = 0;
+        firstPendingEvent = lastPendingEvent = -1;
+    }
+
+    /**
+     * Returns the number of change events seen.
+     *
+     * @return the number of change events seen
+     * @since 1.1
+     */
+    public long getEventCount() {
+        return eventCount.get();
+    }
+
+    /**
+     * Returns the number of change events that were merged into a rebuild triggered by an earlier event.
+     *
+     * @return the number of change events merged into another event's rebuild
+     * @since 1.1
+     */
+    public long getMergedEventCount() {
+        return mergedEventCount.get();
+    }
+
+    /**
+     * Returns the number of rebuilds started, including the initial scan.
+     *
+     * @return the number of rebuilds started
+     * @since 1.1
+     */
+    public long getRebuildCount() {
+        return rebuildCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RebuildScheduler(quiet=%dms, staleness=%dms, events=%d, merged=%d, rebuilds=%d)",
+                quietPeriod, maximumStaleness, getEventCount(), getMergedEventCount(), getRebuildCount());
+    }
+}
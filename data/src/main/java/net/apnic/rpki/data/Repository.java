@@ -1,5 +1,6 @@
 package net.apnic.rpki.data;
 
+import java.nio.ByteBuffer;
 import java.util.List;
 
 /**
@@ -28,6 +29,24 @@ public interface Repository {
         public void repositoryUpdated(Repository repository);
     }
 
+    /**
+     * A repository's owner that wants to know what changed, not just that something changed.  A repository given a
+     * ChangeWatcher calls repositoryChanged in place of repositoryUpdated.
+     *
+     * @since 1.1
+     */
+    public interface ChangeWatcher extends Watcher {
+        /**
+         * Receives a notification of an updated repository, with the changes since the previous notification.  The
+         * first notification lists every node as added.
+         *
+         * @param repository the repository which was updated
+         * @param changes the nodes added, modified, and removed since the previous notification
+         * @since 1.1
+         */
+        public void repositoryChanged(Repository repository, ChangeSet changes);
+    }
+
     /**
      * A Node in the repository.
      *
@@ -50,6 +69,15 @@ public interface Repository {
          */
         public long getLastModifiedTime();
 
+        /**
+         * Gets the last-modified-time of this Node in nanoseconds, as precisely as the repository knows it, so that a
+         * file rewritten within the same second may be told apart from the file it replaced.
+         *
+         * @return the last-modified-time of this Node, in nanoseconds
+         * @since 1.1
+         */
+        public long getLastModifiedTimeNanos();
+
         /**
          * Returns true if this Node is a directory, else false.
          *
@@ -61,11 +89,27 @@ public interface Repository {
         /**
          * Gets the content of this Node.  Always null for directories.
          *
+         * Depending on how the repository holds content, this may copy the content onto the heap on every call;
+         * consumers that can work from a buffer should prefer getContentBuffer().
+         *
          * @return the content of this Node
          * @since 0.9
          */
         public byte[] getContent();
 
+        /**
+         * Gets the content of this Node as a read-only buffer positioned at the start of the content.  Always null for
+         * directories.
+         *
+         * The buffer may be backed by a memory-mapped region of the underlying file rather than the heap.  Each call
+         * returns a new buffer, which callers should not retain beyond their immediate use.
+         *
+         * @return the content of this Node as a read-only buffer
+         * @throws IllegalStateException if the content can no longer be read as it was when the Node was built
+         * @since 1.1
+         */
+        public ByteBuffer getContentBuffer();
+
         /**
          * Gets the size of this Node.  This will not equal getContent().size() for a directory.
          *
@@ -74,6 +118,16 @@ public interface Repository {
          */
         public long getSize();
 
+        /**
+         * Gets an object identifying the underlying file, such as its device and inode, or null if the repository
+         * has no such identity for its nodes.  Two nodes with equal file keys, sizes, and modification times in
+         * nanoseconds can be assumed to have the same content.
+         *
+         * @return an object identifying the underlying file, or null
+         * @since 1.1
+         */
+        public Object getFileKey();
+
         /**
          * Gets the children of this Node.
          *
@@ -0,0 +1,201 @@
+package net.apnic.rpki.data;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tunable settings for a FileSystemRepository.  Settings are read when the repository is constructed; changing a
+ * configuration afterwards has no effect on repositories already built from it.
+ *
+ * @author bje
+ * @since 1.1
+ */
+public class RepositoryConfiguration {
+    /**
+     * How a repository holds the content of its files.
+     *
+     * @since 1.1
+     */
+    public enum ContentMode {
+        /**
+         * File content is read onto the heap when the repository is scanned.
+         */
+        HEAP,
+
+        /**
+         * Only file metadata is read when the repository is scanned; content is memory-mapped from the file each
+         * time it is requested.
+         */
+        MAPPED
+    }
+
+    /**
+     * How a repository learns that its files have changed.
+     *
+     * @since 1.1
+     */
+    public enum ChangeDetection {
+        /**
+         * Every directory is registered with the file system's watch service.  Lost events are recovered by verifying
+         * the whole tree against the file system.
+         */
+        WATCH,
+
+        /**
+         * No watches are registered; the whole tree is verified against the file system every poll interval.
+         */
+        POLL,
+
+        /**
+         * Directories are watched, and the whole tree is also verified every poll interval.  If the watch service
+         * cannot register every directory, such as when the system's watch limit is reached, watching is abandoned
+         * and the repository relies on polling alone.
+         */
+        HYBRID
+    }
+
+    private long quietPeriod = 500;
+    private long maximumStaleness = 10000;
+    private int scanThreads = Runtime.getRuntime().availableProcessors();
+    private ContentMode contentMode = ContentMode.HEAP;
+    private ChangeDetection changeDetection = ChangeDetection.WATCH;
+    private long pollInterval = 60000;
+
+    /**
+     * Sets how long the repository must see no changes before it rebuilds.  Defaults to 500 milliseconds.
+     *
+     * @param quietPeriod the quiet period
+     * @param unit the unit of the quiet period
+     * @return this configuration
+     * @since 1.1
+     */
+    public RepositoryConfiguration withQuietPeriod(long quietPeriod, TimeUnit unit) {
+        this.quietPeriod = unit.toMillis(quietPeriod);
+        return this;
+    }
+
+    /**
+     * Sets how long a change may wait for the repository to become quiet before a rebuild is forced.  Defaults to
+     * 10 seconds.
+     *
+     * @param maximumStaleness the maximum staleness
+     * @param unit the unit of the maximum staleness
+     * @return this configuration
+     * @since 1.1
+     */
+    public RepositoryConfiguration withMaximumStaleness(long maximumStaleness, TimeUnit unit) {
+        this.maximumStaleness = unit.toMillis(maximumStaleness);
+        return this;
+    }
+
+    /**
+     * Sets the number of threads used to list directories and read files when scanning the repository.  Defaults to
+     * the number of available processors.
+     *
+     * @param scanThreads the number of scanning threads
+     * @return this configuration
+     * @since 1.1
+     */
+    public RepositoryConfiguration withScanThreads(int scanThreads) {
+        if (scanThreads < 1) throw new IllegalArgumentException("At least one scanning thread is required");
+        this.scanThreads = scanThreads;
+        return this;
+    }
+
+    /**
+     * Sets how the repository holds file content.  Defaults to ContentMode.HEAP.
+     *
+     * @param contentMode how the repository holds file content
+     * @return this configuration
+     * @since 1.1
+     */
+    public RepositoryConfiguration withContentMode(ContentMode contentMode) {
+        this.contentMode = contentMode;
+        return this;
+    }
+
+    /**
+     * Sets how the repository detects changes to its files.  Defaults to ChangeDetection.WATCH.
+     *
+     * @param changeDetection how the repository detects changes
+     * @return this configuration
+     * @since 1.1
+     */
+    public RepositoryConfiguration withChangeDetection(ChangeDetection changeDetection) {
+        this.changeDetection = changeDetection;
+        return this;
+    }
+
+    /**
+     * Sets how often a polling repository verifies its tree against the file system.  Defaults to 60 seconds.
+     *
+     * @param pollInterval the poll interval
+     * @param unit the unit of the poll interval
+     * @return this configuration
+     * @since 1.1
+     */
+    public RepositoryConfiguration withPollInterval(long pollInterval, TimeUnit unit) {
+        if (pollInterval <= 0) throw new IllegalArgumentException("The poll interval must be positive");
+        this.pollInterval = unit.toMillis(pollInterval);
+        return this;
+    }
+
+    /**
+     * Returns the quiet period in milliseconds.
+     *
+     * @return the quiet period in milliseconds
+     * @since 1.1
+     */
+    public long getQuietPeriod() {
+        return quietPeriod;
+    }
+
+    /**
+     * Returns the maximum staleness in milliseconds.
+     *
+     * @return the maximum staleness in milliseconds
+     * @since 1.1
+     */
+    public long getMaximumStaleness() {
+        return maximumStaleness;
+    }
+
+    /**
+     * Returns the number of threads used to scan the repository.
+     *
+     * @return the number of threads used to scan the repository
+     * @since 1.1
+     */
+    public int getScanThreads() {
+        return scanThreads;
+    }
+
+    /**
+     * Returns how the repository holds file content.
+     *
+     * @return how the repository holds file content
+     * @since 1.1
+     */
+    public ContentMode getContentMode() {
+        return contentMode;
+    }
+
+    /**
+     * Returns how the repository detects changes to its files.
+     *
+     * @return how the repository detects changes
+     * @since 1.1
+     */
+    public ChangeDetection getChangeDetection() {
+        return changeDetection;
+    }
+
+    /**
+     * Returns the poll interval in milliseconds.
+     *
+     * @return the poll interval in milliseconds
+     * @since 1.1
+     */
+    public long getPollInterval() {
+        return pollInterval;
+    }
+}
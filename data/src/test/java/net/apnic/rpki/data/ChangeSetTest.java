@@ -0,0 +1,81 @@
+package net.apnic.rpki.data;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ChangeSetTest {
+    private Path root;
+    private DirectoryScanner scanner;
+
+    @Before
+    public void createTree() throws Exception {
+        root = Files.createTempDirectory("repository");
+        for (int d = 0; d < 3; d++) {
+            Path dir = Files.createDirectory(root.resolve("ca-" + d));
+            for (int f = 0; f < 5; f++) {
+                Files.write(dir.resolve("object-" + f + ".roa"), new byte[] { (byte)d, (byte)f });
+            }
+        }
+        scanner = new DirectoryScanner(root, 2, RepositoryConfiguration.ContentMode.HEAP);
+    }
+
+    @Test
+    public void firstGenerationAddsEverything() throws Exception {
+        Repository.Node tree = scanner.scan(null, Collections.<Path>emptySet(), Collections.<Path>emptySet());
+        ChangeSet changes = ChangeSet.between(1, null, tree);
+
+        assertEquals("The root, three directories, and fifteen files are added", 19, changes.getAdded().size());
+        assertTrue("Nothing is modified", changes.getModified().isEmpty());
+        assertTrue("Nothing is removed", changes.getRemoved().isEmpty());
+        assertEquals(1, changes.getGeneration());
+    }
+
+    @Test
+    public void identicalTreesHaveNoChanges() throws Exception {
+        Repository.Node tree = scanner.scan(null, Collections.<Path>emptySet(), Collections.<Path>emptySet());
+        assertTrue("A tree has no changes from itself", ChangeSet.between(2, tree, tree).isEmpty());
+    }
+
+    @Test
+    public void listsOnlyChangedNodes() throws Exception {
+        Repository.Node first = scanner.scan(null, Collections.<Path>emptySet(), Collections.<Path>emptySet());
+
+        Path dir = root.resolve("ca-1");
+        Files.write(dir.resolve("object-0.roa"), new byte[] { 9, 9, 9 });
+        Files.delete(dir.resolve("object-1.roa"));
+        Files.write(dir.resolve("object-new.roa"), new byte[] { 1 });
+        Repository.Node second = scanner.verify(first);
+
+        ChangeSet changes = ChangeSet.between(2, first, second);
+        assertEquals("The new file is added", Collections.singleton(name("ca-1/object-new.roa")),
+                names(changes.getAdded()));
+        assertEquals("The deleted file is removed", Collections.singleton(name("ca-1/object-1.roa")),
+                names(changes.getRemoved()));
+        assertEquals("The changed file and its ancestors are modified",
+                new HashSet<>(Arrays.asList(name(""), name("ca-1"), name("ca-1/object-0.roa"))),
+                names(changes.getModified()));
+    }
+
+    private String name(String relative) {
+        String top = root.getFileName().toString();
+        return relative.isEmpty() ? top : top + "/" + relative;
+    }
+
+    private static Set<String> names(List<Repository.Node> nodes) {
+        Set<String> names = new HashSet<>();
+        for (Repository.Node node : nodes) {
+            names.add(node.getName());
+        }
+        return names;
+    }
+}
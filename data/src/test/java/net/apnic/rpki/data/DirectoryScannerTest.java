@@ -0,0 +1,127 @@
+package net.apnic.rpki.data;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class DirectoryScannerTest {
+    private Path root;
+
+    @Before
+    public void createTree() throws Exception {
+        root = Files.createTempDirectory("repository");
+        for (int d = 0; d < 4; d++) {
+            Path dir = Files.createDirectory(root.resolve("ca-" + d));
+            for (int f = 0; f < 10; f++) {
+                Files.write(dir.resolve("object-" + f + ".roa"), new byte[] { (byte)d, (byte)f });
+            }
+            Files.createDirectory(dir.resolve("child"));
+        }
+    }
+
+    @Test
+    public void parallelScanMatchesSequentialScan() throws Exception {
+        Repository.Node sequential = new DirectoryScanner(root, 1, RepositoryConfiguration.ContentMode.HEAP).scan(null, none(), none());
+        Repository.Node parallel = new DirectoryScanner(root, 4, RepositoryConfiguration.ContentMode.HEAP).scan(null, none(), none());
+
+        assertEquals("The trees have the same shape", describe(sequential), describe(parallel));
+        assertEquals("The root has four directories", 4, parallel.getChildren().size());
+    }
+
+    @Test
+    public void rescansOnlyChangedDirectories() throws Exception {
+        DirectoryScanner scanner = new DirectoryScanner(root, 4, RepositoryConfiguration.ContentMode.HEAP);
+        Repository.Node first = scanner.scan(null, none(), none());
+
+        assertSame("An unchanged tree is returned as-is", first, scanner.scan(first, none(), none()));
+
+        Path changed = root.resolve("ca-2");
+        Files.write(changed.resolve("object-0.roa"), new byte[] { 9, 9, 9 });
+        Files.write(changed.resolve("object-new.roa"), new byte[] { 1 });
+        Set<Path> directories = new HashSet<>(Collections.singleton(changed));
+        Set<Path> paths = new HashSet<>();
+        paths.add(changed.resolve("object-0.roa"));
+        paths.add(changed.resolve("object-new.roa"));
+
+        Repository.Node second = scanner.scan(first, directories, paths);
+        assertNotSame("The root is rebuilt", first, second);
+        for (int i = 0; i < 4; i++) {
+            Repository.Node before = child(first, "ca-" + i);
+            Repository.Node after = child(second, "ca-" + i);
+            if (i == 2) {
+                assertNotSame("The changed directory is rebuilt", before, after);
+                assertEquals("The new file is present", 12, after.getChildren().size());
+                assertArrayEquals("The modified file is re-read", new byte[] { 9, 9, 9 },
+                        child(after, "object-0.roa").getContent());
+                assertSame("Unchanged files are re-used", child(before, "object-1.roa"),
+                        child(after, "object-1.roa"));
+            } else {
+                assertSame("Unchanged directories are re-used", before, after);
+            }
+        }
+    }
+
+    @Test
+    public void verifyFindsUnreportedChanges() throws Exception {
+        DirectoryScanner scanner = new DirectoryScanner(root, 4, RepositoryConfiguration.ContentMode.HEAP);
+        Repository.Node first = scanner.verify(scanner.scan(null, none(), none()));
+
+        assertSame("An unchanged tree verifies as-is", first, scanner.verify(first));
+
+        Files.write(root.resolve("ca-1").resolve("object-3.roa"), new byte[] { 7, 7, 7 });
+        Files.createDirectory(root.resolve("ca-1").resolve("child").resolve("grandchild"));
+
+        Repository.Node second = scanner.verify(first);
+        assertNotSame("The root is rebuilt", first, second);
+        assertArrayEquals("The modified file is re-read", new byte[] { 7, 7, 7 },
+                child(child(second, "ca-1"), "object-3.roa").getContent());
+        assertEquals("The new directory is found", 1, child(child(second, "ca-1"), "child").getChildren().size());
+        assertSame("Unchanged files are re-used", child(child(first, "ca-1"), "object-4.roa"),
+                child(child(second, "ca-1"), "object-4.roa"));
+        assertSame("Unchanged directories are re-used", child(first, "ca-0"), child(second, "ca-0"));
+    }
+
+    @Test
+    public void mapsContentOnDemand() throws Exception {
+        Repository.Node tree = new DirectoryScanner(root, 2, RepositoryConfiguration.ContentMode.MAPPED)
+                .scan(null, none(), none());
+        Repository.Node file = child(child(tree, "ca-3"), "object-7.roa");
+
+        ByteBuffer buffer = file.getContentBuffer();
+        assertTrue("The buffer is read-only", buffer.isReadOnly());
+        assertEquals("The buffer holds the whole file", 2, buffer.remaining());
+        assertArrayEquals("The content is mapped from the file", new byte[] { 3, 7 }, file.getContent());
+        assertNull("Directories have no content", child(tree, "ca-3").getContentBuffer());
+    }
+
+    private static Set<Path> none() {
+        return Collections.emptySet();
+    }
+
+    private static Repository.Node child(Repository.Node node, String leaf) {
+        for (Repository.Node child : node.getChildren()) {
+            if (child.getName().endsWith("/" + leaf)) return child;
+        }
+        fail("No child named " + leaf + " in " + node);
+        return null;
+    }
+
+    private static Set<String> describe(Repository.Node node) {
+        Set<String> names = new HashSet<>();
+        names.add(node.getName() + ":" + node.getSize());
+        if (node.isDirectory()) {
+            for (Repository.Node child : node.getChildren()) {
+                names.addAll(describe(child));
+            }
+        }
+        return names;
+    }
+}
@@ -1,71 +1,190 @@
 package net.apnic.rpki.data;
 
+import org.junit.After;
 import org.junit.Test;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.junit.Assert.*;
 
 public class FileSystemRepositoryTest {
-    private static final Logger LOGGER = LoggerFactory.getLogger(FileSystemRepositoryTest.class);
+    private final List<Path> created = new ArrayList<>();
 
-    @SuppressWarnings("WeakerAccess")
-    final Object lock = new Object();
+    @After
+    public void deleteCreatedDirectories() throws Exception {
+        for (Path path : created) {
+            delete(path);
+        }
+    }
 
     @Test
     public void scanTestResources() throws Exception {
         // Note: this assumes the test runs with resources on file: urls.
-        FileSystemRepository repo = new FileSystemRepository(Paths.get(getClass().getResource("/repository").toURI()));
+        Path repository = Paths.get(getClass().getResource("/repository").toURI());
+        FileSystemRepository repo = new FileSystemRepository(repository);
+        BlockingQueue<Repository.Node> roots = watch(repo);
+
+        Repository.Node oldRoot = firstRoot(repo, roots);
+        assertNotNull("The repository has a root node", oldRoot);
+
+        created.add(Files.createTempDirectory(repository, "new-dir"));
+
+        Repository.Node newRoot = nextRoot(roots, oldRoot);
+        assertNotNull("A repository update happened within 15 seconds", newRoot);
+        assertNotSame("The new root node is different", oldRoot, newRoot);
+    }
+
+    @Test
+    public void sharesUnchangedSubtrees() throws Exception {
+        Path root = createTempDirectory();
+        Path changing = Files.createDirectory(root.resolve("changing"));
+        Path stable = Files.createDirectory(root.resolve("stable"));
+        Files.write(changing.resolve("a.mft"), new byte[] { 1 });
+        Files.write(stable.resolve("b.cer"), new byte[] { 2 });
+
+        FileSystemRepository repo = new FileSystemRepository(root);
+        BlockingQueue<Repository.Node> roots = watch(repo);
+
+        Repository.Node oldRoot = firstRoot(repo, roots);
+        assertNotNull("The repository has a root node", oldRoot);
+
+        // Publish the new version the way publication tools do, by renaming it into place
+        Path staged = Files.write(Files.createTempFile("a", ".mft"), new byte[] { 3, 4 });
+        Files.move(staged, changing.resolve("a.mft"), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        Repository.Node newRoot = nextRoot(roots, oldRoot);
+        assertNotNull("A repository update happened within 15 seconds", newRoot);
+        assertNotSame("The new root node is different", oldRoot, newRoot);
+        assertSame("The unchanged directory is shared", child(oldRoot, "stable"), child(newRoot, "stable"));
+
+        Repository.Node changed = child(child(newRoot, "changing"), "a.mft");
+        assertArrayEquals("The changed file was re-read", new byte[] { 3, 4 }, changed.getContent());
+    }
+
+    @Test
+    public void pollingFindsChanges() throws Exception {
+        Path root = createTempDirectory();
+        Files.write(root.resolve("a.mft"), new byte[] { 1 });
+
+        FileSystemRepository repo = new FileSystemRepository(root, new RepositoryConfiguration()
+                .withChangeDetection(RepositoryConfiguration.ChangeDetection.POLL)
+                .withPollInterval(200, TimeUnit.MILLISECONDS));
+        BlockingQueue<Repository.Node> roots = watch(repo);
+
+        Repository.Node oldRoot = firstRoot(repo, roots);
+        assertNotNull("The repository has a root node", oldRoot);
+
+        Files.write(root.resolve("b.roa"), new byte[] { 2 });
+
+        Repository.Node newRoot = nextRoot(roots, oldRoot);
+        assertNotNull("A repository update happened within 15 seconds", newRoot);
+        assertEquals("The new file was found", 2, newRoot.getChildren().size());
+        assertSame("The unchanged file is shared", child(oldRoot, "a.mft"), child(newRoot, "a.mft"));
+    }
+
+    @Test
+    public void reportsChangesTheWatcherFailedToTake() throws Exception {
+        Path root = createTempDirectory();
+        Files.write(root.resolve("a.mft"), new byte[] { 1 });
+
+        FileSystemRepository repo = new FileSystemRepository(root, new RepositoryConfiguration()
+                .withChangeDetection(RepositoryConfiguration.ChangeDetection.POLL)
+                .withPollInterval(200, TimeUnit.MILLISECONDS));
+        assertNotNull("The repository has a root node", firstRoot(repo, watch(repo)));
+
+        final AtomicBoolean failed = new AtomicBoolean();
+        final BlockingQueue<ChangeSet> delivered = new LinkedBlockingQueue<>();
+        repo.setWatcher(new Repository.ChangeWatcher() {
+            @Override
+            public void repositoryChanged(Repository repository, ChangeSet changes) {
+                // The first change cannot be taken, as when mapped content changes while it is read
+                if (failed.compareAndSet(false, true)) throw new IllegalStateException("File has changed");
+                delivered.add(changes);
+            }
 
-        final List<Boolean> confirmed = new ArrayList<>();
-        repo.setWatcher(new Repository.Watcher() {
             @Override
             public void repositoryUpdated(Repository repository) {
-                confirmed.add(true);
-                synchronized (lock) {
-                    lock.notifyAll();
-                }
             }
         });
 
-        synchronized (lock) {
-            lock.wait(15000); // this timeout can be fragile; 15 seconds "should" be ok
-        }
+        Files.write(root.resolve("b.roa"), new byte[] { 2 });
+        ChangeSet changes = delivered.poll(15, TimeUnit.SECONDS);
+        assertNotNull("A change set was delivered within 15 seconds", changes);
+        assertTrue("The watcher failed to take the first change", failed.get());
+        assertEquals("The change the watcher failed to take is reported again", 1, changes.getAdded().size());
+        assertTrue(changes.getAdded().get(0).getName().endsWith("/b.roa"));
+    }
+
+    private Path createTempDirectory() throws IOException {
+        Path directory = Files.createTempDirectory("repository");
+        created.add(directory);
+        return directory;
+    }
+
+    // Queues the root of each update the repository delivers
+    private static BlockingQueue<Repository.Node> watch(Repository repository) {
+        final BlockingQueue<Repository.Node> roots = new LinkedBlockingQueue<>();
+        repository.setWatcher(new Repository.Watcher() {
+            @Override
+            public void repositoryUpdated(Repository repository) {
+                roots.add(repository.getRepositoryRoot());
+            }
+        });
+        return roots;
+    }
 
-        assertTrue("A repository update happened within 15 seconds", !confirmed.isEmpty());
-        assertNotNull("The repository has a root node", repo.getRepositoryRoot());
+    // The first scan may finish before the watcher is set, in which case its update is never delivered
+    private static Repository.Node firstRoot(Repository repository, BlockingQueue<Repository.Node> roots)
+            throws InterruptedException {
+        Repository.Node root = repository.getRepositoryRoot();
+        return root != null ? root : nextRoot(roots, null);
+    }
 
-        Repository.Node oldRoot = repo.getRepositoryRoot();
+    // Waits up to 15 seconds for an update to a root other than the given one, returning null if none comes
+    private static Repository.Node nextRoot(BlockingQueue<Repository.Node> roots, Repository.Node previous)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(15);
+        for (;;) {
+            Repository.Node root = roots.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            if (root == null || root != previous) return root;
+        }
+    }
 
-        confirmed.clear();
+    private static void delete(Path path) throws IOException {
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
 
-        new Thread(new Runnable() {
             @Override
-            public void run() {
-                try {
-                    Thread.sleep(100); // it's a race condition, but this minimises the risk
-                    Path repository = Paths.get(getClass().getResource("/repository").toURI());
-                    Path sub = Files.createTempDirectory(repository, "new-dir");
-                    sub.toFile().deleteOnExit();
-                } catch (Exception ex) {
-                    LOGGER.error(ex.getMessage());
-                    fail("An exception was thrown");
-                }
+            public FileVisitResult postVisitDirectory(Path dir, IOException ex) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
             }
-        }).start();
+        });
+    }
 
-        synchronized (lock) {
-            lock.wait(15000);
+    private static Repository.Node child(Repository.Node node, String leaf) {
+        for (Repository.Node child : node.getChildren()) {
+            if (child.getName().endsWith("/" + leaf)) return child;
         }
-
-        assertTrue("A repository update happened within 15 seconds", !confirmed.isEmpty());
-        assertNotNull("The repository has a root node", repo.getRepositoryRoot());
-        assertNotSame("The new root node is different", oldRoot, repo.getRepositoryRoot());
+        fail("No child named " + leaf + " in " + node);
+        return null;
     }
 }
@@ -0,0 +1,47 @@
+package net.apnic.rpki.data;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RebuildSchedulerTest {
+    @Test
+    public void waitsForQuiet() {
+        RebuildScheduler scheduler = new RebuildScheduler(100, 1000, TimeUnit.MILLISECONDS);
+        assertEquals("Nothing is pending before any event", -1, scheduler.getRebuildDelay(0));
+
+        scheduler.eventsReceived(0, 1);
+        assertEquals("A rebuild waits for the quiet period", 100, scheduler.getRebuildDelay(0));
+
+        scheduler.eventsReceived(50, 3);
+        assertEquals("A new event extends the quiet period", 100, scheduler.getRebuildDelay(50));
+        assertEquals("The rebuild is due once quiet", 0, scheduler.getRebuildDelay(150));
+
+        scheduler.rebuildStarted();
+        assertEquals("Nothing is pending after a rebuild", -1, scheduler.getRebuildDelay(150));
+        assertEquals("Four events were seen", 4, scheduler.getEventCount());
+        assertEquals("Three events were merged into the first", 3, scheduler.getMergedEventCount());
+        assertEquals("One rebuild was started", 1, scheduler.getRebuildCount());
+    }
+
+    @Test
+    public void forcesRebuildWhenStale() {
+        RebuildScheduler scheduler = new RebuildScheduler(100, 250, TimeUnit.MILLISECONDS);
+
+        scheduler.eventsReceived(0, 1);
+        scheduler.eventsReceived(90, 1);
+        scheduler.eventsReceived(180, 1);
+        assertEquals("The rebuild is bounded by the staleness limit", 70, scheduler.getRebuildDelay(180));
+        assertEquals("The rebuild is due at the staleness limit", 0, scheduler.getRebuildDelay(250));
+    }
+
+    @Test
+    public void rebuildsImmediatelyWithoutQuietPeriod() {
+        RebuildScheduler scheduler = new RebuildScheduler(0, 0, TimeUnit.MILLISECONDS);
+
+        scheduler.eventsReceived(10, 1);
+        assertEquals("The rebuild is due straight away", 0, scheduler.getRebuildDelay(10));
+    }
+}
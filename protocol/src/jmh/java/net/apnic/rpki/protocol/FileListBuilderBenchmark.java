@@ -0,0 +1,98 @@
+package net.apnic.rpki.protocol;
+
+import net.apnic.rpki.data.Repository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures the encoding of the recursive file list of a module of about 500,000 entries, in entries per second.  Each
+ * operation is one entry, so with the GC profiler gc.alloc.rate.norm is the number of bytes allocated per entry.
+ *
+ * Run with: mvn -Pbenchmarks test-compile exec:exec, from the protocol module.
+ *
+ * @author bje
+ * @since 1.1
+ */
+// CHECKSTYLE:OFF MagicNumber
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class FileListBuilderBenchmark {
+    private static final int DIRECTORIES = 1000;
+    private static final int FILES = 499;
+    private static final int ENTRIES = 1 + DIRECTORIES * (1 + FILES);
+
+    @Param({ "heap", "store" })
+    public String storage;
+
+    private CompactTree tree;
+    private FileListBuilder builder;
+
+    @Setup
+    public void setUp() {
+        NodeBuilder root = new NodeBuilder(true).withName("repository");
+        List<Repository.Node> files = new ArrayList<>();
+        for (int d = 0; d < DIRECTORIES; d++) {
+            String directory = String.format("repository/%08x", d * 2654435761L);
+            NodeBuilder node = new NodeBuilder(true).withName(directory);
+            for (int f = 0; f < FILES; f++) {
+                Repository.Node file = new NodeBuilder(false)
+                        .withName(String.format("%s/%040x.roa", directory, (long)d * FILES + f))
+                        .withLastModifiedTime(1391755776 + f % 7)
+                        .withContent(new byte[] { (byte)f })
+                        .withSize(2048 + f)
+                        .build();
+                node.withChild(file);
+                files.add(file);
+            }
+            root.withChild(node.build());
+        }
+
+        ContentBuilder contentBuilder = new ContentBuilder("benchmark", new ModuleConfiguration());
+        List<PersistentContentCache.Entry> entries = contentBuilder.build(files, null);
+        Map<Repository.Node, PersistentContentCache.Entry> built = new IdentityHashMap<>();
+        for (int i = 0; i < files.size(); i++) {
+            built.put(files.get(i), entries.get(i));
+        }
+
+        ContentStore store = "store".equals(storage) ? new ContentStore() : null;
+        tree = CompactTree.build(root.build(), null, null, built, store, null, new CompressedContentCache[10]);
+        builder = new FileListBuilder(store);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ENTRIES)
+    public int recursiveList() {
+        FileListBuilder.ImmutableFileList list = builder.makeList("repository", tree.getRoot(), true);
+        int size = list.getSize();
+        list.release();
+        return size;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(FileListBuilderBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
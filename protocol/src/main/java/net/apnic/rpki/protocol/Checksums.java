@@ -11,6 +11,8 @@ public class Checksums {
     private final int blockSize;
     private final int secondaryLength;
     private final int remainder;
+    private final int[] weakSums;
+    private final byte[] strongSums;
 
     /**
      * Constructs a new Checksums instane with the specified values.
@@ -22,10 +24,76 @@ public class Checksums {
      * @since 0.9
      */
     public Checksums(int blockCount, int blockSize, int secondaryLength, int remainder) {
+        this(blockCount, blockSize, secondaryLength, remainder, new int[0], new byte[0]);
+    }
+
+    /**
+     * Constructs a new Checksums instance with the specified values and the sums of each block.
+     *
+     * @param blockCount the number of blocks in the sum
+     * @param blockSize the size of each block summed
+     * @param secondaryLength the number of bytes of MD5 sum used for secondary checksums
+     * @param remainder the number of bytes in the final block
+     * @param weakSums the rolling checksum of each block
+     * @param strongSums the secondary checksum of each block, secondaryLength bytes apiece
+     * @since 1.1
+     */
+    public Checksums(int blockCount, int blockSize, int secondaryLength, int remainder, int[] weakSums,
+                     byte[] strongSums) {
         this.blockCount = blockCount;
         this.blockSize = blockSize;
         this.secondaryLength = secondaryLength;
         this.remainder = remainder;
+        this.weakSums = weakSums;
+        this.strongSums = strongSums;
+    }
+
+    /**
+     * Returns whether the sums of each block were received, as they are needed to send a delta.
+     *
+     * @return true if the sums of every block are held
+     * @since 1.1
+     */
+    public boolean hasBlockSums() {
+        return blockCount > 0 && weakSums.length == blockCount && strongSums.length == blockCount * secondaryLength;
+    }
+
+    /**
+     * Returns the length of a block: the block size, or the remainder for a short final block.
+     *
+     * @param block the index of the block
+     * @return the number of bytes in the block
+     * @since 1.1
+     */
+    public int getBlockLength(int block) {
+        return block == blockCount - 1 && remainder != 0 ? remainder : blockSize;
+    }
+
+    /**
+     * Returns the rolling checksum of a block.
+     *
+     * @param block the index of the block
+     * @return the rolling checksum of the block
+     * @since 1.1
+     */
+    public int getWeakSum(int block) {
+        return weakSums[block];
+    }
+
+    /**
+     * Returns whether a block's secondary checksum is the start of the given digest.
+     *
+     * @param block the index of the block
+     * @param digest a full MD5 digest
+     * @return true if the block's secondary checksum matches the digest
+     * @since 1.1
+     */
+    public boolean strongSumMatches(int block, byte[] digest) {
+        int from = block * secondaryLength;
+        for (int i = 0; i < secondaryLength; i++) {
+            if (strongSums[from + i] != digest[i]) return false;
+        }
+        return true;
     }
 
     /**
@@ -0,0 +1,873 @@
+package net.apnic.rpki.protocol;
+
+import net.apnic.rpki.data.ChangeSet;
+import net.apnic.rpki.data.Repository;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The files of one generation of a MemoryCachedModule, held as parallel arrays indexed by node id rather than as an
+ * object per file.  A file costs a few array slots, its name, and its content, so a module of millions of objects
+ * carries tens of bytes of overhead for each rather than a graph of objects.
+ *
+ * Node 0 is the root, and the children of each directory have consecutive ids, so a directory's children are a range
+ * of ids and a walk over the tree reads each array in order.  Children are laid out in the order rsync sorts them in
+ * a file list, once as the tree is built, so a list is written by walking the ranges as they are.
+ *
+ * Names are held as a path trie: each entry has the id of its parent and the UTF-8 bytes of its last component, all
+ * in one array, so a deep hierarchy holds each component once and a file list is encoded from the bytes without
+ * building or encoding any Strings.  Full names are built only when asked for, and looked up through an
+ * open-addressed index of hashes of their UTF-8 bytes, each computed from its parent's hash and its own leaf as the
+ * tree is built.
+ *
+ * RsyncFiles are views of the arrays, made as they are asked for.  A file whose content is carried over from one
+ * generation to the next is equal to its view in the earlier generation; a file rebuilt with new content is not.
+ *
+ * The tree holds no reference to the repository nodes it was built from.  Each file keeps its size, modification time
+ * in nanoseconds, and file key to be matched with a later node for the same file, so a retired generation held by a
+ * slow client does not keep an old repository tree, and any content it holds, reachable.
+ *
+ * File content is held in byte arrays, or in blocks of a ContentStore.  Blocks are allocated as the tree is built,
+ * and blocks carried over from the previous tree are relocated out of sparse slabs.  The tree takes a reference to
+ * each block as it is placed, so that it may outlive the trees before and after it; its owner releases them as a
+ * whole once the tree is no longer used.
+ *
+ * A changed file may carry the delta from its previous version, added before the tree is published, and carried to
+ * the next generation with the file's content.
+ *
+ * @author bje
+ * @since 1.1
+ */
+// CHECKSTYLE:OFF MagicNumber
+final class CompactTree {
+    private static final byte DIRECTORY = 0x01;
+    private static final byte STORED = 0x02;
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final int count;
+    private final int[] parents;
+    private final int[] nameHashes;
+    private final int[] leafOffsets;
+    private byte[] leaves;              // trimmed to size once the tree is built
+    private final int[] firstChild;
+    private final int[] childCount;
+    private final int[] sizes;
+    private final long[] lastModifiedTimes;     // in nanoseconds
+    private final Object[] fileKeys;
+    private final byte[] flags;
+    private final byte[] checksums;
+    private final byte[][] contents;
+    private final byte[][] zipped;
+    private final ContentStore.Block[] blocks;
+    private final int[] index;
+    private final ContentStore store;
+    private final CompressedContentCache compressedCache;
+    private final CompressedContentCache[] levelCaches;
+    private final Map<Integer, PrecomputedDelta> deltas = new HashMap<>();     // filled before the tree is published
+    private long compressedSize = 0;    // counted as the tree is built
+    private int storedCount = 0;
+
+    private CompactTree(int count, ContentStore store, CompressedContentCache compressedCache,
+                        CompressedContentCache[] levelCaches) {
+        this.count = count;
+        this.store = store;
+        this.compressedCache = compressedCache;
+        this.levelCaches = levelCaches;
+        parents = new int[count];
+        nameHashes = new int[count];
+        leafOffsets = new int[count + 1];
+        leaves = new byte[count * 16];
+        firstChild = new int[count];
+        childCount = new int[count];
+        sizes = new int[count];
+        lastModifiedTimes = new long[count];
+        fileKeys = new Object[count];
+        flags = new byte[count];
+        checksums = new byte[count * 16];
+        contents = store == null ? new byte[count][] : null;
+        zipped = store == null ? new byte[count][] : null;
+        blocks = store == null ? null : new ContentStore.Block[count];
+        index = new int[Integer.highestOneBit(Math.max(count, 1)) << 2];
+    }
+
+    /**
+     * Builds the tree for a repository.  Each file is built from its entry in built if it has one, and otherwise
+     * re-uses the content of the file of the same name in the previous tree.
+     *
+     * Entries of the previous tree are matched to nodes by walking both trees together, a directory's children in
+     * order.  A directory the change set shows to be unchanged is carried over from the previous tree whole, without
+     * reading its nodes.  No node is referenced by the tree once it is built.
+     *
+     * @param root the root of the repository
+     * @param previous the previous tree, or null
+     * @param changes the changes made to the repository since the previous tree was built, or null if unknown
+     * @param built the built content of each file that cannot be re-used
+     * @param store the store to hold content in, or null to hold it on the heap
+     * @param compressedCache the cache of content compressed on first use at the default level, or null
+     * @param levelCaches the caches of content compressed at other levels, indexed by level
+     * @return the new tree
+     * @throws IllegalStateException if a file has neither built content nor an entry in the previous tree
+     */
+    static CompactTree build(Repository.Node root, CompactTree previous, ChangeSet changes,
+                             Map<Repository.Node, PersistentContentCache.Entry> built, ContentStore store,
+                             CompressedContentCache compressedCache, CompressedContentCache[] levelCaches) {
+        Set<Repository.Node> changed = null;
+        if (changes != null && previous != null) {
+            changed = Collections.newSetFromMap(new IdentityHashMap<Repository.Node, Boolean>());
+            changed.addAll(changes.getAdded());
+            changed.addAll(changes.getModified());
+        }
+
+        // Lay the nodes out breadth first, so that each directory's children are consecutive and in rsync's order.
+        // An entry carried over from the previous tree has no node, and its children are the previous entry's.
+        Layout layout = new Layout();
+        byte[] rootLeaf = root.getName().getBytes(UTF8);
+        layout.add(root, rootLeaf, previous != null && previous.leafEquals(0, rootLeaf) ? 0 : -1);
+        for (int i = 0; i < layout.size; i++) {
+            Repository.Node node = layout.nodes.get(i);
+            int old = layout.olds[i];
+            boolean oldDirectory = old >= 0 && previous.isDirectory(old);
+            if (node == null || (node.isDirectory() && oldDirectory && changed != null && !changed.contains(node)
+                    && node.getChildren().size() == previous.childCount[old])) {
+                if (!oldDirectory) continue;
+                for (int child = previous.firstChild[old]; child < previous.firstChild[old] + previous.childCount[old]; child++) {
+                    layout.add(null, null, child);
+                }
+                continue;
+            }
+            if (!node.isDirectory()) continue;
+
+            // The previous directory's children are in the same order, so are matched in one pass
+            int next = oldDirectory ? previous.firstChild[old] : 0;
+            int end = oldDirectory ? next + previous.childCount[old] : 0;
+            for (Child child : sorted(node.getChildren())) {
+                int match = -1;
+                while (next < end) {
+                    int order = previous.compareEntry(next, child);
+                    if (order > 0) break;
+                    if (order == 0) match = next;
+                    next++;
+                    if (match >= 0) break;
+                }
+                boolean unchanged = match >= 0 && changed != null && !changed.contains(child.node);
+                layout.add(unchanged ? null : child.node, child.leaf, match);
+            }
+        }
+
+        CompactTree tree = new CompactTree(layout.size, store, compressedCache, levelCaches);
+        try {
+            tree.parents[0] = -1;
+            int next = 1;
+            for (int id = 0; id < layout.size; id++) {
+                Repository.Node node = layout.nodes.get(id);
+                int old = layout.olds[id];
+                if (node == null) {
+                    tree.appendLeaf(id, previous.leaves, previous.leafOffsets[old], previous.getLeafLength(old));
+                    tree.sizes[id] = previous.sizes[old];
+                    tree.lastModifiedTimes[id] = previous.lastModifiedTimes[old];
+                    tree.fileKeys[id] = previous.fileKeys[old];
+                } else {
+                    byte[] leaf = layout.leaves.get(id);
+                    tree.appendLeaf(id, leaf, 0, leaf.length);
+                    tree.sizes[id] = (int)node.getSize();
+                    tree.lastModifiedTimes[id] = node.getLastModifiedTimeNanos();
+                    tree.fileKeys[id] = node.getFileKey();
+                }
+                int parent = tree.parents[id];
+                tree.nameHashes[id] = hash(parent < 0 ? 0 : tree.nameHashes[parent] * 31 + '/', tree.leaves,
+                        tree.leafOffsets[id], tree.getLeafLength(id));
+                tree.insert(id);
+
+                if (node == null ? previous.isDirectory(old) : node.isDirectory()) {
+                    tree.flags[id] = DIRECTORY;
+                    tree.firstChild[id] = next;
+                    tree.childCount[id] = node == null ? previous.childCount[old] : node.getChildren().size();
+                    for (int child = next; child < next + tree.childCount[id]; child++) {
+                        tree.parents[child] = id;
+                    }
+                    next += tree.childCount[id];
+                    continue;
+                }
+
+                PersistentContentCache.Entry entry = node == null ? null : built.get(node);
+                if (entry == null) {
+                    if (old < 0) throw new IllegalStateException("No content built for new file " + node.getName());
+                    tree.carry(id, previous, old);
+                    continue;
+                }
+
+                if (entry.stored) {
+                    tree.flags[id] = STORED;
+                    tree.storedCount++;
+                }
+                if (entry.zipped != null) tree.compressedSize += entry.zipped.length;
+                System.arraycopy(entry.checksum, 0, tree.checksums, id * 16, 16);
+                if (store == null) {
+                    tree.contents[id] = entry.contents;
+                    tree.zipped[id] = entry.zipped;
+                } else {
+                    tree.blocks[id] = store.allocate(entry.contents, entry.zipped);
+                    store.retain(tree.blocks[id]);
+                }
+            }
+        } catch (RuntimeException ex) {
+            tree.releaseContent();
+            throw ex;
+        }
+        tree.leaves = Arrays.copyOf(tree.leaves, tree.leafOffsets[tree.count]);
+        return tree;
+    }
+
+    // Carries a file's content, and any delta to it, over from the previous tree
+    private void carry(int id, CompactTree previous, int old) {
+        flags[id] = previous.flags[old];
+        if ((flags[id] & STORED) != 0) storedCount++;
+        compressedSize += previous.zippedLength(old);
+        System.arraycopy(previous.checksums, old * 16, checksums, id * 16, 16);
+        if (store == null) {
+            contents[id] = previous.contents[old];
+            zipped[id] = previous.zipped[old];
+        } else {
+            blocks[id] = store.relocate(previous.blocks[old]);
+            store.retain(blocks[id]);
+        }
+        PrecomputedDelta delta = previous.deltas.get(old);
+        if (delta != null) deltas.put(id, delta);
+    }
+
+    // The entries of a tree being laid out: the node of each, or null if it is carried over from the previous tree,
+    // with its encoded leaf name and the id of its entry in the previous tree
+    private static final class Layout {
+        private final List<Repository.Node> nodes = new ArrayList<>();
+        private final List<byte[]> leaves = new ArrayList<>();
+        private int[] olds = new int[16];
+        private int size = 0;
+
+        void add(Repository.Node node, byte[] leaf, int old) {
+            if (size == olds.length) olds = Arrays.copyOf(olds, size * 2);
+            nodes.add(node);
+            leaves.add(leaf);
+            olds[size++] = old;
+        }
+    }
+
+    private void appendLeaf(int id, byte[] bytes, int offset, int length) {
+        int start = leafOffsets[id];
+        if (start + length > leaves.length) {
+            leaves = Arrays.copyOf(leaves, Math.max(leaves.length * 2, start + length));
+        }
+        System.arraycopy(bytes, offset, leaves, start, length);
+        leafOffsets[id + 1] = start + length;
+    }
+
+    private boolean leafEquals(int id, byte[] leaf) {
+        return compare(leaves, leafOffsets[id], getLeafLength(id), leaf, 0, leaf.length, false) == 0;
+    }
+
+    // Compares an entry with a child being laid out, in the order Child sorts in
+    private int compareEntry(int id, Child child) {
+        boolean isDirectory = isDirectory(id);
+        if (isDirectory != child.isDirectory) return isDirectory ? 1 : -1;
+        return compare(leaves, leafOffsets[id], getLeafLength(id), child.leaf, 0, child.leaf.length, isDirectory);
+    }
+
+    private static Child[] sorted(List<Repository.Node> children) {
+        Child[] sorted = new Child[children.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = new Child(children.get(i));
+        }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    // A child being laid out, with the encoded last component of its name
+    private static final class Child implements Comparable<Child> {
+        private final Repository.Node node;
+        private final byte[] leaf;
+        private final boolean isDirectory;
+
+        Child(Repository.Node node) {
+            String name = node.getName();
+            this.node = node;
+            this.leaf = name.substring(name.lastIndexOf('/') + 1).getBytes(UTF8);
+            this.isDirectory = node.isDirectory();
+        }
+
+        // As rsync's f_name_cmp for entries of one directory: files sort before directories, then names compare as
+        // unsigned bytes, with a directory's name compared as if it ended in '/'
+        @Override
+        public int compareTo(Child other) {
+            if (isDirectory != other.isDirectory) return isDirectory ? 1 : -1;
+            return compare(leaf, 0, leaf.length, other.leaf, 0, other.leaf.length, isDirectory);
+        }
+    }
+
+    // Compares two leaf names of the same kind of entry as unsigned bytes, a directory's as if it ended in '/'
+    private static int compare(byte[] a, int aOffset, int aLength, byte[] b, int bOffset, int bLength,
+                               boolean isDirectory) {
+        int length = Math.min(aLength, bLength);
+        for (int i = 0; i < length; i++) {
+            int difference = (a[aOffset + i] & 0xff) - (b[bOffset + i] & 0xff);
+            if (difference != 0) return difference;
+        }
+        if (aLength == bLength) return 0;
+        int next = aLength > length ? a[aOffset + length] & 0xff : isDirectory ? '/' : 0;
+        int otherNext = bLength > length ? b[bOffset + length] & 0xff : isDirectory ? '/' : 0;
+        return next - otherNext;
+    }
+
+    private void insert(int id) {
+        int mask = index.length - 1;
+        int slot = spread(nameHashes[id]) & mask;
+        while (index[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        index[slot] = id + 1;
+    }
+
+    private int find(String name) {
+        byte[] bytes = name.getBytes(UTF8);
+        int hash = hash(0, bytes, 0, bytes.length);
+        int mask = index.length - 1;
+        for (int slot = spread(hash) & mask; index[slot] != 0; slot = (slot + 1) & mask) {
+            int id = index[slot] - 1;
+            if (nameHashes[id] == hash && matches(id, bytes)) return id;
+        }
+        return -1;
+    }
+
+    // Continues the hash of a name over more of its UTF-8 bytes, so an entry's hash follows from its parent's and its
+    // leaf without its full name being built
+    private static int hash(int hash, byte[] bytes, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            hash = hash * 31 + (bytes[i] & 0xff);
+        }
+        return hash;
+    }
+
+    // Compares a name with an entry's, from its last component up to the root
+    private boolean matches(int id, byte[] name) {
+        int end = name.length;
+        for (int node = id; ; node = parents[node]) {
+            int start = leafOffsets[node];
+            int length = leafOffsets[node + 1] - start;
+            if (length > end) return false;
+            for (int i = 0; i < length; i++) {
+                if (leaves[start + i] != name[end - length + i]) return false;
+            }
+            end -= length;
+            if (parents[node] < 0) return end == 0;
+            if (end == 0 || name[--end] != '/') return false;
+        }
+    }
+
+    private String nameOf(int id) {
+        int length = -1;
+        for (int node = id; node >= 0; node = parents[node]) {
+            length += leafOffsets[node + 1] - leafOffsets[node] + 1;
+        }
+
+        byte[] bytes = new byte[length];
+        int end = length;
+        for (int node = id; node >= 0; node = parents[node]) {
+            int leafLength = leafOffsets[node + 1] - leafOffsets[node];
+            end -= leafLength;
+            System.arraycopy(leaves, leafOffsets[node], bytes, end, leafLength);
+            if (end > 0) bytes[--end] = '/';
+        }
+        return new String(bytes, UTF8);
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Returns the id of the entry that can stand for the given file node: a file with the same size, modification time
+     * in nanoseconds, and file key.  Without a file key to show that the node is the same file, it is taken to be a
+     * changed file.
+     *
+     * @param node a file node of a newer tree
+     * @return the id of the entry with the node's content, or -1 if there is none
+     */
+    int reusable(Repository.Node node) {
+        Object fileKey = node.getFileKey();
+        if (fileKey == null || node.isDirectory()) return -1;
+        int id = find(node.getName());
+        boolean same = id >= 0 && (flags[id] & DIRECTORY) == 0
+                && sizes[id] == node.getSize()
+                && lastModifiedTimes[id] == node.getLastModifiedTimeNanos()
+                && fileKey.equals(fileKeys[id]);
+        return same ? id : -1;
+    }
+
+    /**
+     * Returns the number of files and directories in the tree.
+     *
+     * @return the number of entries in the tree
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * Returns the root of the tree.
+     *
+     * @return the root of the tree
+     */
+    File getRoot() {
+        return new File(0);
+    }
+
+    /**
+     * Returns the file or directory with the given name.
+     *
+     * @param name the name of the file
+     * @return the file, or null if there is none
+     */
+    File getFile(String name) {
+        int id = find(name);
+        return id < 0 ? null : new File(id);
+    }
+
+    /**
+     * Returns a view of the entry with the given id.
+     *
+     * @param id the entry's id
+     * @return the entry
+     */
+    File getFile(int id) {
+        return new File(id);
+    }
+
+    /**
+     * Returns a read-only view of the tree's files by name.
+     *
+     * @return the files of the tree, by name
+     */
+    Map<String, RsyncFile> getFiles() {
+        return new AbstractMap<String, RsyncFile>() {
+            @Override
+            public RsyncFile get(Object name) {
+                return name instanceof String ? getFile((String)name) : null;
+            }
+
+            @Override
+            public boolean containsKey(Object name) {
+                return name instanceof String && find((String)name) >= 0;
+            }
+
+            @Override
+            public int size() {
+                return count;
+            }
+
+            @Override
+            public Set<Entry<String, RsyncFile>> entrySet() {
+                return new AbstractSet<Entry<String, RsyncFile>>() {
+                    @Override
+                    public Iterator<Entry<String, RsyncFile>> iterator() {
+                        return new Iterator<Entry<String, RsyncFile>>() {
+                            private int next = 0;
+
+                            @Override
+                            public boolean hasNext() {
+                                return next < count;
+                            }
+
+                            @Override
+                            public Entry<String, RsyncFile> next() {
+                                if (next >= count) throw new NoSuchElementException();
+                                int id = next++;
+                                return new SimpleImmutableEntry<String, RsyncFile>(nameOf(id), new File(id));
+                            }
+
+                            @Override
+                            public void remove() {
+                                throw new UnsupportedOperationException();
+                            }
+                        };
+                    }
+
+                    @Override
+                    public int size() {
+                        return count;
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Returns the number of bytes of content compressed when the files were built.
+     *
+     * @return the number of bytes of compressed content held
+     */
+    long getCompressedSize() {
+        return compressedSize;
+    }
+
+    /**
+     * Returns the number of files sent as stored blocks rather than compressed.
+     *
+     * @return the number of stored files
+     */
+    int getStoredCount() {
+        return storedCount;
+    }
+
+    /**
+     * Adds the delta from a file's previous version to its current content.  Deltas are added while the tree is
+     * built, before it is shared with other threads.
+     *
+     * @param file the file, which must be of this tree
+     * @param delta the delta to its content
+     */
+    void addDelta(File file, PrecomputedDelta delta) {
+        deltas.put(file.id, delta);
+    }
+
+    /**
+     * Returns the number of files with a delta from their previous version.
+     *
+     * @return the number of deltas held
+     */
+    int getDeltaCount() {
+        return deltas.size();
+    }
+
+    /**
+     * Returns the number of bytes held by the deltas of changed files, and the previous versions they are from.
+     *
+     * @return the number of bytes of deltas held
+     */
+    long getDeltaSize() {
+        long size = 0;
+        for (PrecomputedDelta delta : deltas.values()) {
+            size += delta.getSize();
+        }
+        return size;
+    }
+
+    /**
+     * Gives up the references to the tree's blocks of content taken as it was built, if it is held in a ContentStore.
+     */
+    void releaseContent() {
+        if (store == null) return;
+        for (ContentStore.Block block : blocks) {
+            if (block != null) store.release(block);
+        }
+    }
+
+    // The length of the content compressed when the file was built, or zero if there is none
+    private int zippedLength(int id) {
+        if (store != null) return blocks[id] == null ? 0 : Math.max(blocks[id].getSecondLength(), 0);
+        return zipped[id] == null ? 0 : zipped[id].length;
+    }
+
+    private CompressedContentCache levelCache(int level) {
+        return level >= 0 && level < levelCaches.length ? levelCaches[level] : null;
+    }
+
+    private static byte[] copyOf(ByteBuffer buffer) {
+        byte[] copy = new byte[buffer.remaining()];
+        buffer.get(copy);
+        return copy;
+    }
+
+    /**
+     * Returns a new list for the files of this tree, which holds each file as its id.  Only files of this tree may be
+     * added to it.
+     *
+     * @return an empty list of files
+     */
+    FileIds newFileList() {
+        return new FileIds();
+    }
+
+    /**
+     * Returns whether an entry is a directory.
+     *
+     * @param id the entry's id
+     * @return true if the entry is a directory
+     */
+    boolean isDirectory(int id) {
+        return (flags[id] & DIRECTORY) != 0;
+    }
+
+    /**
+     * Returns the size of an entry.
+     *
+     * @param id the entry's id
+     * @return the size of the entry
+     */
+    int getSize(int id) {
+        return sizes[id];
+    }
+
+    /**
+     * Returns the modification time of an entry, in seconds.
+     *
+     * @param id the entry's id
+     * @return the modification time of the entry
+     */
+    long getLastModifiedTime(int id) {
+        return lastModifiedTimes[id] / NANOS_PER_SECOND;
+    }
+
+    /**
+     * Returns the id of the parent of an entry.
+     *
+     * @param id the entry's id
+     * @return the id of the entry's parent, or -1 for the root
+     */
+    int getParent(int id) {
+        return parents[id];
+    }
+
+    /**
+     * Returns the id of the first child of a directory; the rest follow it.
+     *
+     * @param id the directory's id
+     * @return the id of the directory's first child
+     */
+    int getFirstChild(int id) {
+        return firstChild[id];
+    }
+
+    /**
+     * Returns the number of children of a directory.
+     *
+     * @param id the directory's id
+     * @return the number of children of the directory
+     */
+    int getChildCount(int id) {
+        return childCount[id];
+    }
+
+    /**
+     * Returns the length of the UTF-8 encoding of the last component of an entry's name.
+     *
+     * @param id the entry's id
+     * @return the length of the entry's encoded leaf name
+     */
+    int getLeafLength(int id) {
+        return leafOffsets[id + 1] - leafOffsets[id];
+    }
+
+    /**
+     * Copies the UTF-8 encoding of the last component of an entry's name into a buffer.
+     *
+     * @param id the entry's id
+     * @param target the buffer to copy into
+     * @param offset the position in the buffer to copy to
+     * @return the position in the buffer after the name
+     */
+    int copyLeaf(int id, byte[] target, int offset) {
+        int length = getLeafLength(id);
+        System.arraycopy(leaves, leafOffsets[id], target, offset, length);
+        return offset + length;
+    }
+
+    /**
+     * Copies an entry's MD5 checksum into a buffer.
+     *
+     * @param id the entry's id
+     * @param target the buffer to copy into
+     * @param offset the position in the buffer to copy to
+     */
+    void copyChecksum(int id, byte[] target, int offset) {
+        System.arraycopy(checksums, id * 16, target, offset, 16);
+    }
+
+    // A view of one entry of the tree
+    final class File implements RsyncFile {
+        private final int id;
+
+        private File(int id) {
+            this.id = id;
+        }
+
+        // The content object, which is carried from one generation to the next with the file
+        private Object contentKey() {
+            if (store == null) return contents[id];
+            return blocks[id] == null ? null : blocks[id].getKey();
+        }
+
+        @Override public String getName() { return nameOf(id); }
+        @Override public int getSize() { return sizes[id]; }
+        @Override public long getLastModifiedTime() { return lastModifiedTimes[id] / NANOS_PER_SECOND; }
+        @Override public boolean isDirectory() { return (flags[id] & DIRECTORY) != 0; }
+        @Override public boolean isStored() { return (flags[id] & STORED) != 0; }
+
+        @Override
+        public byte[] getChecksum() {
+            return isDirectory() ? null : Arrays.copyOfRange(checksums, id * 16, id * 16 + 16);
+        }
+
+        @Override
+        public byte[] getContents() {
+            if (store == null) return contents[id];
+            return blocks[id] == null ? null : copyOf(blocks[id].first());
+        }
+
+        @Override
+        public ByteBuffer getContentBuffer() {
+            if (store != null) return blocks[id] == null ? null : blocks[id].first();
+            return contents[id] == null ? null : ByteBuffer.wrap(contents[id]);
+        }
+
+        @Override
+        public byte[] getCompressedContents() {
+            if (isDirectory()) return null;
+            if (isStored()) return StoredBlocks.frame(getContentBuffer());
+            if (store != null) {
+                if (blocks[id].hasSecond()) return copyOf(blocks[id].second());
+            } else if (zipped[id] != null) {
+                return zipped[id];
+            }
+            return compressedCache == null ? null : compressedCache.get(this);
+        }
+
+        @Override
+        public byte[] getCompressedContents(int level) {
+            CompressedContentCache cache = levelCache(level);
+            if (cache == null || isDirectory() || isStored()) return getCompressedContents();
+            return cache.get(this);
+        }
+
+        @Override
+        public ByteBuffer getCompressedContentBuffer(int level) {
+            if (store != null && !isDirectory() && blocks[id].hasSecond() && levelCache(level) == null) {
+                return blocks[id].second();
+            }
+            byte[] compressed = getCompressedContents(level);
+            return compressed == null ? null : ByteBuffer.wrap(compressed);
+        }
+
+        @Override
+        public ByteBuffer getDeltaBuffer(Checksums checksums, int checksumSeed, boolean compressed) {
+            PrecomputedDelta delta = deltas.get(id);
+            if (delta == null || !delta.matches(checksums, checksumSeed)) return null;
+            return ByteBuffer.wrap(delta.getDelta(compressed));
+        }
+
+        @Override
+        public List<RsyncFile> getChildren() {
+            if (!isDirectory()) return null;
+            final int first = firstChild[id];
+            final int size = childCount[id];
+            return new AbstractList<RsyncFile>() {
+                @Override
+                public RsyncFile get(int index) {
+                    if (index < 0 || index >= size) throw new IndexOutOfBoundsException(Integer.toString(index));
+                    return new File(first + index);
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+            };
+        }
+
+        /**
+         * Returns the tree the file is an entry of.
+         *
+         * @return the file's tree
+         */
+        CompactTree getTree() {
+            return CompactTree.this;
+        }
+
+        /**
+         * Returns the file's id within its tree.
+         *
+         * @return the file's id
+         */
+        int getId() {
+            return id;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof File)) return false;
+            File that = (File)other;
+            Object content = contentKey();
+            if (content == null) return that.getTree() == getTree() && that.id == id;
+            return content == that.contentKey();
+        }
+
+        @Override
+        public int hashCode() {
+            Object content = contentKey();
+            return content == null ? id : System.identityHashCode(content);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("RsyncFile(%s, %d, %d zipped)", nameOf(id), sizes[id], zippedLength(id));
+        }
+    }
+
+    // A growable list of ids, viewed as the files they identify
+    final class FileIds extends AbstractList<RsyncFile> {
+        private int[] ids = new int[8];
+        private int size = 0;
+
+        @Override
+        public boolean add(RsyncFile file) {
+            File view = (File)file;
+            if (view.getTree() != CompactTree.this) throw new IllegalArgumentException("File is not of this tree: " + file);
+            add(view.id);
+            return true;
+        }
+
+        /**
+         * Adds an entry of the tree by its id, without a view of it.
+         *
+         * @param id the entry's id
+         */
+        void add(int id) {
+            if (size == ids.length) ids = Arrays.copyOf(ids, size + (size >> 1));
+            ids[size++] = id;
+        }
+
+        @Override
+        public RsyncFile get(int index) {
+            if (index < 0 || index >= size) throw new IndexOutOfBoundsException(Integer.toString(index));
+            return new File(ids[index]);
+        }
+
+        /**
+         * Returns the id of an entry of the list, without a view of it.
+         *
+         * @param index the entry's position in the list
+         * @return the entry's id
+         */
+        int getId(int index) {
+            if (index < 0 || index >= size) throw new IndexOutOfBoundsException(Integer.toString(index));
+            return ids[index];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
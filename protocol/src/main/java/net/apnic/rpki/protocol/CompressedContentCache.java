@@ -0,0 +1,180 @@
+package net.apnic.rpki.protocol;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A memory-bounded cache of compressed file content, for modules that compress files on first use rather than when
+ * they are built.
+ *
+ * Eviction is segmented LRU: a file compressed for the first time enters a probationary segment, and moves to a
+ * protected segment, holding up to 80% of the capacity, if it is requested again while still cached.  Files requested
+ * by most clients, such as trust anchor certificates and busy manifests, therefore stay resident while files fetched
+ * once by a single client are evicted first.
+ *
+ * Each cache holds content compressed at a single level.  Compression happens on the requesting thread, outside the
+ * cache's lock.  Two threads missing on the same file at once may both compress it; the first result cached is kept.
+ *
+ * @author bje
+ * @since 1.1
+ */
+// CHECKSTYLE:OFF MagicNumber
+class CompressedContentCache {
+    private final long capacity;
+    private final long protectedCapacity;
+    private final ContentBuilder contentBuilder;
+    private final int level;
+
+    // Keyed by RsyncFile equality: a file re-used by a new generation is the same key, a rebuilt file a new one
+    private final LinkedHashMap<RsyncFile, byte[]> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<RsyncFile, byte[]> protect = new LinkedHashMap<>(16, 0.75f, true);
+    private long probationSize = 0;
+    private long protectedSize = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * Constructs a cache holding up to approximately capacity bytes of content compressed at the given level.
+     *
+     * @param capacity the approximate number of bytes of compressed content to retain
+     * @param contentBuilder compresses content on a cache miss
+     * @param level the compression level, from 0 to 9
+     */
+    CompressedContentCache(long capacity, ContentBuilder contentBuilder, int level) {
+        this.capacity = capacity;
+        this.protectedCapacity = capacity * 4 / 5;
+        this.contentBuilder = contentBuilder;
+        this.level = level;
+    }
+
+    /**
+     * Returns the compressed content of a file, compressing it if it is not cached.
+     *
+     * @param file the file whose content is wanted
+     * @return the compressed content, framed as for getCompressedContents()
+     */
+    byte[] get(RsyncFile file) {
+        synchronized (this) {
+            byte[] zipped = protect.get(file);
+            if (zipped != null) {
+                hits++;
+                return zipped;
+            }
+
+            zipped = probation.remove(file);
+            if (zipped != null) {
+                hits++;
+                probationSize -= zipped.length;
+                protect.put(file, zipped);
+                protectedSize += zipped.length;
+                demote();
+                return zipped;
+            }
+            misses++;
+        }
+
+        byte[] zipped = contentBuilder.compress(file.getName(), file.getContents(), file.getSize(),
+                file.getChecksum(), level);
+
+        synchronized (this) {
+            byte[] existing = protect.get(file);
+            if (existing == null) existing = probation.get(file);
+            if (existing != null) return existing;
+
+            probation.put(file, zipped);
+            probationSize += zipped.length;
+            evict();
+        }
+        return zipped;
+    }
+
+    /**
+     * Discards cached content for files that are not part of the given generation, and keys the rest by that
+     * generation's files, so that nothing of an older generation is held.
+     *
+     * @param current the files of the current generation, by name
+     */
+    synchronized void retain(Map<String, ? extends RsyncFile> current) {
+        probationSize -= removeStale(probation, current);
+        protectedSize -= removeStale(protect, current);
+    }
+
+    private long removeStale(Map<RsyncFile, byte[]> segment, Map<String, ? extends RsyncFile> current) {
+        long removed = 0;
+        Map<RsyncFile, byte[]> kept = new LinkedHashMap<>();
+        for (Map.Entry<RsyncFile, byte[]> entry : segment.entrySet()) {
+            RsyncFile file = current.get(entry.getKey().getName());
+            if (entry.getKey().equals(file)) {
+                kept.put(file, entry.getValue());
+            } else {
+                removed += entry.getValue().length;
+            }
+        }
+
+        // Re-inserting in iteration order keeps the segment's recency order
+        segment.clear();
+        segment.putAll(kept);
+        return removed;
+    }
+
+    // Moves the least recently used protected files back to probation until the protected segment fits
+    private void demote() {
+        Iterator<Map.Entry<RsyncFile, byte[]>> it = protect.entrySet().iterator();
+        while (protectedSize > protectedCapacity && protect.size() > 1) {
+            Map.Entry<RsyncFile, byte[]> eldest = it.next();
+            it.remove();
+            protectedSize -= eldest.getValue().length;
+            probation.put(eldest.getKey(), eldest.getValue());
+            probationSize += eldest.getValue().length;
+        }
+        evict();
+    }
+
+    // Evicts probationary files, then protected files, until the cache fits
+    private void evict() {
+        Iterator<byte[]> it = probation.values().iterator();
+        while (probationSize + protectedSize > capacity && it.hasNext()) {
+            probationSize -= it.next().length;
+            it.remove();
+            evictions++;
+        }
+
+        it = protect.values().iterator();
+        while (probationSize + protectedSize > capacity && it.hasNext()) {
+            protectedSize -= it.next().length;
+            it.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Returns the compression level of the content held.
+     *
+     * @return the compression level
+     */
+    int getLevel() {
+        return level;
+    }
+
+    /**
+     * Returns the number of bytes of compressed content held.
+     *
+     * @return the number of bytes of compressed content held
+     */
+    synchronized long getSize() {
+        return probationSize + protectedSize;
+    }
+
+    synchronized boolean contains(RsyncFile file) {
+        return protect.containsKey(file) || probation.containsKey(file);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("level %d: %d files, %d bytes (%d protected), %d hits, %d misses, %d evictions",
+                level, probation.size() + protect.size(), probationSize + protectedSize, protectedSize, hits, misses,
+                evictions);
+    }
+}
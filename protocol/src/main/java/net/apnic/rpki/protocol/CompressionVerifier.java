@@ -0,0 +1,81 @@
+package net.apnic.rpki.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Checks that a file's compressed content is a valid rsync token stream for its raw content, by decoding it the way
+ * an rsync receiver does: gathering the DEFLATED_DATA tokens up to the END_FLAG, inflating them with the sync marker
+ * restored, and comparing the result and the trailing checksum with the raw content.
+ *
+ * Used to prove a compression engine before trusting its output to clients.
+ *
+ * @author bje
+ * @since 1.1
+ */
+// CHECKSTYLE:OFF MagicNumber
+final class CompressionVerifier {
+    private static final int DEFLATED_DATA = 0x40;
+    private static final int END_FLAG = 0x00;
+    private static final byte[] SYNC_MARKER = new byte[] { 0x00, 0x00, (byte)0xff, (byte)0xff };
+
+    private CompressionVerifier() {
+    }
+
+    /**
+     * Verifies compressed content against raw content.
+     *
+     * @param name the file's name, for error messages
+     * @param contents the raw content, framed as for RsyncFile.getContents()
+     * @param zipped the compressed content, framed as for RsyncFile.getCompressedContents()
+     * @throws IllegalStateException if the compressed content does not decode to the raw content
+     */
+    static void verify(String name, byte[] contents, byte[] zipped) {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream(contents.length);
+        int position = 0;
+        for (int size = Compressor.rawChunkSize(contents, 0); size != 0;
+             size = Compressor.rawChunkSize(contents, position)) {
+            raw.write(contents, position + 4, size);
+            position += size + 4;
+        }
+        byte[] checksum = Arrays.copyOfRange(contents, position + 4, position + 20);
+
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream(zipped.length);
+        position = 0;
+        while ((zipped[position] & 0xff) != END_FLAG) {
+            int flag = zipped[position] & 0xff;
+            if ((flag & 0xc0) != DEFLATED_DATA)
+                throw new IllegalStateException(name + ": unexpected token flag " + flag + " at " + position);
+            int size = (flag & 0x3f) << 8 | (zipped[position + 1] & 0xff);
+            deflated.write(zipped, position + 2, size);
+            position += size + 2;
+        }
+        if (!Arrays.equals(checksum, Arrays.copyOfRange(zipped, position + 1, position + 17)))
+            throw new IllegalStateException(name + ": compressed checksum differs from raw checksum");
+        if (position + 17 != zipped.length)
+            throw new IllegalStateException(name + ": trailing bytes after compressed checksum");
+
+        deflated.write(SYNC_MARKER, 0, SYNC_MARKER.length);
+        byte[] input = deflated.toByteArray();
+        byte[] expected = raw.toByteArray();
+        byte[] inflated = new byte[expected.length + 1];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(input);
+            int length = 0;
+            for (int n = 1; n > 0 && length < inflated.length; length += n) {
+                n = inflater.inflate(inflated, length, inflated.length - length);
+            }
+            if (length != expected.length || !Arrays.equals(expected, Arrays.copyOf(inflated, length)))
+                throw new IllegalStateException(name + ": compressed content does not inflate to the raw content");
+            if (inflater.getRemaining() != 0)
+                throw new IllegalStateException(name + ": compressed content has unused trailing data");
+        } catch (DataFormatException ex) {
+            throw new IllegalStateException(name + ": compressed content is not a valid deflate stream", ex);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package net.apnic.rpki.protocol;
+
+/**
+ * Produces the deflate stream an rsync receiver inflates for a compressed whole-file transfer: raw deflate at a fixed
+ * level, ending in a sync flush whose four byte empty stored block (00 00 ff ff) is removed, as rsync itself does.
+ *
+ * A Compressor holds its deflater and buffers between calls, and is not safe for use from multiple threads.
+ *
+ * @author bje
+ * @since 1.1
+ */
+// CHECKSTYLE:OFF MagicNumber
+abstract class Compressor {
+    protected final int level;
+
+    protected Compressor(int level) {
+        this.level = level;
+    }
+
+    /**
+     * Deflates the content held in a raw chunked array, without first gathering it into a single array.
+     *
+     * @param chunked the raw content, framed as for RsyncFile.getContents()
+     * @param length the length of the unframed content
+     * @return the deflate stream, less its final sync marker
+     */
+    abstract byte[] deflate(byte[] chunked, int length);
+
+    /**
+     * Deflates a run of contiguous bytes as a part of a stream that refers to nothing before it, for the literal data
+     * of a delta transfer.  The receiver's history holds the matched blocks between runs, which the deflater never
+     * sees, so each run starts afresh.
+     *
+     * @param data the bytes holding the run
+     * @param offset the position of the run
+     * @param length the length of the run
+     * @return the deflate stream, less its final sync marker
+     */
+    abstract byte[] deflate(byte[] data, int offset, int length);
+
+    /**
+     * Returns the length of the raw chunk at position, which is zero at the end of the content.  Each raw chunk is a
+     * four byte little-endian length followed by that many bytes.
+     *
+     * @param chunked the raw content
+     * @param position the position of a chunk header
+     * @return the length of the chunk
+     */
+    static int rawChunkSize(byte[] chunked, int position) {
+        return (chunked[position] & 0xff) | (chunked[position + 1] & 0xff) << 8
+                | (chunked[position + 2] & 0xff) << 16 | (chunked[position + 3] & 0xff) << 24;
+    }
+
+    /**
+     * Creates a compressor using the given engine.
+     *
+     * @param engine the deflate implementation to use
+     * @param level the compression level, from 0 to 9
+     * @return a new compressor
+     */
+    static Compressor create(ModuleConfiguration.CompressionEngine engine, int level) {
+        switch (engine) {
+            case JDK:
+                return new JdkCompressor(level);
+            case JZLIB:
+            default:
+                return new JZlibCompressor(level);
+        }
+    }
+}
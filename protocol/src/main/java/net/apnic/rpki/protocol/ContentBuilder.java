@@ -0,0 +1,257 @@
+package net.apnic.rpki.protocol;
+
+import net.apnic.rpki.data.Repository;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * Hashes, frames, and compresses file content for a MemoryCachedModule on a bounded pool of low-priority daemon
+ * threads, so that a large rebuild competes as little as possible with the threads serving clients.  Each worker has
+ * its own digest, and a Compressor for each level it has been asked for.  Idle workers exit, so a module that is not
+ * rebuilding holds no threads.
+ *
+ * Before compressing a file, a worker compresses a sample from its start at the fastest level.  A file whose sample
+ * shrinks by less than the module's minimum compression gain is marked as stored rather than compressed, as most
+ * signed objects are, and is sent as deflate stored blocks framed from its raw content.
+ *
+ * A builder may leave compression out of the build, for content to be compressed on first use instead.  It may also
+ * verify everything it compresses with the CompressionVerifier, refusing to produce content that fails.
+ *
+ * @author bje
+ * @since 1.1
+ */
+// CHECKSTYLE:OFF MagicNumber
+class ContentBuilder {
+    // Files per task: enough to amortise task overhead, few enough to balance load across workers
+    private static final int BATCH_SIZE = 64;
+
+    // Bytes sampled to decide whether a file is worth compressing; RPKI objects are mostly smaller than this
+    private static final int SAMPLE_SIZE = 4096;
+
+    private final ThreadPoolExecutor pool;
+    private final boolean compressing;
+    private final boolean verifying;
+    private final ModuleConfiguration.CompressionEngine engine;
+    private final int level;
+    private final int minimumGain;
+
+    private final ThreadLocal<Worker> workers = new ThreadLocal<Worker>() {
+        @Override
+        protected Worker initialValue() {
+            return new Worker();
+        }
+    };
+
+    /**
+     * Constructs a ContentBuilder with the build threads, compression mode, compression engine, default compression
+     * level, minimum compression gain, and verification given by a module's configuration.
+     *
+     * @param name a name for the worker threads
+     * @param configuration the module's configuration
+     */
+    ContentBuilder(final String name, ModuleConfiguration configuration) {
+        this.compressing = configuration.getCompressionMode() == ModuleConfiguration.CompressionMode.EAGER;
+        this.verifying = configuration.isVerifyingCompression();
+        this.engine = configuration.getCompressionEngine();
+        this.level = configuration.getCompressionLevel();
+        this.minimumGain = configuration.getMinimumCompressionGain();
+        int threads = configuration.getBuildThreads();
+        pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, name + "-" + count.getAndIncrement());
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Builds the cached form of each given file, consulting and updating the persistent cache if there is one.
+     *
+     * @param nodes the file nodes to build
+     * @param persistentCache the persistent cache, or null
+     * @return the built entries, in the same order as nodes
+     */
+    List<PersistentContentCache.Entry> build(final List<Repository.Node> nodes,
+                                             final PersistentContentCache persistentCache) {
+        List<Future<List<PersistentContentCache.Entry>>> batches = new ArrayList<>();
+        for (int start = 0; start < nodes.size(); start += BATCH_SIZE) {
+            final List<Repository.Node> batch = nodes.subList(start, Math.min(nodes.size(), start + BATCH_SIZE));
+            batches.add(pool.submit(new Callable<List<PersistentContentCache.Entry>>() {
+                @Override
+                public List<PersistentContentCache.Entry> call() {
+                    Worker worker = workers.get();
+                    List<PersistentContentCache.Entry> entries = new ArrayList<>(batch.size());
+                    for (Repository.Node node : batch) {
+                        PersistentContentCache.Entry entry = persistentCache == null
+                                ? null : persistentCache.lookup(node);
+                        if (entry == null) {
+                            entry = worker.build(node);
+                            if (persistentCache != null) persistentCache.store(node, entry);
+                        }
+                        entries.add(entry);
+                    }
+                    return entries;
+                }
+            }));
+        }
+
+        List<PersistentContentCache.Entry> entries = new ArrayList<>(nodes.size());
+        try {
+            for (Future<List<PersistentContentCache.Entry>> batch : batches) {
+                entries.addAll(batch.get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) throw (RuntimeException)ex.getCause();
+            throw new RuntimeException(ex.getCause());
+        }
+        return entries;
+    }
+
+    /**
+     * Compresses framed raw content on the calling thread, using that thread's own deflater for the level.
+     *
+     * @param name the file's name
+     * @param contents the raw content, framed as for RsyncFile.getContents()
+     * @param length the length of the unframed content
+     * @param checksum the checksum of the content
+     * @param level the compression level, from 0 to 9
+     * @return the compressed content, framed as for RsyncFile.getCompressedContents()
+     */
+    byte[] compress(String name, byte[] contents, int length, byte[] checksum, int level) {
+        return workers.get().compress(name, contents, length, checksum, level);
+    }
+
+    /**
+     * Returns the maximum number of worker threads.
+     *
+     * @return the maximum number of worker threads
+     */
+    int getThreads() {
+        return pool.getMaximumPoolSize();
+    }
+
+    // The per-thread state for building entries
+    private class Worker {
+        private final MessageDigest messageDigest;
+        private final Compressor[] compressors = new Compressor[10];
+        private final Deflater sampler = new Deflater(Deflater.BEST_SPEED, true);
+        private final byte[] sample = new byte[SAMPLE_SIZE];
+        private final byte[] sampled = new byte[SAMPLE_SIZE];
+
+        Worker() {
+            try {
+                messageDigest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException ex) {
+                // MD5 is guaranteed available by spec, this only happens if your JRE is broken
+                throw new RuntimeException(ex);
+            }
+        }
+
+        PersistentContentCache.Entry build(Repository.Node node) {
+            try {
+                return build(node, node.getContentBuffer());
+            } catch (InternalError ex) {
+                // A mapped file truncated while it is read faults; the repository sees the change and rebuilds
+                throw new IllegalStateException("File has changed since it was scanned: " + node.getName(), ex);
+            }
+        }
+
+        // Works from the buffer, which for some repositories is mapped rather than held on the heap
+        private PersistentContentCache.Entry build(Repository.Node node, ByteBuffer raw) {
+            messageDigest.reset();
+            messageDigest.update(raw.duplicate());
+            byte[] digest = messageDigest.digest();
+            assert digest.length == 16;
+            byte[] chunked = chunkContents(raw, digest, false);
+            boolean stored = minimumGain > 0 && !worthCompressing(raw);
+            if (stored && verifying) {
+                CompressionVerifier.verify(node.getName(), chunked, StoredBlocks.frame(ByteBuffer.wrap(chunked)));
+            }
+            byte[] compressed = compressing && !stored
+                    ? compress(node.getName(), chunked, raw.remaining(), digest, level) : null;
+            return new PersistentContentCache.Entry(digest, chunked, compressed, stored);
+        }
+
+        // Compresses the start of the content at the fastest level, to estimate the gain from compressing all of it
+        boolean worthCompressing(ByteBuffer raw) {
+            int length = Math.min(raw.remaining(), SAMPLE_SIZE);
+            if (length == 0) return false;
+            raw.duplicate().get(sample, 0, length);
+            sampler.reset();
+            sampler.setInput(sample, 0, length);
+            sampler.finish();
+            int deflated = 0;
+            while (!sampler.finished()) {
+                deflated += sampler.deflate(sampled);
+            }
+            return (length - deflated) * 100L >= (long)minimumGain * length;
+        }
+
+        byte[] compress(String name, byte[] chunked, int length, byte[] checksum, int level) {
+            if (compressors[level] == null) compressors[level] = Compressor.create(engine, level);
+            byte[] zipped = chunkContents(ByteBuffer.wrap(compressors[level].deflate(chunked, length)), checksum, true);
+            if (verifying) CompressionVerifier.verify(name, chunked, zipped);
+            return zipped;
+        }
+    }
+
+    static byte[] chunkContents(ByteBuffer buffer, byte[] checksum, boolean zipped) {
+        final ByteBuffer source = buffer.duplicate();
+        final int length = source.remaining();
+        final byte[] out;
+        if (zipped) {
+            // chunks of 0x3fff bytes, two length bytes, 16 checksum bytes, 1 byte eof marker
+            out = new byte[length + ((length + 16382) / 16383) * 2 + 17];
+            int oo = 0;
+            for (int n = 0; n < length; n += 16383) {
+                int size = Math.min(16383, length - n);
+                out[oo] = (byte)(0x40 + (size >> 8));
+                out[oo+1] = (byte)(size & 0xff);
+                source.get(out, oo + 2, size);
+                oo += size + 2;
+            }
+            out[oo] = 0;
+            System.arraycopy(checksum, 0, out, oo+1, 16);
+        } else {
+            // chunks of 0x8000 bytes, four length bytes, 16 checksum bytes, 4 bytes eof marker
+            out = new byte[length + ((length + 32767) / 32768) * 4 + 20];
+            int oo = 0;
+            for (int n = 0; n < length; n += 32768) {
+                int size = Math.min(0x8000, length - n);
+                out[oo] = (byte)(size & 0xff);
+                out[oo+1] = (byte)((size >> 8) & 0xff);
+                out[oo+2] = (byte)((size >> 16) & 0xff);
+                out[oo+3] = (byte)((size >> 24) & 0xff);
+                source.get(out, oo + 4, size);
+                oo += size + 4;
+            }
+            out[oo++] = 0; out[oo++] = 0; out[oo++] = 0; out[oo++] = 0;
+            System.arraycopy(checksum, 0, out, oo, 16);
+        }
+
+        return out;
+    }
+}
@@ -0,0 +1,257 @@
+package net.apnic.rpki.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Holds file content and file list data outside the Java heap, so that a large module does not lengthen garbage
+ * collection pauses.  Content is copied into direct buffer slabs of 1 MiB, each block of content taking the next free
+ * space in the current slab; content too large to share a slab gets a direct buffer of its own.
+ *
+ * Blocks are reference counted, with a reference held by each module generation or file list using them.  A slab is
+ * re-used once it is no longer being filled and every block in it has been released, so its memory is held until
+ * the last client of an old generation has finished with it.  A few empty slabs are kept for re-use; any more are
+ * left for the garbage collector to free.
+ *
+ * Space freed within a slab is not re-used in place.  Instead, a generation carrying a block over from its
+ * predecessor relocates it if its slab is less than half live, copying it to the slab being filled.  The copy stands
+ * for the same content as the block it was made from, and once the older generation is released the sparse slab is
+ * emptied and re-used, so a module holds slabs in proportion to its live content rather than to all the content that
+ * has passed through it.
+ *
+ * The store is safe for use from multiple threads.
+ *
+ * @author bje
+ * @since 1.1
+ */
+// CHECKSTYLE:OFF MagicNumber
+final class ContentStore {
+    private static final int SLAB_SIZE = 1024 * 1024;
+    private static final int MAX_SHARED_BLOCK = SLAB_SIZE / 4;
+    private static final int MAX_FREE_SLABS = 16;
+
+    private final ArrayDeque<Slab> free = new ArrayDeque<>();
+    private Slab current = null;
+    private int slabCount = 0;
+    private int blockCount = 0;
+    private long liveBytes = 0;
+    private long relocations = 0;
+
+    private static final class Slab {
+        private final ByteBuffer buffer;
+        private final boolean shared;
+        private int used = 0;
+        private int live = 0;
+        private int liveBytes = 0;
+
+        Slab(int capacity, boolean shared) {
+            this.buffer = ByteBuffer.allocateDirect(capacity);
+            this.shared = shared;
+        }
+    }
+
+    /**
+     * One or two consecutive runs of bytes held in the store, such as a file's raw content and its compressed
+     * content.  Views of the bytes are created on each request, so a block costs the heap only its own fields.
+     */
+    static final class Block {
+        private Slab slab;                  // cleared once freed, as relocated copies keep the block as their key
+        private final int offset;
+        private final int firstLength;
+        private final int secondLength;
+        private final Object key;
+        private int references = 0;
+
+        private Block(Slab slab, int offset, int firstLength, int secondLength, Object key) {
+            this.slab = slab;
+            this.offset = offset;
+            this.firstLength = firstLength;
+            this.secondLength = secondLength;
+            this.key = key == null ? this : key;
+        }
+
+        private ByteBuffer view(int from, int length) {
+            ByteBuffer view = slab.buffer.duplicate();
+            view.limit(from + length);
+            view.position(from);
+            return view.slice();
+        }
+
+        /**
+         * Returns a view of the first run of bytes.
+         *
+         * @return a view of the first run of bytes
+         */
+        ByteBuffer first() {
+            return view(offset, firstLength);
+        }
+
+        /**
+         * Returns true if the block holds a second run of bytes.
+         *
+         * @return true if the block holds a second run of bytes
+         */
+        boolean hasSecond() {
+            return secondLength >= 0;
+        }
+
+        /**
+         * Returns a view of the second run of bytes, or null if there is none.
+         *
+         * @return a view of the second run of bytes, or null
+         */
+        ByteBuffer second() {
+            return hasSecond() ? view(offset + firstLength, secondLength) : null;
+        }
+
+        int getSecondLength() {
+            return Math.max(secondLength, 0);
+        }
+
+        /**
+         * Returns an object standing for the content held: the block itself, or for a relocated copy, the block it
+         * was first stored as.
+         *
+         * @return the identity of the block's content
+         */
+        Object getKey() {
+            return key;
+        }
+
+        private int size() {
+            return firstLength + getSecondLength();
+        }
+    }
+
+    /**
+     * Copies one or two arrays into the store.  The block returned has no references; it is freed once it has been
+     * retained and then released as often.
+     *
+     * @param first the first array to store
+     * @param second the second array to store, or null
+     * @return the block holding the arrays
+     */
+    synchronized Block allocate(byte[] first, byte[] second) {
+        return allocate(first, first.length, second);
+    }
+
+    /**
+     * Copies the start of an array into the store, as allocate(byte[], byte[]) does a whole array.
+     *
+     * @param data the array holding the bytes to store
+     * @param length the number of bytes to store
+     * @return the block holding the bytes
+     */
+    synchronized Block allocate(byte[] data, int length) {
+        return allocate(data, length, null);
+    }
+
+    private Block allocate(byte[] first, int firstLength, byte[] second) {
+        Block block = place(firstLength, second == null ? -1 : second.length, null);
+        ByteBuffer target = block.slab.buffer.duplicate();
+        target.position(block.offset);
+        target.put(first, 0, firstLength);
+        if (second != null) target.put(second);
+        return block;
+    }
+
+    // Reserves space for a new block, in the slab being filled or, if it is too large to share one, in its own
+    private Block place(int firstLength, int secondLength, Object key) {
+        int size = firstLength + Math.max(secondLength, 0);
+        Slab slab;
+        if (size > MAX_SHARED_BLOCK) {
+            slab = new Slab(size, false);
+            slabCount++;
+        } else {
+            if (current == null || current.used + size > SLAB_SIZE) {
+                Slab full = current;
+                current = free.isEmpty() ? newSharedSlab() : free.pop();
+                if (full != null && full.live == 0) recycle(full);
+            }
+            slab = current;
+        }
+
+        Block block = new Block(slab, slab.used, firstLength, secondLength, key);
+        slab.used += size;
+        slab.live++;
+        slab.liveBytes += size;
+        blockCount++;
+        liveBytes += size;
+        return block;
+    }
+
+    /**
+     * Returns the block to hold the given block's content in a new generation: the block itself, or, if the slab
+     * holding it is less than half live, a copy of it in the slab being filled.  The copy has no references, and has
+     * the same key as the block it was made from.
+     *
+     * @param block a block, retained by the previous generation
+     * @return the block, or a copy of it
+     */
+    synchronized Block relocate(Block block) {
+        Slab slab = block.slab;
+        if (!slab.shared || slab == current || slab.liveBytes >= SLAB_SIZE / 2) return block;
+
+        Block copy = place(block.firstLength, block.secondLength, block.key);
+        ByteBuffer target = copy.slab.buffer.duplicate();
+        target.position(copy.offset);
+        target.put(block.view(block.offset, block.size()));
+        relocations++;
+        return copy;
+    }
+
+    private Slab newSharedSlab() {
+        slabCount++;
+        return new Slab(SLAB_SIZE, true);
+    }
+
+    /**
+     * Takes a reference to a block.
+     *
+     * @param block the block to retain
+     */
+    synchronized void retain(Block block) {
+        block.references++;
+    }
+
+    /**
+     * Gives up a reference to a block, freeing its space once no references remain.
+     *
+     * @param block the block to release
+     */
+    synchronized void release(Block block) {
+        if (--block.references > 0) return;
+
+        Slab slab = block.slab;
+        block.slab = null;
+        slab.live--;
+        slab.liveBytes -= block.size();
+        blockCount--;
+        liveBytes -= block.size();
+        if (slab.live == 0 && slab != current) recycle(slab);
+    }
+
+    // Keeps an empty shared slab for re-use if there is room, otherwise leaves it to the garbage collector
+    private void recycle(Slab slab) {
+        if (slab.shared && free.size() < MAX_FREE_SLABS) {
+            slab.used = 0;
+            free.push(slab);
+        } else {
+            slabCount--;
+        }
+    }
+
+    synchronized int getSlabCount() {
+        return slabCount;
+    }
+
+    synchronized long getLiveBytes() {
+        return liveBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d slabs (%d free), %d bytes in %d blocks, %d relocated", slabCount, free.size(),
+                liveBytes, blockCount, relocations);
+    }
+}
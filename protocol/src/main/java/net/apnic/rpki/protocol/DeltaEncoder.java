@@ -0,0 +1,303 @@
+package net.apnic.rpki.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Encodes a file's content as an rsync delta against the basis file a client has described with its block checksums,
+ * as rsync's sender does in match.c: a rolling checksum runs over the content, and each window whose rolling checksum
+ * and MD5 match a block of the basis is sent as a token naming the block, the bytes between them as literal data.
+ *
+ * Tokens are written as rsync's uncompressed token stream, or as its deflated token stream for clients asking for
+ * compression.  rsync's own sender adds the matched blocks to its deflater's history, as the receiver does, which
+ * needs a zlib extension neither deflate engine has.  Each run of literal data is instead deflated afresh, so that it
+ * never refers back to history the receiver holds and the deflater does not.
+ *
+ * An encoder holds its buffers, digest, and compressors between files, and is not safe for use from multiple threads.
+ *
+ * @author bje
+ * @since 1.1
+ */
+// CHECKSTYLE:OFF MagicNumber
+final class DeltaEncoder {
+    // As rsync's CHUNK_SIZE: the most literal data sent under one uncompressed length
+    private static final int CHUNK_SIZE = 32 * 1024;
+
+    private static final int END_FLAG = 0x00;
+    private static final int TOKEN_LONG = 0x20;
+    private static final int TOKENRUN_LONG = 0x21;
+    private static final int DEFLATED_DATA = 0x40;
+    private static final int TOKEN_REL = 0x80;
+    private static final int TOKENRUN_REL = 0xc0;
+    private static final int MAX_DATA_COUNT = 16383;
+
+    private final MessageDigest digest;
+    private final ModuleConfiguration.CompressionEngine engine;
+    private final Compressor[] compressors = new Compressor[11];
+
+    private byte[] data = new byte[0];
+    private int[] heads = new int[0];
+    private int[] chain = new int[0];
+    private int mask;
+    private int checksumPosition;
+    private byte[] out = new byte[1024];
+    private int length;
+
+    // The state of the deflated token stream: the run of consecutive tokens not yet written
+    private int runStart;
+    private int runEnd;
+    private int lastRunEnd;
+
+    DeltaEncoder(ModuleConfiguration.CompressionEngine engine) {
+        this.engine = engine;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            // MD5 is guaranteed available by spec, this only happens if your JRE is broken
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Encodes content as a delta against the client's basis, followed by the content's checksum.  Compressed tokens
+     * are deflated at the given level, or at zlib's default level for -1 or any level zlib does not have.
+     *
+     * @param contents the raw content, framed as for RsyncFile.getContents()
+     * @param checksums the client's checksums of its basis, with the sums of every block
+     * @param checksumSeed the seed mixed into the client's block MD5s
+     * @param compressed whether to write the deflated token stream
+     * @param level the compression level of deflated literal data
+     * @return the token stream, followed by the content's checksum
+     */
+    byte[] encode(ByteBuffer contents, Checksums checksums, int checksumSeed, boolean compressed, int level) {
+        int size = unchunk(contents);
+        index(checksums);
+        length = 0;
+        runStart = -1;
+        lastRunEnd = 0;
+
+        int blockSize = checksums.getBlockSize();
+        int offset = 0;
+        int lastMatch = 0;
+        int wanted = 0;
+        int window = Math.min(blockSize, size);
+        int sum = checksum1(offset, window);
+        int s1 = sum & 0xffff;
+        int s2 = sum >>> 16;
+
+        while (window > 0) {
+            int block = find(checksums, (s1 & 0xffff) + (s2 << 16), offset, window, wanted, checksumSeed);
+            if (block >= 0) {
+                literal(lastMatch, offset - lastMatch, compressed, level);
+                token(block, compressed);
+                offset += window;
+                lastMatch = offset;
+                wanted = block + 1;
+                window = Math.min(blockSize, size - offset);
+                sum = checksum1(offset, window);
+                s1 = sum & 0xffff;
+                s2 = sum >>> 16;
+                continue;
+            }
+
+            // Slide the window on by a byte, or shrink it once it reaches the end of the content
+            int first = data[offset];
+            s1 -= first;
+            s2 -= window * first;
+            if (offset + window < size) {
+                s1 += data[offset + window];
+                s2 += s1;
+            } else {
+                window--;
+            }
+            offset++;
+        }
+
+        literal(lastMatch, size - lastMatch, compressed, level);
+        if (compressed) {
+            flushRun();
+            write(END_FLAG);
+        } else {
+            writeInt(0);
+        }
+
+        for (int i = 0; i < 16; i++) {
+            write(contents.get(checksumPosition + i));
+        }
+        return Arrays.copyOf(out, length);
+    }
+
+    /**
+     * Computes the checksums a client would send for content as its basis, with full MD5s and no seed, so that a delta
+     * may be encoded against content the server holds.
+     *
+     * @param contents the raw content, framed as for RsyncFile.getContents()
+     * @param blockSize the size of each block summed
+     * @return the checksums of the content
+     */
+    Checksums signature(ByteBuffer contents, int blockSize) {
+        int size = unchunk(contents);
+        int count = (size + blockSize - 1) / blockSize;
+        int[] weakSums = new int[count];
+        byte[] strongSums = new byte[count * 16];
+        for (int block = 0; block < count; block++) {
+            int offset = block * blockSize;
+            int window = Math.min(blockSize, size - offset);
+            weakSums[block] = checksum1(offset, window);
+            System.arraycopy(strongSum(offset, window, 0), 0, strongSums, block * 16, 16);
+        }
+        return new Checksums(count, blockSize, 16, size % blockSize, weakSums, strongSums);
+    }
+
+    // Gathers the raw content into the data buffer, returning its length; its checksum follows the end marker
+    private int unchunk(ByteBuffer contents) {
+        ByteBuffer source = contents.duplicate();
+        source.order(ByteOrder.LITTLE_ENDIAN);
+        int size = 0;
+        for (int chunk = source.getInt(); chunk != 0; chunk = source.getInt()) {
+            if (size + chunk > data.length) data = Arrays.copyOf(data, Math.max(size + chunk, data.length * 2));
+            source.get(data, size, chunk);
+            size += chunk;
+        }
+        checksumPosition = source.position();
+        return size;
+    }
+
+    // Chains the blocks by rolling checksum, so that the blocks with a given checksum are found without a search
+    private void index(Checksums checksums) {
+        int count = checksums.getBlockCount();
+        int slots = Integer.highestOneBit(Math.max(count, 1) * 2 - 1) * 2;
+        if (heads.length < slots) heads = new int[slots];
+        Arrays.fill(heads, 0, slots, -1);
+        mask = slots - 1;
+        if (chain.length < count) chain = new int[count];
+        for (int block = count - 1; block >= 0; block--) {
+            int slot = spread(checksums.getWeakSum(block)) & mask;
+            chain[block] = heads[slot];
+            heads[slot] = block;
+        }
+    }
+
+    // Finds the block matching the window, trying the block after the last matched first, as rsync does
+    private int find(Checksums checksums, int sum, int offset, int window, int wanted, int checksumSeed) {
+        byte[] strong = null;
+        if (wanted < checksums.getBlockCount() && checksums.getWeakSum(wanted) == sum
+                && checksums.getBlockLength(wanted) == window) {
+            strong = strongSum(offset, window, checksumSeed);
+            if (checksums.strongSumMatches(wanted, strong)) return wanted;
+        }
+
+        for (int block = heads[spread(sum) & mask]; block >= 0; block = chain[block]) {
+            if (checksums.getWeakSum(block) != sum || checksums.getBlockLength(block) != window) continue;
+            if (strong == null) strong = strongSum(offset, window, checksumSeed);
+            if (checksums.strongSumMatches(block, strong)) return block;
+        }
+        return -1;
+    }
+
+    private static int spread(int sum) {
+        int h = sum * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    // As rsync's get_checksum2 for protocol 30: MD5 of the block, then of the seed if there is one
+    private byte[] strongSum(int offset, int window, int checksumSeed) {
+        digest.reset();
+        digest.update(data, offset, window);
+        if (checksumSeed != 0) {
+            digest.update(new byte[] {
+                    (byte)checksumSeed, (byte)(checksumSeed >> 8), (byte)(checksumSeed >> 16), (byte)(checksumSeed >> 24)
+            });
+        }
+        return digest.digest();
+    }
+
+    // As rsync's get_checksum1, over signed bytes: the sum of the bytes, and above it the sum of those sums
+    private int checksum1(int offset, int window) {
+        int s1 = 0;
+        int s2 = 0;
+        for (int i = offset; i < offset + window; i++) {
+            s1 += data[i];
+            s2 += s1;
+        }
+        return (s1 & 0xffff) + (s2 << 16);
+    }
+
+    private void literal(int offset, int count, boolean compressed, int level) {
+        if (count == 0) return;
+        if (!compressed) {
+            for (int sent = 0; sent < count; sent += CHUNK_SIZE) {
+                int chunk = Math.min(CHUNK_SIZE, count - sent);
+                writeInt(chunk);
+                write(data, offset + sent, chunk);
+            }
+            return;
+        }
+
+        flushRun();
+        int slot = level < 0 || level > 9 ? 0 : level + 1;
+        if (compressors[slot] == null) compressors[slot] = Compressor.create(engine, slot - 1);
+        byte[] deflated = compressors[slot].deflate(data, offset, count);
+        for (int sent = 0; sent < deflated.length; sent += MAX_DATA_COUNT) {
+            int chunk = Math.min(MAX_DATA_COUNT, deflated.length - sent);
+            write(DEFLATED_DATA | chunk >> 8);
+            write(chunk);
+            write(deflated, sent, chunk);
+        }
+    }
+
+    private void token(int block, boolean compressed) {
+        if (!compressed) {
+            writeInt(-(block + 1));
+            return;
+        }
+
+        // Consecutive blocks are sent as a run, as rsync's send_deflated_token does
+        if (runStart >= 0 && block == runEnd + 1 && block < runStart + 65536) {
+            runEnd = block;
+            return;
+        }
+        flushRun();
+        runStart = block;
+        runEnd = block;
+    }
+
+    private void flushRun() {
+        if (runStart < 0) return;
+        int relative = runStart - lastRunEnd;
+        int run = runEnd - runStart;
+        if (relative >= 0 && relative <= 63) {
+            write((run == 0 ? TOKEN_REL : TOKENRUN_REL) + relative);
+        } else {
+            write(run == 0 ? TOKEN_LONG : TOKENRUN_LONG);
+            writeInt(runStart);
+        }
+        if (run != 0) {
+            write(run);
+            write(run >> 8);
+        }
+        lastRunEnd = runEnd;
+        runStart = -1;
+    }
+
+    private void writeInt(int value) {
+        write(value);
+        write(value >> 8);
+        write(value >> 16);
+        write(value >> 24);
+    }
+
+    private void write(int datum) {
+        if (length == out.length) out = Arrays.copyOf(out, out.length * 2);
+        out[length++] = (byte)datum;
+    }
+
+    private void write(byte[] bytes, int offset, int count) {
+        if (length + count > out.length) out = Arrays.copyOf(out, Math.max(length + count, out.length * 2));
+        System.arraycopy(bytes, offset, out, length, count);
+        length += count;
+    }
+}
@@ -1,5 +1,7 @@
 package net.apnic.rpki.protocol;
 
+import java.nio.ByteBuffer;
+
 /**
  * A FileList represents a set of files being offered to a client for transfer.
  *
@@ -33,6 +35,15 @@ public interface FileList {
      */
     public byte[] getFileListData();
 
+    /**
+     * Get the file list data as a buffer, which may be a view of storage outside the Java heap.  The buffer's
+     * content remains valid until the list is released.
+     *
+     * @return the file list data for exchange with an rsync receiver instance
+     * @since 1.1
+     */
+    public ByteBuffer getFileListBuffer();
+
     /**
      * Returns the RsyncFile at the specified index.
      *
@@ -50,4 +61,23 @@ public interface FileList {
      * @since 0.9
      */
     public RsyncFile getRoot();
+
+    /**
+     * Takes another hold on this list and the files in it, to be given up with release(), so that views of their
+     * storage stay valid after the caller has finished with the list, such as while the views wait to be written.
+     *
+     * @return true if a hold was taken, or false if the list does not count its holders, or every holder has
+     *         already released it
+     * @since 1.1
+     */
+    public boolean retain();
+
+    /**
+     * Releases the caller's hold on this list and the files in it.  A module may re-use the storage of a list and its
+     * files once every holder has released it, so neither may be used afterwards.  Each list returned by
+     * Module.getFileList should be released once.
+     *
+     * @since 1.1
+     */
+    public void release();
 }
@@ -1,19 +1,24 @@
 package net.apnic.rpki.protocol;
 
-import java.io.ByteArrayOutputStream;
-import java.nio.charset.Charset;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.List;
-
-import static net.apnic.rpki.protocol.RsyncUtils.writeVarint;
-import static net.apnic.rpki.protocol.RsyncUtils.writeVarlong;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
 
 // CHECKSTYLE:OFF MagicNumber
 class FileListBuilder {
+    private final ContentStore store;
+
     FileListBuilder() {
+        this(null);
+    }
 
+    /**
+     * Constructs a builder whose lists hold their data in the given store.
+     *
+     * @param store the store for list data, or null to hold it on the heap
+     */
+    FileListBuilder(ContentStore store) {
+        this.store = store;
     }
 
     /**
@@ -26,166 +31,284 @@ class FileListBuilder {
      * @param recursive whether to expand directories
      * @return a file list for the given node
      */
-    FileList makeList(final String root, final RsyncFile node, boolean recursive) {
-        ByteArrayOutputStream listData = new ByteArrayOutputStream();
-        List<RsyncFile> files = new ArrayList<>();
+    ImmutableFileList makeList(final String root, final CompactTree.File node, boolean recursive) {
+        return makeList(root, node, recursive, false, null, null);
+    }
 
-        makeList(root, node, null, recursive, listData, files);
+    /**
+     * Make a file list for the given root, node, and recursion type, holding the files of an owner such as a module
+     * generation.  The list starts with one reference, held by the caller.  The list takes over a reference to the
+     * owner, which it releases when the list itself is deallocated.
+     *
+     * The list is encoded into the calling thread's FileListEncoder, walking the node's tree by id, so that the only
+     * objects made for the list are the copy of its data and the array of the ids of its files.
+     *
+     * @param root the root directory for the list
+     * @param node the starting node for the list
+     * @param recursive whether to expand directories
+     * @param checksums whether each file's entry carries its checksum
+     * @param rules the client's filter rules, or null to list every entry
+     * @param owner the owner of the files listed, or null
+     * @return a file list for the given node
+     */
+    ImmutableFileList makeList(final String root, final CompactTree.File node, boolean recursive, boolean checksums,
+                               FilterRules rules, ReferenceCounted owner) {
+        CompactTree tree = node.getTree();
+        CompactTree.FileIds files = tree.newFileList();
+        FileListEncoder encoder = ENCODERS.get();
+        encoder.start();
+        try {
+            boolean isRoot = node.getName().equals(root);
+            add(tree, node.getId(), 0, isRoot, recursive, recursive ? Integer.MAX_VALUE : isRoot ? 1 : 0, checksums,
+                    rules, encoder, files);
+            return new ImmutableFileList(files.size(), 0, encoder.getData(), encoder.getLength(), files, node,
+                    store, owner);
+        } finally {
+            encoder.finish();
+        }
+    }
 
-        return new ImmutableFileList(files.size(), 0, listData.toByteArray(), files, files.get(0));
+    /**
+     * Make the file lists of a recursive transfer of the given node using rsync's incremental recursion.  The lists
+     * take over a reference to the owner, which is released once the lists and every list made from them have been
+     * released.
+     *
+     * If the node is at the root, the first list holds '.' and the node's children, and names are relative to the
+     * node; otherwise the first list holds just the node, and names are relative to its parent.
+     *
+     * @param node the starting node for the lists
+     * @param isRoot whether the node is the root of the transfer
+     * @param checksums whether each file's entry carries its checksum
+     * @param rules the client's filter rules, or null to list every entry
+     * @param owner the owner of the files listed, or null
+     * @return the file lists for the given node
+     */
+    IncrementalLists makeIncrementalLists(final CompactTree.File node, boolean isRoot, boolean checksums,
+                                          FilterRules rules, ReferenceCounted owner) {
+        return new IncrementalLists(node, isRoot, checksums, rules, owner);
     }
 
     // Implementation details follow.
-    private RsyncFile makeList(final String root, final RsyncFile node, RsyncFile lastNode, boolean recursive,
-                                 ByteArrayOutputStream listData, List<RsyncFile> files) {
-        lastNode = writeListEntry(listData, node, lastNode, root, recursive);
-        files.add(node);
-
-        if (node.isDirectory() && (recursive || node.getName().equals(root))) {
-            List<RsyncFile> children = node.getChildren();
-            Collections.sort(children, rsyncComparator);
 
-            for (RsyncFile child : children) {
-                lastNode = makeList(root, child, lastNode, recursive, listData, files);
+    // Makes the list of the children of a directory, named relative to base, whose files start at firstIndex
+    private ImmutableFileList makeDirectoryList(CompactTree tree, int directory, int base, int firstIndex,
+                                                boolean checksums, FilterRules rules, ReferenceCounted owner) {
+        CompactTree.FileIds files = tree.newFileList();
+        FileListEncoder encoder = ENCODERS.get();
+        encoder.start();
+        try {
+            int prefix = encoder.path(tree, directory, base);
+            int first = tree.getFirstChild(directory);
+            for (int child = first; child < first + tree.getChildCount(directory); child++) {
+                add(tree, child, prefix, false, true, 0, checksums, rules, encoder, files);
             }
+            return new ImmutableFileList(files.size(), firstIndex, encoder.getData(), encoder.getLength(), files,
+                    tree.getFile(directory), store, owner);
+        } finally {
+            encoder.finish();
         }
-
-        return lastNode;
     }
 
-    private class ImmutableFileList implements FileList {
-        private final int size;
-        private final int firstIndex;
-        private final byte[] fileListData;
-        private final List<RsyncFile> files;
-        private final RsyncFile root;
-
-        private ImmutableFileList(int size, int firstIndex, byte[] fileListData, List<RsyncFile> files, RsyncFile root) {
-            this.size = size;
-            this.firstIndex = firstIndex;
-            this.fileListData = fileListData;
-            this.files = files;
-            this.root = root;
+    // Encoders are re-used by each thread building lists, so a list's data is written into a buffer already grown
+    private static final ThreadLocal<FileListEncoder> ENCODERS = new ThreadLocal<FileListEncoder>() {
+        @Override
+        protected FileListEncoder initialValue() {
+            return new FileListEncoder();
         }
+    };
 
-        @Override public int getSize() { return size; }
-        @Override public int getFirstIndex() { return firstIndex; }
-        @Override public byte[] getFileListData() { return fileListData; }
-        @Override public RsyncFile getFile(int index) { return files.get(index); }
-        @Override public RsyncFile getRoot() { return root; }
+    // Adds an entry below a parent whose relative name is the first prefix bytes of the encoder's name buffer, and
+    // the entries below it to the given number of levels, unless the client's rules exclude it
+    private static void add(CompactTree tree, int id, int prefix, boolean isRoot, boolean recursive, int levels,
+                            boolean checksums, FilterRules rules, FileListEncoder encoder, CompactTree.FileIds files) {
+        boolean directory = tree.isDirectory(id);
+        int length = isRoot ? encoder.dot() : encoder.name(prefix, tree, id);
+        if (!isRoot && rules != null && encoder.excluded(rules, length, prefix, directory)) return;
+        encoder.writeEntry(length, prefix, directory, tree.getSize(id), tree.getLastModifiedTime(id),
+                isRoot && directory, !isRoot && directory && !recursive);
+        if (checksums && !directory) encoder.writeChecksum(tree, id);
+        files.add(id);
+
+        // The tree holds each directory's children in the order rsync sorts them
+        if (directory && levels > 0) {
+            int first = tree.getFirstChild(id);
+            for (int child = first; child < first + tree.getChildCount(id); child++) {
+                add(tree, child, isRoot ? 0 : length, false, recursive, levels - 1, checksums, rules, encoder, files);
+            }
+        }
     }
 
-    private class Flags {
-        static final int TOP_DIR =          0b00000001;
-        static final int SAME_MODE =        0b00000010;
-        static final int XFLAGS =           0b00000100;
-        static final int SAME_UID =         0b00001000;
-        static final int SAME_GID =         0b00010000;
-        static final int SAME_NAME =        0b00100000;
-        static final int LONG_NAME =        0b01000000;
-        static final int SAME_TIME =        0b10000000;
-
-        // extended flags
-        static final int NO_CONTENT_DIR =   0b00000001 << 8;
-    }
+    /**
+     * The lists of an incremental recursion.  Directories are numbered as rsync's sender numbers them, in the order
+     * they appear in the lists sent, and their lists follow in the order rsync's sender visits them: each directory's
+     * first subdirectory, then its next sibling, then its parent's next sibling.
+     */
+    final class IncrementalLists implements IncrementalFileList {
+        private final CompactTree.File node;
+        private final boolean isRoot;
+        private final boolean checksums;
+        private final FilterRules rules;
+        private final ReferenceCounted owner;
+        private final CompactTree tree;
+        private final int base;
+        private int[] pendingIds = new int[16];
+        private int[] pendingIndexes = new int[16];
+        private int pending = 0;
+        private boolean started = false;
+        private boolean released = false;
+        private int nextFirstIndex = 1;
+        private int nextDirectoryIndex = 0;
+        private int directoryIndex = -1;
+
+        private IncrementalLists(CompactTree.File node, boolean isRoot, boolean checksums, FilterRules rules,
+                                 ReferenceCounted owner) {
+            this.node = node;
+            this.isRoot = isRoot;
+            this.checksums = checksums;
+            this.rules = rules;
+            this.owner = owner;
+            this.tree = node.getTree();
+            this.base = isRoot ? node.getId() : tree.getParent(node.getId());
+        }
 
-    // Sort such that:
-    //  - Directories appear immediately before files within those directories
-    //  - Directories appear after all files at the same level
-    //  - A directory with the name '.' always compares before anything else
-    private final Comparator<RsyncFile> rsyncComparator = new Comparator<RsyncFile>() {
         @Override
-        public int compare(RsyncFile o1, RsyncFile o2) {
-            if (o1.isDirectory()) {
-                if (o2.isDirectory()) {
-                    // both are directories, lexical order applies
-                    return o1.getName().compareTo(o2.getName());
-                }
+        public boolean hasNext() {
+            return !started || pending > 0;
+        }
 
-                // o1 is greater than o2 because directories sort after files
-                return 1;
-            } else {
-                if (o2.isDirectory()) {
-                    // o2 is greater than o1 because directories sort after files
-                    return -1;
+        @Override
+        public FileList next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            if (owner != null && !owner.tryRetain()) throw new IllegalStateException("Lists already released");
+
+            ImmutableFileList list;
+            int id = node.getId();
+            if (!started) {
+                started = true;
+                list = makeTopList();
+                directoryIndex = -1;
+                if (isRoot) {
+                    // The root is numbered, but its children are in this list already
+                    nextDirectoryIndex++;
+                    pushSubdirectories(id, list.files);
+                } else {
+                    pushSubdirectories(tree.getParent(id), list.files);
                 }
-
-                // both are files, lexical order applies
-                return o1.getName().compareTo(o2.getName());
+            } else {
+                pending--;
+                id = pendingIds[pending];
+                directoryIndex = pendingIndexes[pending];
+                list = makeDirectoryList(tree, id, base, nextFirstIndex, checksums, rules, owner);
+                pushSubdirectories(id, list.files);
             }
+            nextFirstIndex += list.getSize() + 1;
+            return list;
         }
-    };
-
-    private static final byte[] directoryMode = new byte[] { (byte)0xfd, 0x41, 0x00, 0x00 };    // 0040775
-    private static final byte[] fileMode = new byte[] { (byte)0xb4, (byte)0x81, 0x00, 0x00 };   // 0100664
-    private static final Charset UTF8 = Charset.forName("UTF-8");
 
-    private RsyncFile writeListEntry(ByteArrayOutputStream data, RsyncFile node, RsyncFile lastNode, String root, boolean recursive) {
-        int flags = Flags.SAME_GID | Flags.SAME_UID;
-
-        String name = node.getName();
-        if (name.equals(root)) {
-            name = ".";
-            if (node.isDirectory()) flags |= Flags.TOP_DIR;
-        } else {
-            name = name.substring(root.length() + 1);
-            if (node.isDirectory() && !recursive)
-                flags |= Flags.NO_CONTENT_DIR | Flags.XFLAGS;
+        @Override
+        public int getDirectoryIndex() {
+            return directoryIndex;
         }
 
-        byte[] nameBytes = name.getBytes(UTF8);
-
-        int lastCount = 0;
-        if (lastNode != null) {
-            byte[] lastName = lastNode.getName().getBytes(UTF8);
-            lastCount = Math.min(longestMatch(lastName, nameBytes), 255);
-            if (lastCount > 1) flags |= Flags.SAME_NAME;
-
-            if (lastNode.isDirectory() == node.isDirectory()) flags |= Flags.SAME_MODE;
-            if (lastNode.getLastModifiedTime() == node.getLastModifiedTime()) flags |= Flags.SAME_TIME;
+        @Override
+        public void release() {
+            if (released) return;
+            released = true;
+            if (owner != null) owner.release();
         }
 
-        if (nameBytes.length - lastCount > 255) flags |= Flags.LONG_NAME;
-
-        data.write(flags);
-        if ((flags & Flags.XFLAGS) != 0) {
-            data.write(flags >> 8);
+        private ImmutableFileList makeTopList() {
+            CompactTree.FileIds files = tree.newFileList();
+            FileListEncoder encoder = ENCODERS.get();
+            encoder.start();
+            try {
+                add(tree, node.getId(), 0, isRoot, true, isRoot ? 1 : 0, checksums, rules, encoder, files);
+                return new ImmutableFileList(files.size(), nextFirstIndex, encoder.getData(), encoder.getLength(),
+                        files, node, store, owner);
+            } finally {
+                encoder.finish();
+            }
         }
 
-        if ((flags & Flags.SAME_NAME) != 0) {
-            data.write(lastCount);
-        }
+        // Numbers the subdirectories of a directory listed in the list just made, and queues them to be visited first
+        // in that order; subdirectories the client's rules exclude are not in the list
+        private void pushSubdirectories(int id, CompactTree.FileIds files) {
+            // Directories sort after files, so they are the last of the children
+            int end = files.size();
+            int directories = end;
+            while (directories > 0 && tree.isDirectory(files.getId(directories - 1))
+                    && tree.getParent(files.getId(directories - 1)) == id) {
+                directories--;
+            }
 
-        if ((flags & Flags.LONG_NAME) != 0) {
-            writeVarint(data, nameBytes.length - lastCount);
-        } else {
-            data.write(nameBytes.length - lastCount);
+            int index = nextDirectoryIndex;
+            nextDirectoryIndex += end - directories;
+            for (int i = end - 1; i >= directories; i--) {
+                push(files.getId(i), index + i - directories);
+            }
         }
 
-        data.write(nameBytes, lastCount, nameBytes.length - lastCount);
+        private void push(int id, int index) {
+            if (pending == pendingIds.length) {
+                pendingIds = Arrays.copyOf(pendingIds, pending * 2);
+                pendingIndexes = Arrays.copyOf(pendingIndexes, pending * 2);
+            }
+            pendingIds[pending] = id;
+            pendingIndexes[pending] = index;
+            pending++;
+        }
+    }
 
-        writeVarlong(data, node.getSize(), 3);
+    // A list whose data is held on the heap, or in a ContentStore until the list is deallocated
+    static class ImmutableFileList extends ReferenceCounted implements FileList {
+        private final int size;
+        private final int firstIndex;
+        private final byte[] fileListData;
+        private final ContentStore store;
+        private final ContentStore.Block block;
+        private final ReferenceCounted owner;
+        private final CompactTree.FileIds files;
+        private final RsyncFile root;
 
-        if ((flags & Flags.SAME_TIME) == 0) {
-            writeVarlong(data, node.getLastModifiedTime(), 4);
+        private ImmutableFileList(int size, int firstIndex, byte[] data, int length, CompactTree.FileIds files,
+                                  RsyncFile root, ContentStore store, ReferenceCounted owner) {
+            this.size = size;
+            this.firstIndex = firstIndex;
+            this.files = files;
+            this.root = root;
+            this.store = store;
+            this.owner = owner;
+            if (store == null) {
+                this.fileListData = Arrays.copyOf(data, length);
+                this.block = null;
+            } else {
+                this.fileListData = null;
+                this.block = store.allocate(data, length);
+                store.retain(block);
+            }
         }
 
-        if ((flags & Flags.SAME_MODE) == 0) {
-            byte[] mode = node.isDirectory() ? directoryMode : fileMode;
-            data.write(mode, 0, mode.length);
+        @Override
+        protected void deallocate() {
+            if (block != null) store.release(block);
+            if (owner != null) owner.release();
         }
 
-        return node;
-    }
-
-    private int longestMatch(byte[] left, byte[] right) {
-        int i;
-
-        for (i = 0; i < left.length && i < right.length && i < 256; i++) {
-            if (left[i] != right[i]) return i;
+        @Override public int getSize() { return size; }
+        @Override public int getFirstIndex() { return firstIndex; }
+        @Override public byte[] getFileListData() {
+            if (block == null) return fileListData;
+            ByteBuffer data = block.first();
+            byte[] copy = new byte[data.remaining()];
+            data.get(copy);
+            return copy;
         }
-
-        return i;
+        @Override public ByteBuffer getFileListBuffer() {
+            return block == null ? ByteBuffer.wrap(fileListData) : block.first();
+        }
+        @Override public RsyncFile getFile(int index) { return files.get(index); }
+        @Override public RsyncFile getRoot() { return root; }
+        @Override public boolean retain() { return tryRetain(); }
     }
 
 }
@@ -0,0 +1,119 @@
+package net.apnic.rpki.protocol;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A memory-bounded cache of FileLists, evicting the least recently used lists once the approximate memory held
+ * exceeds the cache's capacity.  The most recently added list is always retained, however large.
+ *
+ * The cache holds a reference to each list it contains, and releases it when the list is evicted or the cache is
+ * cleared.  Each list returned by the cache carries a new reference for the caller to release.
+ *
+ * The cache is safe for use from multiple threads.
+ *
+ * @author bje
+ * @since 1.1
+ */
+// CHECKSTYLE:OFF MagicNumber
+class FileListCache {
+    private final long capacity;
+    private final LinkedHashMap<String, FileListBuilder.ImmutableFileList> lists = new LinkedHashMap<>(16, 0.75f, true);
+    private long size = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Constructs a cache holding up to approximately capacity bytes of file lists.
+     *
+     * @param capacity the approximate number of bytes of file lists to retain
+     */
+    FileListCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns the cached list for a path, retained for the caller, or null if it is not cached.
+     *
+     * @param path the requested path
+     * @param recursive whether the list is recursive
+     * @param checksums whether the list carries file checksums
+     * @param rules the filter rules applied to the list, or null
+     * @return the cached list, or null
+     */
+    synchronized FileListBuilder.ImmutableFileList get(String path, boolean recursive, boolean checksums,
+                                                        FilterRules rules) {
+        FileListBuilder.ImmutableFileList list = lists.get(key(path, recursive, checksums, rules));
+        if (list == null || !list.tryRetain()) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return list;
+    }
+
+    /**
+     * Adds a list to the cache, evicting older lists as necessary.  If another thread has already cached a list for
+     * the path, the caller's list is released, and the cached list is retained and returned instead.
+     *
+     * @param path the requested path
+     * @param recursive whether the list is recursive
+     * @param checksums whether the list carries file checksums
+     * @param rules the filter rules applied to the list, or null
+     * @param list the list for the path, whose reference passes to the caller of this method again
+     * @return the list now cached for the path, retained for the caller
+     */
+    synchronized FileListBuilder.ImmutableFileList put(String path, boolean recursive, boolean checksums,
+                                                        FilterRules rules, FileListBuilder.ImmutableFileList list) {
+        String key = key(path, recursive, checksums, rules);
+        FileListBuilder.ImmutableFileList existing = lists.get(key);
+        if (existing != null && existing.tryRetain()) {
+            list.release();
+            return existing;
+        }
+
+        if (!list.tryRetain()) throw new IllegalStateException("Caching a released list");
+        lists.put(key, list);
+        size += sizeOf(list);
+
+        Iterator<FileListBuilder.ImmutableFileList> eldest = lists.values().iterator();
+        while (size > capacity && lists.size() > 1) {
+            FileListBuilder.ImmutableFileList evicted = eldest.next();
+            size -= sizeOf(evicted);
+            eldest.remove();
+            evicted.release();
+        }
+        return list;
+    }
+
+    /**
+     * Releases and removes every list in the cache.
+     */
+    synchronized void clear() {
+        for (FileListBuilder.ImmutableFileList list : lists.values()) {
+            list.release();
+        }
+        lists.clear();
+        size = 0;
+    }
+
+    // The list data, plus a reference for each file
+    static long sizeOf(FileList list) {
+        return list.getFileListBuffer().remaining() + 8L * list.getSize();
+    }
+
+    // Filtered lists are keyed by their rules in normal form, so every session sending the same rules shares them
+    private static String key(String path, boolean recursive, boolean checksums, FilterRules rules) {
+        String key = (recursive ? "r" : "n") + (checksums ? "c:" : ":") + path;
+        return rules == null ? key : key + "\n" + rules.getKey();
+    }
+
+    synchronized int getCount() {
+        return lists.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d lists, %d bytes, %d hits, %d misses", lists.size(), size, hits, misses);
+    }
+}
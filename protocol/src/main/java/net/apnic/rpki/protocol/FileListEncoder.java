@@ -0,0 +1,253 @@
+package net.apnic.rpki.protocol;
+
+import java.util.Arrays;
+
+/**
+ * Encodes rsync file list entries into a re-usable buffer.  Names are assembled in a second buffer from the name of
+ * each entry's parent and the entry's own encoded last component, and compared with the previous entry's name from
+ * the end of the parent's name onwards, since an entry always shares its parent's name with the entry before it.
+ * Flags, lengths, and variable length integers are written directly into the buffer, so encoding an entry allocates
+ * nothing once the buffers have grown to fit the list.
+ *
+ * An encoder is used by one thread at a time, for one list at a time, and re-used for the next list.  Its buffer is
+ * kept between lists unless a list has grown it past the size worth keeping.
+ *
+ * @author bje
+ * @since 1.1
+ */
+// CHECKSTYLE:OFF MagicNumber
+final class FileListEncoder {
+    // Enough for the list of a module of about a million objects; larger buffers are dropped once the list is finished
+    private static final int RETAINED_CAPACITY = 16 * 1024 * 1024;
+
+    // The most any entry adds besides its name: flags, prefix and name lengths, size, time, mode, and checksum
+    private static final int MAX_ENTRY_OVERHEAD = 48;
+
+    private static final int TOP_DIR =          0b00000001;
+    private static final int SAME_MODE =        0b00000010;
+    private static final int XFLAGS =           0b00000100;
+    private static final int SAME_UID =         0b00001000;
+    private static final int SAME_GID =         0b00010000;
+    private static final int SAME_NAME =        0b00100000;
+    private static final int LONG_NAME =        0b01000000;
+    private static final int SAME_TIME =        0b10000000;
+
+    // extended flags
+    private static final int NO_CONTENT_DIR =   0b00000001 << 8;
+
+    private static final byte[] DIRECTORY_MODE = new byte[] { (byte)0xfd, 0x41, 0x00, 0x00 };    // 0040775
+    private static final byte[] FILE_MODE = new byte[] { (byte)0xb4, (byte)0x81, 0x00, 0x00 };   // 0100664
+
+    private byte[] data = new byte[64 * 1024];
+    private int length = 0;
+    private byte[] name = new byte[256];
+    private byte[] lastName = new byte[256];
+    private int lastLength = 0;
+    private boolean first = true;
+    private boolean lastDirectory;
+    private long lastModifiedTime;
+
+    /**
+     * Starts a new list, discarding any previous one.
+     */
+    void start() {
+        length = 0;
+        lastLength = 0;
+        first = true;
+    }
+
+    /**
+     * Sets the name buffer to '.', the name of the directory a list is of.
+     *
+     * @return the length of the name
+     */
+    int dot() {
+        name[0] = '.';
+        return 1;
+    }
+
+    /**
+     * Sets the name buffer to the name of an entry of a tree below its parent, whose name is already held in the
+     * first prefix bytes of the buffer.
+     *
+     * @param prefix the length of the parent's name, or 0 if the entry is at the top of the list
+     * @param tree the tree holding the entry
+     * @param id the entry's id
+     * @return the length of the name
+     */
+    int name(int prefix, CompactTree tree, int id) {
+        int offset = prefix == 0 ? 0 : prefix + 1;
+        int end = offset + tree.getLeafLength(id);
+        if (end > name.length) name = Arrays.copyOf(name, Math.max(end, name.length * 2));
+        if (prefix > 0) name[prefix] = '/';
+        return tree.copyLeaf(id, name, offset);
+    }
+
+    /**
+     * Sets the name buffer to the name of a directory of a tree relative to one of its ancestors, so that the
+     * directory's children can be named below it.
+     *
+     * @param tree the tree holding the directory
+     * @param id the directory's id
+     * @param base the id of the ancestor names are relative to
+     * @return the length of the name, or 0 if the directory is the ancestor
+     */
+    int path(CompactTree tree, int id, int base) {
+        int end = -1;
+        for (int node = id; node != base; node = tree.getParent(node)) {
+            end += tree.getLeafLength(node) + 1;
+        }
+        if (end <= 0) return 0;
+        if (end > name.length) name = Arrays.copyOf(name, Math.max(end, name.length * 2));
+
+        int offset = end;
+        for (int node = id; node != base; node = tree.getParent(node)) {
+            offset -= tree.getLeafLength(node);
+            tree.copyLeaf(node, name, offset);
+            if (--offset >= 0) name[offset] = '/';
+        }
+        return end;
+    }
+
+    /**
+     * Returns whether a client's filter rules exclude the entry whose name is in the name buffer.
+     *
+     * @param rules the client's rules
+     * @param nameLength the length of the name
+     * @param prefix the length of the parent's name, or 0 if the entry is at the top of the list
+     * @param isDirectory true if the entry is a directory
+     * @return true if the entry is excluded
+     */
+    boolean excluded(FilterRules rules, int nameLength, int prefix, boolean isDirectory) {
+        return rules.excludes(name, nameLength, prefix == 0 ? 0 : prefix + 1, isDirectory);
+    }
+
+    /**
+     * Writes an entry for the name in the name buffer.
+     *
+     * @param nameLength the length of the name
+     * @param prefix the length of the parent's name, which the previous entry shares
+     * @param isDirectory true if the entry is a directory
+     * @param size the size of the entry
+     * @param lastModifiedTime the modification time of the entry, in seconds
+     * @param topDir true if the entry is the directory the list is of
+     * @param noContent true if the entry is a directory whose content is not listed
+     */
+    void writeEntry(int nameLength, int prefix, boolean isDirectory, long size, long lastModifiedTime,
+                    boolean topDir, boolean noContent) {
+        if (length + nameLength + MAX_ENTRY_OVERHEAD > data.length) {
+            data = Arrays.copyOf(data, Math.max(length + nameLength + MAX_ENTRY_OVERHEAD, data.length * 2));
+        }
+
+        int flags = SAME_GID | SAME_UID;
+        if (topDir) flags |= TOP_DIR;
+        if (noContent) flags |= NO_CONTENT_DIR | XFLAGS;
+
+        // The receiver takes the shared prefix from the name it received last, as rsync's sender does
+        int shared = 0;
+        int from = Math.min(prefix, lastLength);
+        if (!first) {
+            shared = from;
+            while (shared < lastLength && shared < nameLength && lastName[shared] == name[shared]) {
+                shared++;
+            }
+            shared = Math.min(shared, 255);
+            if (shared > 0) flags |= SAME_NAME;
+
+            if (lastDirectory == isDirectory) flags |= SAME_MODE;
+            if (this.lastModifiedTime == lastModifiedTime) flags |= SAME_TIME;
+        }
+
+        int suffix = nameLength - shared;
+        if (suffix > 255) flags |= LONG_NAME;
+
+        data[length++] = (byte)flags;
+        if ((flags & XFLAGS) != 0) data[length++] = (byte)(flags >> 8);
+        if ((flags & SAME_NAME) != 0) data[length++] = (byte)shared;
+        if ((flags & LONG_NAME) != 0) {
+            writeVarnum(suffix, 4, 1);
+        } else {
+            data[length++] = (byte)suffix;
+        }
+        System.arraycopy(name, shared, data, length, suffix);
+        length += suffix;
+
+        writeVarnum(size, 8, 3);
+        if ((flags & SAME_TIME) == 0) writeVarnum(lastModifiedTime, 8, 4);
+        if ((flags & SAME_MODE) == 0) {
+            byte[] mode = isDirectory ? DIRECTORY_MODE : FILE_MODE;
+            System.arraycopy(mode, 0, data, length, mode.length);
+            length += mode.length;
+        }
+
+        // Only the part of the name after what the two share needs copying
+        if (nameLength > lastName.length) lastName = Arrays.copyOf(lastName, name.length);
+        System.arraycopy(name, from, lastName, from, nameLength - from);
+        lastLength = nameLength;
+        lastDirectory = isDirectory;
+        this.lastModifiedTime = lastModifiedTime;
+        first = false;
+    }
+
+    /**
+     * Writes the MD5 checksum of the file whose entry was just written, as rsync's sender does for regular files when
+     * the client compares files by checksum.
+     *
+     * @param tree the tree holding the file
+     * @param id the file's id
+     */
+    void writeChecksum(CompactTree tree, int id) {
+        tree.copyChecksum(id, data, length);
+        length += 16;
+    }
+
+    // As rsync's write_varlong: the low bytes of the number, led by a byte marking how many more follow the minimum
+    private void writeVarnum(long num, int maxBytes, int minBytes) {
+        int start = length;
+        int cnt = 1;
+        for (long rest = num; cnt <= maxBytes; cnt++) {
+            data[start + cnt] = (byte)rest;
+            rest >>>= 8;
+            if (rest == 0 && cnt >= minBytes) break;
+        }
+        if (cnt > maxBytes) cnt = maxBytes;
+
+        int bit = 1 << (7 - cnt + minBytes);
+        int top = data[start + cnt] & 0xff;
+        if (top >= bit) {
+            cnt++;
+            data[start] = (byte)~(bit - 1);
+        } else if (cnt > minBytes) {
+            data[start] = (byte)(top | ~(bit * 2 - 1));
+        } else {
+            data[start] = (byte)top;
+        }
+        length += cnt;
+    }
+
+    /**
+     * Returns the buffer holding the list, which is valid until the encoder is next used.
+     *
+     * @return the buffer holding the list
+     */
+    byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Returns the length of the list encoded so far.
+     *
+     * @return the length of the list
+     */
+    int getLength() {
+        return length;
+    }
+
+    /**
+     * Ends the use of the encoder for a list, dropping buffers that have grown too large to keep.
+     */
+    void finish() {
+        if (data.length > RETAINED_CAPACITY) data = new byte[64 * 1024];
+        length = 0;
+    }
+}
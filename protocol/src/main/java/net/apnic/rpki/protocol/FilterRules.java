@@ -0,0 +1,288 @@
+package net.apnic.rpki.protocol;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * A client's include and exclude rules, compiled to decide which entries of a file list are sent, as rsync's sender
+ * does: the first rule whose pattern matches an entry's name decides whether it is sent, an entry no rule matches is
+ * sent, and the contents of an excluded directory are not listed at all.
+ *
+ * Most rules clients send name a file type or a file, such as "- *.cer" or "+ *.roa", and match the last component
+ * of a name.  Those rules are held in a trie of the reversed bytes of their literal text, so an entry is checked
+ * against all of them in one pass over the end of its name.  Other rules are compiled to anchored regular
+ * expressions, and only tried when they come before the first rule the trie matched.
+ *
+ * Rules are compiled once for each distinct rule set, and the compiled rules shared by every session sending them.
+ * Compiled rules are immutable, and safe for use from multiple threads.
+ *
+ * @author bje
+ * @since 1.1
+ */
+// CHECKSTYLE:OFF MagicNumber
+public final class FilterRules {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int NO_RULE = Integer.MAX_VALUE;
+    private static final int CACHE_SIZE = 256;
+
+    private static final Map<String, FilterRules> COMPILED = new LinkedHashMap<String, FilterRules>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, FilterRules> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private final String key;
+    private final boolean[] includes;
+    private final Node trie = new Node();
+    private final List<Rule> patterns = new ArrayList<>();
+
+    private FilterRules(String key, List<String> rules) {
+        this.key = key;
+        this.includes = new boolean[rules.size()];
+        for (int index = 0; index < rules.size(); index++) {
+            String rule = rules.get(index);
+            includes[index] = rule.charAt(0) == '+';
+            add(index, rule.substring(2));
+        }
+    }
+
+    /**
+     * Returns the compiled form of a client's filter rules, compiling them if no session has sent the same rules
+     * before.  Rules are as rsync's client sends them: "+ " or "- " and a pattern, or the sender-only "S " and "H "
+     * forms of each, or "!" to clear the rules before it.  Rules for the receiver only are ignored.
+     *
+     * @param rules the rules, in the order the client sent them
+     * @return the compiled rules, or null if no rule applies to the sender
+     * @throws IllegalArgumentException if a rule is not one the server supports
+     */
+    public static FilterRules compile(List<String> rules) {
+        List<String> normalised = normalise(rules);
+        if (normalised.isEmpty()) return null;
+
+        StringBuilder key = new StringBuilder();
+        for (String rule : normalised) {
+            key.append(rule).append('\n');
+        }
+        synchronized (COMPILED) {
+            FilterRules compiled = COMPILED.get(key.toString());
+            if (compiled == null) {
+                compiled = new FilterRules(key.toString(), normalised);
+                COMPILED.put(compiled.key, compiled);
+            }
+            return compiled;
+        }
+    }
+
+    // Reduces rules to the "+ " and "- " rules the sender applies, in order
+    private static List<String> normalise(List<String> rules) {
+        List<String> normalised = new ArrayList<>();
+        for (String rule : rules) {
+            if (rule.equals("!")) {
+                normalised.clear();
+                continue;
+            }
+            int space = rule.indexOf(' ');
+            if (space < 1 || space == rule.length() - 1) {
+                throw new IllegalArgumentException("Unsupported filter rule: " + rule);
+            }
+
+            // The first character is the rule's type, followed by its modifiers
+            char type = rule.charAt(0);
+            String modifiers = rule.substring(1, space);
+            if (!modifiers.matches("[spr]*")) throw new IllegalArgumentException("Unsupported filter rule: " + rule);
+            if (modifiers.indexOf('r') >= 0 || type == 'P' || type == 'R') continue;
+
+            String pattern = rule.substring(space + 1);
+            if (type == '+' || type == 'S') {
+                normalised.add("+ " + pattern);
+            } else if (type == '-' || type == 'H') {
+                normalised.add("- " + pattern);
+            } else {
+                throw new IllegalArgumentException("Unsupported filter rule: " + rule);
+            }
+        }
+        return normalised;
+    }
+
+    /**
+     * Returns the rules in a normal form, the same for every rule set compiled to the same rules.
+     *
+     * @return the rules in a normal form
+     */
+    String getKey() {
+        return key;
+    }
+
+    /**
+     * Returns whether an entry of a file list is excluded.
+     *
+     * @param name the entry's name, relative to the top of the transfer
+     * @param isDirectory whether the entry is a directory
+     * @return true if the entry is excluded
+     */
+    public boolean excludes(String name, boolean isDirectory) {
+        byte[] bytes = name.getBytes(UTF8);
+        return excludes(bytes, bytes.length, name.lastIndexOf('/') + 1, isDirectory);
+    }
+
+    /**
+     * Returns whether an entry of a file list is excluded, given its name as UTF-8 bytes.
+     *
+     * @param name a buffer holding the entry's name, relative to the top of the transfer, from its start
+     * @param length the length of the name
+     * @param leaf the position of the name's last component
+     * @param isDirectory whether the entry is a directory
+     * @return true if the entry is excluded
+     */
+    boolean excludes(byte[] name, int length, int leaf, boolean isDirectory) {
+        int first = trie.first(name, length, leaf, isDirectory);
+
+        String decoded = null;
+        for (Rule rule : patterns) {
+            if (rule.index >= first) break;
+            if (rule.directoryOnly && !isDirectory) continue;
+            if (decoded == null) decoded = new String(name, 0, length, UTF8);
+            if (rule.matches(decoded)) {
+                first = rule.index;
+                break;
+            }
+        }
+        return first != NO_RULE && !includes[first];
+    }
+
+    private void add(int index, String pattern) {
+        boolean directoryOnly = pattern.endsWith("/") && pattern.length() > 1;
+        if (directoryOnly) pattern = pattern.substring(0, pattern.length() - 1);
+
+        // "dir/***" matches the directory and everything in it
+        if (pattern.endsWith("/***")) {
+            add(index, pattern.substring(0, pattern.length() - 4));
+            add(index, pattern.substring(0, pattern.length() - 1));
+            return;
+        }
+
+        int wildcard = firstWildcard(pattern, 0);
+        if (pattern.indexOf('/') < 0 && wildcard < 0) {
+            trie.insert(pattern.getBytes(UTF8), index, directoryOnly, false);
+        } else if (pattern.indexOf('/') < 0 && wildcard == 0 && pattern.charAt(0) == '*'
+                && firstWildcard(pattern, 1) < 0) {
+            trie.insert(pattern.substring(1).getBytes(UTF8), index, directoryOnly, true);
+        } else {
+            patterns.add(new Rule(index, pattern, directoryOnly));
+        }
+    }
+
+    private static int firstWildcard(String pattern, int from) {
+        for (int i = from; i < pattern.length(); i++) {
+            if ("*?[\\".indexOf(pattern.charAt(i)) >= 0) return i;
+        }
+        return -1;
+    }
+
+    // A rule matched by a regular expression over the end of an entry's name, or over all of it if anchored
+    private static final class Rule {
+        private final int index;
+        private final boolean directoryOnly;
+        private final Pattern regex;
+
+        Rule(int index, String pattern, boolean directoryOnly) {
+            this.index = index;
+            this.directoryOnly = directoryOnly;
+
+            // As rsync: a pattern starting with '/' matches from the top of the transfer, and any other matches the
+            // end of the name from a directory boundary on, so one without a '/' matches just the last component
+            this.regex = pattern.startsWith("/")
+                    ? Pattern.compile(translate(pattern.substring(1)), Pattern.DOTALL)
+                    : Pattern.compile("(?:.*/)?" + translate(pattern), Pattern.DOTALL);
+        }
+
+        boolean matches(String name) {
+            return regex.matcher(name).matches();
+        }
+
+        // Translates a glob to a regular expression: "**" matches anything, "*" and "?" anything but '/'
+        private static String translate(String glob) {
+            StringBuilder regex = new StringBuilder();
+            for (int i = 0; i < glob.length(); i++) {
+                char c = glob.charAt(i);
+                if (c == '*' && i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                    regex.append(".*");
+                    while (i + 1 < glob.length() && glob.charAt(i + 1) == '*') i++;
+                } else if (c == '*') {
+                    regex.append("[^/]*");
+                } else if (c == '?') {
+                    regex.append("[^/]");
+                } else if (c == '\\' && i + 1 < glob.length()) {
+                    regex.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+                } else if (c == '[' && glob.indexOf(']', i + 2) > 0) {
+                    int end = glob.indexOf(']', i + 2);
+                    String set = glob.substring(i + 1, end);
+                    if (set.startsWith("!")) set = "^" + set.substring(1);
+                    regex.append('[').append(set.replace("\\", "\\\\").replace("[", "\\[")).append(']');
+                    i = end;
+                } else {
+                    regex.append(Pattern.quote(String.valueOf(c)));
+                }
+            }
+            return regex.toString();
+        }
+    }
+
+    // A trie of the reversed bytes of rules' literal text, each node holding the first rule matching a name whose
+    // last component ends with the bytes on the path to it: as a suffix, for "*text" rules, or in full
+    private static final class Node {
+        private byte[] labels = new byte[0];
+        private Node[] children = new Node[0];
+        private final int[] suffix = { NO_RULE, NO_RULE };      // for any entry, and for directories only
+        private final int[] exact = { NO_RULE, NO_RULE };
+
+        void insert(byte[] text, int index, boolean directoryOnly, boolean isSuffix) {
+            Node node = this;
+            for (int i = text.length - 1; i >= 0; i--) {
+                node = node.child(text[i], true);
+            }
+            int[] rules = isSuffix ? node.suffix : node.exact;
+            int slot = directoryOnly ? 1 : 0;
+            rules[slot] = Math.min(rules[slot], index);
+        }
+
+        int first(byte[] name, int length, int leaf, boolean isDirectory) {
+            int first = matched(suffix, isDirectory, NO_RULE);
+            Node node = this;
+            for (int i = length - 1; i >= leaf && node != null; i--) {
+                node = node.child(name[i], false);
+                if (node != null) first = matched(node.suffix, isDirectory, first);
+            }
+            if (node != null && length > leaf) first = matched(node.exact, isDirectory, first);
+            return first;
+        }
+
+        private static int matched(int[] rules, boolean isDirectory, int first) {
+            first = Math.min(first, rules[0]);
+            return isDirectory ? Math.min(first, rules[1]) : first;
+        }
+
+        private Node child(byte label, boolean create) {
+            for (int i = 0; i < labels.length; i++) {
+                if (labels[i] == label) return children[i];
+            }
+            if (!create) return null;
+            labels = Arrays.copyOf(labels, labels.length + 1);
+            children = Arrays.copyOf(children, children.length + 1);
+            labels[labels.length - 1] = label;
+            children[children.length - 1] = new Node();
+            return children[children.length - 1];
+        }
+    }
+
+    @Override
+    public String toString() {
+        return key.trim().replace("\n", ", ");
+    }
+}
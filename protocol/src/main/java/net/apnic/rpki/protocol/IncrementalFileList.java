@@ -0,0 +1,51 @@
+package net.apnic.rpki.protocol;
+
+/**
+ * An IncrementalFileList offers the data rooted at a path as a series of file lists, for rsync's incremental
+ * recursion.  The first list holds the requested path and, for a directory requested with a trailing slash, its
+ * immediate children.  Each list after that holds the children of one directory named in an earlier list, in the
+ * order rsync's sender visits them, so that a client may start transferring files before the whole tree is listed.
+ *
+ * The indexes of each list follow on from the list before: the first list starts at index 1, and each later list
+ * starts one past the end of the list before it, the index in between referring to the list's directory.
+ *
+ * @author bje
+ * @since 1.1
+ */
+public interface IncrementalFileList {
+    /**
+     * Returns whether there are more lists to be sent.
+     *
+     * @return true if there are more lists
+     * @since 1.1
+     */
+    public boolean hasNext();
+
+    /**
+     * Gets the next list.  The list's root is the directory whose children it holds, and it should be released once
+     * the client is finished with it.
+     *
+     * @return the next list
+     * @throws java.util.NoSuchElementException if there are no more lists
+     * @since 1.1
+     */
+    public FileList next();
+
+    /**
+     * Gets the index of the directory whose children are held by the list last returned by next(), counting the
+     * directories of every list so far in the order they were listed.  The first list is not the children of a
+     * listed directory, and has no index.
+     *
+     * @return the index of the directory of the last list, or -1 for the first list
+     * @since 1.1
+     */
+    public int getDirectoryIndex();
+
+    /**
+     * Releases the caller's hold on the data the lists are made from.  Lists already returned remain valid until
+     * they are themselves released.
+     *
+     * @since 1.1
+     */
+    public void release();
+}
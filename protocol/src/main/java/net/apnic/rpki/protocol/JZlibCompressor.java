@@ -0,0 +1,79 @@
+package net.apnic.rpki.protocol;
+
+import com.jcraft.jzlib.GZIPException;
+import com.jcraft.jzlib.JZlib;
+
+/**
+ * A Compressor using jzlib, the pure Java zlib port.
+ *
+ * jzlib has no way to reset a deflater, so the deflater is re-initialised for each file; the deflater object and
+ * its output buffer are kept.
+ *
+ * @author bje
+ * @since 1.1
+ */
+// CHECKSTYLE:OFF MagicNumber
+class JZlibCompressor extends Compressor {
+    private final com.jcraft.jzlib.Deflater deflater = new com.jcraft.jzlib.Deflater();
+    private byte[] output = new byte[0];
+
+    JZlibCompressor(int level) {
+        super(level);
+    }
+
+    @Override
+    byte[] deflate(byte[] chunked, int length) {
+        try {
+            start(length);
+
+            int position = 0;
+            for (int size = rawChunkSize(chunked, 0); size != 0; size = rawChunkSize(chunked, position)) {
+                deflater.setInput(chunked, position + 4, size, false);
+                if (deflater.deflate(JZlib.Z_NO_FLUSH) != JZlib.Z_OK)
+                    throw new GZIPException(deflater.getMessage());
+                position += size + 4;
+            }
+
+            deflater.setInput(chunked, position, 0, false);
+            return flush();
+        } catch (GZIPException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    byte[] deflate(byte[] data, int offset, int length) {
+        try {
+            start(length);
+            deflater.setInput(data, offset, length, false);
+            return flush();
+        } catch (GZIPException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void start(int length) throws GZIPException {
+        if (deflater.init(level, -15, 8) != JZlib.Z_OK)
+            throw new GZIPException(deflater.getMessage());
+        deflater.params(level, JZlib.Z_DEFAULT_STRATEGY);
+
+        int bound = (int)(length * 1.1 + 16);
+        if (output.length < bound) output = new byte[bound];
+        deflater.setOutput(output, 0, bound);
+    }
+
+    private byte[] flush() throws GZIPException {
+        if (deflater.deflate(JZlib.Z_SYNC_FLUSH) != JZlib.Z_OK)
+            throw new GZIPException(deflater.getMessage());
+        if (deflater.total_out < 4)
+            throw new GZIPException("deflated output doesn't have sync marker bytes");
+
+        final byte[] result = new byte[(int)deflater.total_out - 4];
+        System.arraycopy(output, 0, result, 0, result.length);
+        return result;
+    }
+}
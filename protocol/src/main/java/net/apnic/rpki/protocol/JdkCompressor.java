@@ -0,0 +1,68 @@
+package net.apnic.rpki.protocol;
+
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * A Compressor using the JDK's Deflater, which wraps the platform's native zlib.  The deflater is reset rather than
+ * re-created for each file.
+ *
+ * @author bje
+ * @since 1.1
+ */
+// CHECKSTYLE:OFF MagicNumber
+class JdkCompressor extends Compressor {
+    private final Deflater deflater;
+    private byte[] output = new byte[8192];
+
+    JdkCompressor(int level) {
+        super(level);
+        deflater = new Deflater(level, true);
+    }
+
+    @Override
+    byte[] deflate(byte[] chunked, int length) {
+        deflater.reset();
+        int produced = 0;
+
+        int position = 0;
+        for (int size = rawChunkSize(chunked, 0); size != 0; size = rawChunkSize(chunked, position)) {
+            deflater.setInput(chunked, position + 4, size);
+            while (!deflater.needsInput()) {
+                produced = drain(produced, Deflater.NO_FLUSH);
+            }
+            position += size + 4;
+        }
+
+        return flush(produced);
+    }
+
+    @Override
+    byte[] deflate(byte[] data, int offset, int length) {
+        deflater.reset();
+        int produced = 0;
+
+        deflater.setInput(data, offset, length);
+        while (!deflater.needsInput()) {
+            produced = drain(produced, Deflater.NO_FLUSH);
+        }
+        return flush(produced);
+    }
+
+    private byte[] flush(int produced) {
+        // a sync flush is complete once it leaves space in the output buffer
+        do {
+            produced = drain(produced, Deflater.SYNC_FLUSH);
+        } while (produced == output.length);
+
+        if (produced < 4)
+            throw new IllegalStateException("deflated output doesn't have sync marker bytes");
+        return Arrays.copyOf(output, produced - 4);
+    }
+
+    // Deflates into the output buffer after the bytes already produced, growing it if it is full
+    private int drain(int produced, int flush) {
+        if (produced == output.length) output = Arrays.copyOf(output, output.length * 2);
+        return produced + deflater.deflate(output, produced, output.length - produced, flush);
+    }
+}
@@ -1,21 +1,48 @@
 package net.apnic.rpki.protocol;
 
-import com.jcraft.jzlib.GZIPException;
-import com.jcraft.jzlib.JZlib;
+import net.apnic.rpki.data.ChangeSet;
 import net.apnic.rpki.data.Repository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 /**
  * An implementation of a Module that caches all data in memory.
  *
- * A recursive set of FileLists for each possible requested path is maintained, taking a few hundred to a few thousand
- * bytes each, depending on the number of entries in each directory.  Each RsyncFile carries its raw and compressed bytes.
+ * Each generation's files are held in a CompactTree, as arrays of their attributes and raw and compressed bytes, with
+ * RsyncFiles as views of them.  FileLists for the module root are built with each generation; lists for other paths
+ * are built on first request and held in a memory-bounded cache, as most paths in a large repository are never
+ * requested.  Lists carrying each file's checksum, for clients comparing files by checksum, and lists filtered by a
+ * client's include and exclude rules are cached separately, one for each rule set.
+ *
+ * File content is re-used from one generation to the next for each file the repository's change set shows to be
+ * unchanged, or that has the same size, modification time, and file key, so each update hashes and compresses only
+ * new or changed files.  A repository that reports its changes has only the nodes it lists examined; one that does
+ * not has every file compared with the previous generation.  That work is spread over a pool of
+ * low-priority threads, sized by the ModuleConfiguration.
+ *
+ * Files may be compressed when the module is built, or on first use, with compressed content then held in a
+ * memory-bounded cache.  Clients asking for a compression level other than the default are served from a cache of
+ * content compressed on first use at that level, one for each level the module allows.  Files that do not compress
+ * usefully are not compressed at all, and are sent as deflate stored blocks.
+ *
+ * Each larger file that changes keeps its previous version and the delta from it, encoded raw and compressed as the
+ * module is rebuilt, so that the many clients fetching a changed manifest or CRL over the version before it are sent
+ * only what changed without a search for matching blocks.
+ *
+ * If configured with a cache directory, each file's digest and framed content are persisted there, so a restart only
+ * hashes and compresses files that changed while the server was down.
+ *
+ * File content and list data may be held on the heap or, for large modules, in a ContentStore outside it.  Each
+ * generation of the module is reference counted: the module holds the current generation, and each FileList holds
+ * the generation it was built from, so off-heap content is freed once the last client of an old generation releases
+ * its list.
  *
  * The state of a FileList returned from @{getFileList} is immutable.  A Repository rebuild will cause future calls
  * to return a new FileList.
@@ -24,14 +51,26 @@ import java.util.Map;
  * @since 0.9
  */
 // CHECKSTYLE:OFF MagicNumber
-public class MemoryCachedModule implements Module, Repository.Watcher {
+public class MemoryCachedModule implements Module, Repository.ChangeWatcher {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MemoryCachedModule.class);
+
     private final String name;
     private final String description;
-    private final MessageDigest messageDigest;
-    private final FileListBuilder fileListBuilder = new FileListBuilder();
+    private final ContentBuilder contentBuilder;
+    private final CompressedContentCache compressedCache;
+    private final CompressedContentCache[] levelCaches = new CompressedContentCache[10];
+    private final int compressionLevel;
+    private final ContentStore store;
+    private final FileListBuilder fileListBuilder;
+    private final PersistentContentCache persistentCache;
+    private final long fileListCacheSize;
+    private final int minimumDeltaSize;
+    private final ModuleConfiguration.CompressionEngine compressionEngine;
+    private boolean firstGeneration = true;
 
     /**
-     * Constructs a MemoryCachedModule with the specified name, description, and source repository.
+     * Constructs a MemoryCachedModule with the specified name, description, and source repository, using the default
+     * configuration.
      *
      * @param name the name of the module; the base of all apparent paths.
      * @param description the description of the module.
@@ -39,14 +78,50 @@ public class MemoryCachedModule implements Module, Repository.Watcher {
      * @since 0.9
      */
     public MemoryCachedModule(String name, String description, Repository source) {
+        this(name, description, source, new ModuleConfiguration());
+    }
+
+    /**
+     * Constructs a MemoryCachedModule with the specified name, description, source repository, and configuration.
+     *
+     * @param name the name of the module; the base of all apparent paths.
+     * @param description the description of the module.
+     * @param source the Repository providing data for this module
+     * @param configuration the settings for this module
+     * @since 1.1
+     */
+    public MemoryCachedModule(String name, String description, Repository source, ModuleConfiguration configuration) {
         this.name = name;
         this.description = description;
 
-        try {
-            messageDigest = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException ex) {
-            // MD5 is guaranteed available by spec, this only happens if your JRE is broken
-            throw new RuntimeException(ex);
+        final boolean lazy = configuration.getCompressionMode() == ModuleConfiguration.CompressionMode.LAZY;
+        PersistentContentCache cache = null;
+        if (configuration.getCacheDirectory() != null) {
+            try {
+                String variant = (lazy ? "raw"
+                        : configuration.getCompressionEngine().name().toLowerCase(Locale.ROOT) + "-"
+                        + configuration.getCompressionLevel()) + "-gain-" + configuration.getMinimumCompressionGain();
+                cache = new PersistentContentCache(configuration.getCacheDirectory(), variant);
+            } catch (IOException ex) {
+                LOGGER.warn("Content cache unavailable for module {}, continuing without: {}", name, ex.getMessage());
+            }
+        }
+        this.persistentCache = cache;
+
+        this.fileListCacheSize = configuration.getFileListCacheSize();
+        this.minimumDeltaSize = configuration.getMinimumDeltaSize();
+        this.compressionEngine = configuration.getCompressionEngine();
+        this.store = configuration.getStorageMode() == ModuleConfiguration.StorageMode.OFFHEAP
+                ? new ContentStore() : null;
+        this.fileListBuilder = new FileListBuilder(store);
+        this.contentBuilder = new ContentBuilder("module-" + name + "-build", configuration);
+        this.compressionLevel = configuration.getCompressionLevel();
+        this.compressedCache = lazy
+                ? new CompressedContentCache(configuration.getCompressedCacheSize(), contentBuilder, compressionLevel)
+                : null;
+        for (int level : configuration.getAllowedCompressionLevels()) {
+            if (level == compressionLevel) continue;
+            levelCaches[level] = new CompressedContentCache(configuration.getCompressedCacheSize(), contentBuilder, level);
         }
 
         source.setWatcher(this);
@@ -62,182 +137,288 @@ public class MemoryCachedModule implements Module, Repository.Watcher {
         return description;
     }
 
-    private class Zip {
-        byte[] zip(byte[] input) {
-            if (input == null) return null;
+    @Override
+    public int getMinimumDeltaSize() {
+        return minimumDeltaSize;
+    }
+
+    @Override
+    public ModuleConfiguration.CompressionEngine getCompressionEngine() {
+        return compressionEngine;
+    }
 
-            try {
-                com.jcraft.jzlib.Deflater deflater = new com.jcraft.jzlib.Deflater(6, -15, 8);
-                deflater.params(6, JZlib.Z_DEFAULT_STRATEGY);
-
-                final byte[] output = new byte[(int)(input.length * 1.1 + 16)];
-                deflater.setOutput(output);
-                deflater.setInput(input);
-                if (deflater.deflate(JZlib.Z_SYNC_FLUSH) != JZlib.Z_OK)
-                    throw new GZIPException(deflater.getMessage());
-                if (deflater.total_out < 4)
-                    throw new GZIPException("deflated output doesn't have sync marker bytes");
-
-                final byte[] result = new byte[(int)deflater.total_out - 4];
-                System.arraycopy(output, 0, result, 0, result.length);
-                return result;
-            } catch (GZIPException ex) {
-                throw new RuntimeException(ex);
-            }
+    /**
+     * Returns the number of bytes of file content held compressed at the given level: all files, for the default
+     * level when compressing eagerly, otherwise the files in that level's cache.
+     *
+     * @param level the compression level, from 0 to 9
+     * @return the number of bytes of compressed content held for the level
+     * @since 1.1
+     */
+    public long getCompressedContentSize(int level) {
+        if (level == compressionLevel) {
+            if (compressedCache != null) return compressedCache.getSize();
+            Generation current = generation;
+            return current == null ? 0 : current.compressedSize;
         }
+        return level >= 0 && level < levelCaches.length && levelCaches[level] != null
+                ? levelCaches[level].getSize() : 0;
     }
 
-    private final Zip zipper = new Zip();
+    /**
+     * Returns the number of bytes of file content and file list data held outside the Java heap.
+     *
+     * @return the number of bytes held outside the heap, or zero when content is held on the heap
+     * @since 1.1
+     */
+    public long getOffHeapSize() {
+        return store == null ? 0 : store.getLiveBytes();
+    }
 
-    private class CachedFile implements RsyncFile {
-        private final byte[] contents;
-        private final byte[] zipped;
-        private final byte[] checksum;
-        private final int size;
-        private final String name;
-        private final long lastModifiedTime;
-        private final boolean isDirectory;
-        private final List<RsyncFile> children;
+    @Override
+    public FileList getFileList(String rootPath, boolean recursive) throws NoSuchPathException {
+        return getFileList(rootPath, recursive, false, null);
+    }
 
-        public CachedFile(Repository.Node node) {
-            name = node.getName();
-            size = (int)node.getSize();
-            if (node.isDirectory()) {
-                contents = zipped = checksum = null;
-            } else {
-                byte[] raw = node.getContent();
-                messageDigest.reset();
-                checksum = messageDigest.digest(raw);
-                assert checksum.length == 16;
-                contents = chunkContents(raw, checksum, false);
-                zipped = chunkContents(zipper.zip(node.getContent()), checksum, true);
-            }
-            lastModifiedTime = node.getLastModifiedTime();
-            isDirectory = node.isDirectory();
-            if (isDirectory) {
-                children = new ArrayList<>();
-                for (Repository.Node child : node.getChildren()) {
-                    children.add(new CachedFile(child));
-                }
-            } else {
-                children = null;
+    @Override
+    public FileList getFileList(String rootPath, boolean recursive, boolean checksums, FilterRules rules)
+            throws NoSuchPathException {
+        rootPath = normalise(rootPath);
+
+        // A generation retired while its list is found cannot be used; its successor is tried instead
+        while (true) {
+            final Generation current = generation;
+            if (current == null) {
+                throw new NoSuchPathException();
             }
+            FileList list = current.getFileList(rootPath, recursive, checksums, rules, fileListBuilder);
+            if (list != null) return list;
         }
+    }
 
-        //CHECKSTYLE:OFF MagicNumber
-        private byte[] chunkContents(byte[] source, byte[] checksum, boolean zipped) {
-            final byte[] out;
-            if (zipped) {
-                // chunks of 0x3fff bytes, two length bytes, 16 checksum bytes, 1 byte eof marker
-                out = new byte[source.length + (source.length / 16383) * 2 + 19];
-                int oo = 0;
-                for (int n = 0; n < source.length; n += 16383) {
-                    int size = Math.min(16383, source.length - n);
-                    out[oo] = (byte)(0x40 + (size >> 8));
-                    out[oo+1] = (byte)(size & 0xff);
-                    System.arraycopy(source, n, out, oo + 2, size);
-                    oo += size + 2;
-                }
-                out[oo] = 0;
-                System.arraycopy(checksum, 0, out, oo+1, 16);
-            } else {
-                // chunks of 0x8000 bytes, four length bytes, 16 checksum bytes, 4 bytes eof marker
-                out = new byte[source.length + (source.length / 32768) * 4 + 24];
-                int oo = 0;
-                for (int n = 0; n < source.length; n += 32768) {
-                    int size = Math.min(0x8000, source.length - n);
-                    out[oo] = (byte)(size & 0xff);
-                    out[oo+1] = (byte)((size >> 8) & 0xff);
-                    out[oo+2] = (byte)((size >> 16) & 0xff);
-                    out[oo+3] = (byte)((size >> 24) & 0xff);
-                    System.arraycopy(source, n, out, oo + 4, size);
-                    oo += size + 4;
-                }
-                out[oo++] = 0; out[oo++] = 0; out[oo++] = 0; out[oo++] = 0;
-                System.arraycopy(checksum, 0, out, oo, 16);
+    @Override
+    public IncrementalFileList getIncrementalFileList(String rootPath, boolean checksums, FilterRules rules)
+            throws NoSuchPathException {
+        rootPath = normalise(rootPath);
+
+        // Every list is made from the generation current now, which the lists hold until they are all released
+        while (true) {
+            final Generation current = generation;
+            if (current == null) {
+                throw new NoSuchPathException();
             }
+            IncrementalFileList lists = current.getIncrementalFileList(rootPath, checksums, rules, fileListBuilder);
+            if (lists != null) return lists;
+        }
+    }
+
+    private String normalise(String rootPath) throws NoSuchPathException {
+        // The module name becomes the module name plus '/'
+        if (rootPath.equals(name)) {
+            rootPath = name + "/";
+        }
 
-            return out;
+        // All paths requested should start with the module name followed by '/', or be the module name
+        if (!rootPath.startsWith(name + "/")) {
+            throw new NoSuchPathException();
         }
+        return rootPath;
+    }
+
+    // An immutable snapshot of the module's files, with the lists built from them so far.  The module holds a
+    // reference to the current generation, and each of its lists holds another.
+    private static final class Generation extends ReferenceCounted {
+        private final CompactTree tree;
+        private final CompactTree.File root;
+        private final FileListBuilder.ImmutableFileList rootList;
+        private final FileListBuilder.ImmutableFileList recursiveRootList;
+        private final FileListCache fileLists;
+        private final long compressedSize;
+        private final int storedCount;
+
+        Generation(CompactTree tree, FileListBuilder fileListBuilder, long fileListCacheSize) {
+            this.tree = tree;
+            this.root = tree.getRoot();
+            this.compressedSize = tree.getCompressedSize();
+            this.storedCount = tree.getStoredCount();
 
-        @Override public byte[] getContents() {
-            return contents;
+            // Only the module root's lists are built up front; the rest are built as they are requested
+            tryRetain();
+            this.rootList = fileListBuilder.makeList(root.getName(), root, false, false, null, this);
+            tryRetain();
+            this.recursiveRootList = fileListBuilder.makeList(root.getName(), root, true, false, null, this);
+            this.fileLists = new FileListCache(fileListCacheSize);
         }
-        @Override public byte[] getCompressedContents() {
-            return zipped;
+
+        // Returns the list for a path, retained for the caller, or null if this generation has been deallocated
+        FileList getFileList(String rootPath, boolean recursive, boolean checksums, FilterRules rules,
+                             FileListBuilder fileListBuilder) throws NoSuchPathException {
+            if (rootPath.equals(root.getName() + "/") && !checksums && rules == null) {
+                FileListBuilder.ImmutableFileList list = recursive ? recursiveRootList : rootList;
+                return list.tryRetain() ? list : null;
+            }
+
+            // Lists with checksums or filtered by a client's rules are variants of their own, cached alongside the
+            // plain lists
+            FileListBuilder.ImmutableFileList list = fileLists.get(rootPath, recursive, checksums, rules);
+            if (list != null) return list;
+
+            // A path ending in '/' lists a directory's contents, otherwise the entry itself is listed in its parent
+            final CompactTree.File file = resolve(rootPath);
+            final String parent = rootPath.endsWith("/")
+                    ? file.getName()
+                    : rootPath.substring(0, rootPath.lastIndexOf('/'));
+
+            if (!tryRetain()) return null;
+            return fileLists.put(rootPath, recursive, checksums, rules,
+                    fileListBuilder.makeList(parent, file, recursive, checksums, rules, this));
         }
-        @Override public byte[] getChecksum() { return checksum; }
-        @Override public String getName() {
-            return name;
+
+        // Returns the lists for a path, retained for the caller, or null if this generation has been deallocated
+        IncrementalFileList getIncrementalFileList(String rootPath, boolean checksums, FilterRules rules,
+                                                   FileListBuilder fileListBuilder) throws NoSuchPathException {
+            final CompactTree.File file = resolve(rootPath);
+            if (!tryRetain()) return null;
+            return fileListBuilder.makeIncrementalLists(file, rootPath.endsWith("/"), checksums, rules, this);
         }
-        @Override public int getSize() {
-            return size;
+
+        private CompactTree.File resolve(String rootPath) throws NoSuchPathException {
+            if (rootPath.endsWith("/")) {
+                CompactTree.File file = tree.getFile(rootPath.substring(0, rootPath.length() - 1));
+                if (file == null || !file.isDirectory()) throw new NoSuchPathException();
+                return file;
+            }
+            CompactTree.File file = tree.getFile(rootPath);
+            if (file == null) throw new NoSuchPathException();
+            return file;
+        }
+
+        // Gives up the module's hold on this generation, once a newer one is current
+        void retire() {
+            rootList.release();
+            recursiveRootList.release();
+            fileLists.clear();
+            release();
         }
-        @Override public long getLastModifiedTime() { return lastModifiedTime; }
-        @Override public boolean isDirectory() { return isDirectory; }
-        @Override public List<RsyncFile> getChildren() { return children; }
 
         @Override
-        public String toString() {
-            return String.format(
-                    "RsyncFile(%s, %d, %d zipped)",
-                    name, size, zipped == null ? 0 : zipped.length
-            );
+        protected void deallocate() {
+            tree.releaseContent();
         }
     }
 
-    @Override
-    public FileList getFileList(String rootPath, boolean recursive) throws NoSuchPathException {
-        //String rootPath = inRootPath;
-        // The module name becomes the module name plus '/'
-        if (rootPath.equals(name)) {
-            rootPath = name + "/";
-        }
+    private volatile Generation generation;
 
-        // All paths requested should start with the module name followed by '/', or be the module name
-        if (!rootPath.startsWith(name + "/")) {
-            throw new NoSuchPathException();
+    // Collects the files of a repository that cannot be re-used from the previous generation
+    private void collectChanged(Repository.Node node, CompactTree previous, List<Repository.Node> changed) {
+        if (node.isDirectory()) {
+            for (Repository.Node child : node.getChildren()) {
+                collectChanged(child, previous, changed);
+            }
+        } else if (previous == null || previous.reusable(node) < 0) {
+            changed.add(node);
         }
+    }
 
-        // 4. Find the FileList associated with this
-        FileList list = recursive ? recursiveLists.get(rootPath) : nonRecursiveLists.get(rootPath);
-        if (list == null) {
-            throw new NoSuchPathException();
+    // Collects the files of a change set's added or modified nodes that cannot be re-used from the previous generation
+    private void collectChanged(List<Repository.Node> nodes, CompactTree previous, List<Repository.Node> changed) {
+        for (Repository.Node node : nodes) {
+            if (!node.isDirectory() && previous.reusable(node) < 0) changed.add(node);
         }
+    }
+
+    // Encodes the delta from the previous version of each large enough changed file, for clients that hold it
+    private void precomputeDeltas(List<Repository.Node> changed, CompactTree previous, CompactTree tree) {
+        DeltaEncoder encoder = new DeltaEncoder(compressionEngine);
+        for (Repository.Node node : changed) {
+            if (node.getSize() < minimumDeltaSize) continue;
+            CompactTree.File old = previous.getFile(node.getName());
+            CompactTree.File file = tree.getFile(node.getName());
+            if (old == null || old.isDirectory() || file == null) continue;
 
-        return list;
+            PrecomputedDelta delta = PrecomputedDelta.compute(old.getContentBuffer(), file.getContentBuffer(),
+                    file.isStored() ? 0 : compressionLevel, encoder);
+            if (delta != null) tree.addDelta(file, delta);
+        }
     }
 
-    private Map<String, FileList> recursiveLists = new HashMap<>();
-    private Map<String, FileList> nonRecursiveLists = new HashMap<>();
+    @Override
+    public void repositoryChanged(Repository repository, ChangeSet changes) {
+        LOGGER.debug("Module {} updating to repository {}", name, changes);
+        update(repository, changes);
+    }
 
     @Override
     public void repositoryUpdated(Repository repository) {
-        // Convert repository nodes into FileLists
-        Map<String, FileList> r = new HashMap<>();
-        Map<String, FileList> nr = new HashMap<>();
-        updateLists(r, nr, new CachedFile(repository.getRepositoryRoot()));
-        recursiveLists = r;
-        nonRecursiveLists = nr;
-        synchronized (this) {
-            this.notifyAll();
-        }
+        update(repository, null);
     }
 
-    private void updateLists(Map<String, FileList> r, Map<String, FileList> nr, RsyncFile path) {
-        // create entry where parent is root
-        String name = path.getName();
-        if (name.contains("/")) {
-            String root = name.substring(0, name.lastIndexOf("/"));
-            r.put(name, fileListBuilder.makeList(root, path, true));
-            nr.put(name, fileListBuilder.makeList(root, path, false));
+    // Builds and publishes a new generation, from the changes made since the current one if they are known
+    private void update(Repository repository, ChangeSet changes) {
+        long startTime = System.currentTimeMillis();
+        Repository.Node rootNode = repository.getRepositoryRoot();
+        Generation previous = generation;
+        CompactTree previousTree = previous == null ? null : previous.tree;
+        boolean incremental = changes != null && previousTree != null;
+
+        // Hash and compress new and changed files in parallel, then assemble the tree around them.  With a change set,
+        // only the nodes it lists are looked at; without one, every file is compared with the previous generation.
+        List<Repository.Node> changed = new ArrayList<>();
+        if (incremental) {
+            collectChanged(changes.getAdded(), previousTree, changed);
+            collectChanged(changes.getModified(), previousTree, changed);
+        } else {
+            collectChanged(rootNode, previousTree, changed);
         }
-        if (path.isDirectory()) {
-            r.put(name + "/", fileListBuilder.makeList(name, path, true));
-            nr.put(name + "/", fileListBuilder.makeList(name, path, false));
-            for (RsyncFile child : path.getChildren()) {
-                updateLists(r, nr, child);
+        List<PersistentContentCache.Entry> entries = contentBuilder.build(changed, persistentCache);
+        Map<Repository.Node, PersistentContentCache.Entry> built = new IdentityHashMap<>();
+        for (int i = 0; i < changed.size(); i++) {
+            built.put(changed.get(i), entries.get(i));
+        }
+        long buildTime = System.currentTimeMillis() - startTime;
+
+        CompactTree tree = CompactTree.build(rootNode, previousTree, changes, built, store, compressedCache, levelCaches);
+        Map<String, RsyncFile> current = tree.getFiles();
+        if (previousTree != null && minimumDeltaSize < Integer.MAX_VALUE) {
+            precomputeDeltas(changed, previousTree, tree);
+        }
+
+        generation = new Generation(tree, fileListBuilder, fileListCacheSize);
+        if (previous != null) {
+            LOGGER.debug("Module {} retired file list cache: {}", name, previous.fileLists);
+            previous.retire();
+        }
+        LOGGER.info("Module {} updated in {} ms, {} entries in total; {} files built in {} ms on {} threads ({} per second)",
+                name, System.currentTimeMillis() - startTime, current.size(), changed.size(), buildTime,
+                contentBuilder.getThreads(), buildTime == 0 ? changed.size() : changed.size() * 1000L / buildTime);
+
+        LOGGER.debug("Module {} has {} files stored rather than compressed", name, generation.storedCount);
+        LOGGER.debug("Module {} has {} deltas from previous versions: {} bytes", name, tree.getDeltaCount(),
+                tree.getDeltaSize());
+        if (store != null) LOGGER.debug("Module {} off-heap content: {}", name, store);
+        if (compressedCache != null) {
+            compressedCache.retain(current);
+            LOGGER.debug("Module {} compressed content cache: {}", name, compressedCache);
+        } else {
+            LOGGER.debug("Module {} compressed content: level {}: {} bytes", name, compressionLevel,
+                    generation.compressedSize);
+        }
+        for (CompressedContentCache cache : levelCaches) {
+            if (cache == null) continue;
+            cache.retain(current);
+            LOGGER.debug("Module {} compressed content cache: {}", name, cache);
+        }
+        if (persistentCache != null) {
+            if (incremental) {
+                persistentCache.removePaths(changes.getRemoved());
+            } else {
+                persistentCache.retainPaths(current);
             }
+            if (firstGeneration) persistentCache.prune();
+        }
+        firstGeneration = false;
+        synchronized (this) {
+            this.notifyAll();
         }
     }
 
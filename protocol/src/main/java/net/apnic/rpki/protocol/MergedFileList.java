@@ -0,0 +1,205 @@
+package net.apnic.rpki.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The file list of a transfer of several paths, made from the lists of each path.  The lists' data is sent one after
+ * the other as it is: each list starts with an entry that shares nothing with the entry before it, so the lists need
+ * no re-encoding to be sent as one.
+ *
+ * rsync's sender and receiver both sort a list once it is sent, and a file's index is its position in the sorted list,
+ * so the files of the merged list are ordered as rsync sorts them, over the names the client receives.  Entries with
+ * the same name, such as the '.' of two directories each requested with a trailing slash, are kept, as rsync's sender
+ * keeps them.
+ *
+ * The merged list holds the caller's reference to each of the lists it is made from, and releases them when it is
+ * itself released.
+ *
+ * @author bje
+ * @since 1.1
+ */
+// CHECKSTYLE:OFF MagicNumber
+final class MergedFileList implements FileList {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final List<FileList> parts;
+    private final int firstIndex;
+    private final int size;
+    private final byte[] data;
+    private final int[] partOf;
+    private final int[] positionIn;
+    private String duplicate;
+
+    /**
+     * Merges the lists of several paths.
+     *
+     * @param parts the list of each path, in the order the paths were requested
+     * @param dotDirs whether each path is a directory requested with a trailing slash, whose list holds '.'
+     * @param firstIndex the index of the merged list's first file
+     */
+    MergedFileList(List<FileList> parts, boolean[] dotDirs, int firstIndex) {
+        this.parts = parts;
+        this.firstIndex = firstIndex;
+
+        int files = 0;
+        int length = 0;
+        for (FileList part : parts) {
+            files += part.getSize();
+            length += part.getFileListBuffer().remaining();
+        }
+        this.size = files;
+
+        ByteBuffer joined = ByteBuffer.allocate(length);
+        for (FileList part : parts) {
+            joined.put(part.getFileListBuffer());
+        }
+        this.data = joined.array();
+
+        // Each file's name as the client receives it, relative to the directory its path was requested from
+        final byte[][] names = new byte[files][];
+        final boolean[] directories = new boolean[files];
+        Integer[] order = new Integer[files];
+        partOf = new int[files];
+        positionIn = new int[files];
+        int entry = 0;
+        for (int part = 0; part < parts.size(); part++) {
+            FileList list = parts.get(part);
+            String root = list.getRoot().getName();
+            // A top-level path's files are named from the module's root, so there is no directory to strip
+            int slash = root.lastIndexOf('/');
+            String base = dotDirs[part] ? root : slash < 0 ? "" : root.substring(0, slash);
+            for (int position = 0; position < list.getSize(); position++, entry++) {
+                RsyncFile file = list.getFile(position);
+                String name = file.getName();
+                String relative = name.equals(base) ? "." : base.isEmpty() ? name : name.substring(base.length() + 1);
+                names[entry] = relative.getBytes(UTF8);
+                directories[entry] = file.isDirectory();
+                order[entry] = entry;
+                partOf[entry] = part;
+                positionIn[entry] = position;
+            }
+        }
+
+        // A stable sort, so that entries with the same name stay in the order their paths were requested
+        if (parts.size() > 1) {
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return compareNames(names[a], directories[a], names[b], directories[b]);
+                }
+            });
+            int[] unsortedParts = partOf.clone();
+            int[] positions = positionIn.clone();
+            for (int i = 0; i < files; i++) {
+                partOf[i] = unsortedParts[order[i]];
+                positionIn[i] = positions[order[i]];
+                if (duplicate == null && i > 0 && compareNames(names[order[i - 1]], directories[order[i - 1]],
+                        names[order[i]], directories[order[i]]) == 0) {
+                    duplicate = new String(names[order[i]], UTF8);
+                }
+            }
+        }
+    }
+
+    /**
+     * Compares two names as rsync's f_name_cmp does: '.' first, then component by component, with the files of a
+     * directory before its subdirectories, a directory before its contents, and names compared as unsigned bytes, a
+     * directory's as if it ended in '/'.
+     *
+     * @param a the first name
+     * @param aIsDirectory whether the first name is a directory
+     * @param b the second name
+     * @param bIsDirectory whether the second name is a directory
+     * @return a negative number, zero, or a positive number as the first name sorts before, with, or after the second
+     */
+    static int compareNames(byte[] a, boolean aIsDirectory, byte[] b, boolean bIsDirectory) {
+        boolean aIsDot = a.length == 1 && a[0] == '.';
+        boolean bIsDot = b.length == 1 && b[0] == '.';
+        if (aIsDot || bIsDot) return aIsDot == bIsDot ? 0 : aIsDot ? -1 : 1;
+
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            int aEnd = end(a, i);
+            int bEnd = end(b, j);
+            boolean aPath = aEnd < a.length || aIsDirectory;
+            boolean bPath = bEnd < b.length || bIsDirectory;
+            if (aPath != bPath) return aPath ? 1 : -1;
+
+            int length = Math.min(aEnd - i, bEnd - j);
+            for (int k = 0; k < length; k++) {
+                int difference = (a[i + k] & 0xff) - (b[j + k] & 0xff);
+                if (difference != 0) return difference;
+            }
+            if (aEnd - i != bEnd - j) {
+                int aNext = aEnd - i > length ? a[i + length] & 0xff : aPath ? '/' : 0;
+                int bNext = bEnd - j > length ? b[j + length] & 0xff : bPath ? '/' : 0;
+                return aNext - bNext;
+            }
+            i = aEnd + 1;
+            j = bEnd + 1;
+        }
+
+        // One name is a directory holding the other
+        if (i < a.length) return 1;
+        if (j < b.length) return -1;
+        return 0;
+    }
+
+    private static int end(byte[] name, int from) {
+        int end = from;
+        while (end < name.length && name[end] != '/') end++;
+        return end;
+    }
+
+    @Override public int getSize() { return size; }
+    @Override public int getFirstIndex() { return firstIndex; }
+    @Override public byte[] getFileListData() { return data.clone(); }
+    @Override public ByteBuffer getFileListBuffer() { return ByteBuffer.wrap(data); }
+    @Override public RsyncFile getFile(int index) { return parts.get(partOf[index]).getFile(positionIn[index]); }
+    @Override public RsyncFile getRoot() { return parts.isEmpty() ? null : parts.get(0).getRoot(); }
+
+    /**
+     * Returns which of the merged lists a file is from.
+     *
+     * @param index the file's position in the merged list
+     * @return the position of its list in the lists merged
+     */
+    int getPart(int index) {
+        return partOf[index];
+    }
+
+    /**
+     * Returns a name listed by more than one of the merged lists, if there is one.
+     *
+     * @return the first name listed more than once, or null if every name is listed once
+     */
+    String getDuplicate() {
+        return duplicate;
+    }
+
+    @Override
+    public boolean retain() {
+        // The merged data is on the heap, but the files are those of the lists merged
+        for (int held = 0; held < parts.size(); held++) {
+            if (!parts.get(held).retain()) {
+                for (int part = 0; part < held; part++) {
+                    parts.get(part).release();
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void release() {
+        for (FileList part : parts) {
+            part.release();
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package net.apnic.rpki.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The lists of an incremental recursion over several paths, made from the lists of each path.  The first list merges
+ * the first list of every path, as rsync's sender lists all of its arguments in its first list.  rsync's sender then
+ * numbers the directories of that list in the order they sort, and visits each in turn but '.', listing its
+ * subdirectories before moving on; so the later lists of each path are sent one path after another, in the order of
+ * their top directories, with their directory and file indexes moved on past the lists sent before them.
+ *
+ * That order holds only while each path's top directories sort together, and while no two paths list the same name
+ * at the top.  Paths that cannot be merged are refused, rather than sent in an order the client does not expect.
+ *
+ * @author bje
+ * @since 1.1
+ */
+final class MergedIncrementalFileList implements IncrementalFileList {
+    private final List<IncrementalFileList> parts;
+    private final int[][] topIndexes;
+    private final int[] visits;
+    private FileList first;
+    private int visited = 0;
+    private int nextDirectoryIndex;
+    private int used = 0;
+    private int nextFirstIndex = 1;
+    private int directoryIndex = -1;
+
+    /**
+     * Merges the lists of several paths, taking over the caller's hold on them; they are released if they cannot be
+     * merged.
+     *
+     * @param parts the lists of each path, in the order the paths were requested, none of them yet started
+     * @param dotDirs whether each path is a directory requested with a trailing slash, whose first list holds '.'
+     * @throws IllegalArgumentException if the paths' directories cannot be sent in the order the client expects
+     */
+    MergedIncrementalFileList(List<IncrementalFileList> parts, boolean[] dotDirs) {
+        this.parts = parts;
+        List<FileList> tops = new ArrayList<>();
+        try {
+            for (IncrementalFileList part : parts) {
+                tops.add(part.next());
+            }
+            MergedFileList merged = new MergedFileList(tops, dotDirs, 1);
+            this.first = merged;
+
+            // Number the top directories in the order they sort, as rsync's sender does
+            int[] counts = new int[parts.size()];
+            int[] lowest = new int[parts.size()];
+            int[] highest = new int[parts.size()];
+            topIndexes = new int[parts.size()][];
+            for (int part = 0; part < parts.size(); part++) {
+                topIndexes[part] = new int[0];
+                lowest[part] = Integer.MAX_VALUE;
+                highest[part] = -1;
+            }
+            if (merged.getDuplicate() != null) {
+                throw new IllegalArgumentException("Paths listing the same name cannot be sent together: "
+                        + merged.getDuplicate());
+            }
+            for (int position = 0; position < merged.getSize(); position++) {
+                if (!merged.getFile(position).isDirectory()) continue;
+                int part = merged.getPart(position);
+                topIndexes[part] = Arrays.copyOf(topIndexes[part], counts[part] + 1);
+                topIndexes[part][counts[part]] = nextDirectoryIndex;
+
+                // '.' is numbered, but not visited: its subdirectories are among the top directories
+                if (counts[part] > 0 || !dotDirs[part]) {
+                    lowest[part] = Math.min(lowest[part], nextDirectoryIndex);
+                    highest[part] = Math.max(highest[part], nextDirectoryIndex);
+                }
+                counts[part]++;
+                nextDirectoryIndex++;
+            }
+
+            // Each path's top directories must be visited one after another for its lists to be sent together
+            List<Integer> order = new ArrayList<>();
+            for (int part = 0; part < parts.size(); part++) {
+                if (highest[part] < 0) continue;
+                int visitedCount = counts[part] - (dotDirs[part] ? 1 : 0);
+                if (highest[part] - lowest[part] + 1 != visitedCount) {
+                    throw new IllegalArgumentException("Paths whose directories sort among each other's cannot be "
+                            + "sent together; request them separately");
+                }
+                int at = 0;
+                while (at < order.size() && lowest[order.get(at)] < lowest[part]) at++;
+                order.add(at, part);
+            }
+            visits = new int[order.size()];
+            for (int i = 0; i < visits.length; i++) {
+                visits[i] = order.get(i);
+            }
+            nextFirstIndex += merged.getSize() + 1;
+        } catch (RuntimeException ex) {
+            for (FileList top : tops) {
+                top.release();
+            }
+            for (IncrementalFileList part : parts) {
+                part.release();
+            }
+            throw ex;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        // Moving on to the next path, its new directories are numbered after those of the paths before it
+        while (first == null && visited < visits.length && !parts.get(visits[visited]).hasNext()) {
+            visited++;
+            nextDirectoryIndex += used;
+            used = 0;
+        }
+        return first != null || visited < visits.length;
+    }
+
+    @Override
+    public FileList next() {
+        if (!hasNext()) throw new NoSuchElementException();
+
+        if (first != null) {
+            FileList list = first;
+            first = null;
+            return list;
+        }
+
+        int part = visits[visited];
+        FileList list = parts.get(part).next();
+        int index = parts.get(part).getDirectoryIndex();
+        int topCount = topIndexes[part].length;
+        if (index < topCount) {
+            directoryIndex = topIndexes[part][index];
+        } else {
+            directoryIndex = nextDirectoryIndex + index - topCount;
+            used = Math.max(used, index - topCount + 1);
+        }
+
+        FileList rebased = new Rebased(list, nextFirstIndex);
+        nextFirstIndex += list.getSize() + 1;
+        return rebased;
+    }
+
+    @Override
+    public int getDirectoryIndex() {
+        return directoryIndex;
+    }
+
+    @Override
+    public void release() {
+        if (first != null) {
+            first.release();
+            first = null;
+        }
+        for (IncrementalFileList part : parts) {
+            part.release();
+        }
+    }
+
+    // A list of one path, with its indexes following on from the lists of the paths sent before it
+    private static final class Rebased implements FileList {
+        private final FileList list;
+        private final int firstIndex;
+
+        private Rebased(FileList list, int firstIndex) {
+            this.list = list;
+            this.firstIndex = firstIndex;
+        }
+
+        @Override public int getSize() { return list.getSize(); }
+        @Override public int getFirstIndex() { return firstIndex; }
+        @Override public byte[] getFileListData() { return list.getFileListData(); }
+        @Override public ByteBuffer getFileListBuffer() { return list.getFileListBuffer(); }
+        @Override public RsyncFile getFile(int index) { return list.getFile(index); }
+        @Override public RsyncFile getRoot() { return list.getRoot(); }
+        @Override public boolean retain() { return list.retain(); }
+        @Override public void release() { list.release(); }
+    }
+}
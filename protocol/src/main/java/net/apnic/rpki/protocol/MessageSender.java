@@ -1,5 +1,7 @@
 package net.apnic.rpki.protocol;
 
+import java.nio.ByteBuffer;
+
 /**
  * Provide message delivery capabilities for an RSYNC protocol instance.
  *
@@ -33,6 +35,26 @@ public interface MessageSender {
      */
     public void sendBytes(byte[] bytes, int from, int length);
 
+    /**
+     * Send the remaining bytes of a buffer.  The buffer may be sent without being copied, so its content must not
+     * change until the session ends.
+     *
+     * @param buffer the bytes to send
+     * @since 1.1
+     */
+    public void sendBytes(ByteBuffer buffer);
+
+    /**
+     * Send the remaining bytes of a buffer viewing the storage of a file list or its files.  The buffer may be sent
+     * without being copied, so the sender takes over a hold the caller has taken on the list with FileList.retain,
+     * and releases it once the bytes have been written or discarded.
+     *
+     * @param buffer the bytes to send
+     * @param owner  the list whose storage the buffer views, retained for the sender
+     * @since 1.1
+     */
+    public void sendBytes(ByteBuffer buffer, FileList owner);
+
     /**
      * Send an informational message.  This will cause any buffered data to be flushed.
      *
@@ -35,4 +35,48 @@ public interface Module {
      */
     public FileList getFileList(String rootPath, boolean recursive) throws NoSuchPathException;
 
+    /**
+     * Gets the file list of the data rooted at the given path, with the MD5 checksum of each file in its entry if
+     * asked for, as rsync sends to clients comparing files by checksum, and without the entries the client's filter
+     * rules exclude.
+     *
+     * @param rootPath the path from which to root the file list
+     * @param recursive whether to recurse into subdirectories or not
+     * @param checksums whether each file's entry carries its checksum
+     * @param rules the client's filter rules, or null to list every entry
+     * @return the file list of the data rooted at the given path
+     * @throws NoSuchPathException if the given path does not exist in this module
+     * @since 1.1
+     */
+    public FileList getFileList(String rootPath, boolean recursive, boolean checksums, FilterRules rules)
+            throws NoSuchPathException;
+
+    /**
+     * Gets the file lists of the data rooted at the given path, one directory at a time, for a recursive transfer
+     * using rsync's incremental recursion.
+     *
+     * @param rootPath the path from which to root the file lists
+     * @param checksums whether each file's entry carries its checksum
+     * @param rules the client's filter rules, or null to list every entry
+     * @return the file lists of the data rooted at the given path
+     * @throws NoSuchPathException if the given path does not exist in this module
+     * @since 1.1
+     */
+    public IncrementalFileList getIncrementalFileList(String rootPath, boolean checksums, FilterRules rules)
+            throws NoSuchPathException;
+    /**
+     * Returns the size below which a file is always sent whole, even to a client holding an older version of it.
+     *
+     * @return the smallest file, in bytes, sent as a delta
+     * @since 1.1
+     */
+    public int getMinimumDeltaSize();
+
+    /**
+     * Returns the deflate implementation the module compresses with, used also for the deltas sent from it.
+     *
+     * @return the module's deflate implementation
+     * @since 1.1
+     */
+    public ModuleConfiguration.CompressionEngine getCompressionEngine();
 }
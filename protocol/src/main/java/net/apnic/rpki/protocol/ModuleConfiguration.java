@@ -0,0 +1,381 @@
+package net.apnic.rpki.protocol;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Tunable settings for a MemoryCachedModule.  Settings are read when the module is constructed; changing a
+ * configuration afterwards has no effect on modules already built from it.
+ *
+ * @author bje
+ * @since 1.1
+ */
+public class ModuleConfiguration {
+    /**
+     * When a module compresses file content.
+     *
+     * @since 1.1
+     */
+    public enum CompressionMode {
+        /**
+         * Every file is compressed when the module is built, and the compressed content is held with the file.
+         */
+        EAGER,
+
+        /**
+         * A file is compressed when a client first requests it compressed, and the compressed content is held in a
+         * memory-bounded cache.
+         */
+        LAZY
+    }
+
+    /**
+     * The deflate implementation used to compress file content.  Engines may produce different, equally valid,
+     * output for the same content.
+     *
+     * @since 1.1
+     */
+    public enum CompressionEngine {
+        /**
+         * jzlib, a pure Java port of zlib.
+         */
+        JZLIB,
+
+        /**
+         * The JDK's java.util.zip.Deflater, using the platform's native zlib.
+         */
+        JDK
+    }
+
+    /**
+     * Where a module holds file content and file list data.
+     *
+     * @since 1.1
+     */
+    public enum StorageMode {
+        /**
+         * In byte arrays on the Java heap.
+         */
+        HEAP,
+
+        /**
+         * In pooled direct buffers outside the Java heap, freed once no client is using the generation of the module
+         * they belong to.  Keeps large modules from lengthening garbage collection pauses.
+         */
+        OFFHEAP
+    }
+
+    private Path cacheDirectory = null;
+    private StorageMode storageMode = StorageMode.HEAP;
+    private CompressionMode compressionMode = CompressionMode.EAGER;
+    private long compressedCacheSize = 64L * 1024 * 1024;
+    private CompressionEngine compressionEngine = CompressionEngine.JZLIB;
+    private boolean verifyingCompression = false;
+    private int compressionLevel = 6;
+    private int minimumCompressionGain = 5;
+    private SortedSet<Integer> allowedCompressionLevels = levels(0, 1, 2, 3, 4, 5, 6, 7, 8, 9);
+    private long fileListCacheSize = 64L * 1024 * 1024;
+    private int buildThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private int minimumDeltaSize = 16 * 1024;
+
+    /**
+     * Sets a directory in which to persist file digests and framed content between restarts.  By default nothing is
+     * persisted, and every file is hashed and compressed again on start up.
+     *
+     * @param cacheDirectory the directory to persist cached content in, or null to persist nothing
+     * @return this configuration
+     * @since 1.1
+     */
+    public ModuleConfiguration withCacheDirectory(Path cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+        return this;
+    }
+
+    /**
+     * Sets the number of threads used to hash and compress new and changed files when the module is rebuilt.  These
+     * threads run at low priority.  Defaults to half the number of available processors, leaving the remainder for
+     * serving clients.
+     *
+     * @param buildThreads the number of build threads
+     * @return this configuration
+     * @since 1.1
+     */
+    public ModuleConfiguration withBuildThreads(int buildThreads) {
+        if (buildThreads < 1) throw new IllegalArgumentException("At least one build thread is required");
+        this.buildThreads = buildThreads;
+        return this;
+    }
+
+    /**
+     * Sets the approximate number of bytes of file lists for paths below the module root to hold in memory.  Lists
+     * are built when first requested and the least recently used are discarded beyond this size.  Defaults to 64 MiB.
+     *
+     * @param fileListCacheSize the approximate number of bytes of file lists to hold
+     * @return this configuration
+     * @since 1.1
+     */
+    public ModuleConfiguration withFileListCacheSize(long fileListCacheSize) {
+        if (fileListCacheSize < 0) throw new IllegalArgumentException("The file list cache size cannot be negative");
+        this.fileListCacheSize = fileListCacheSize;
+        return this;
+    }
+
+    /**
+     * Sets when file content is compressed.  Defaults to CompressionMode.EAGER.
+     *
+     * @param compressionMode when file content is compressed
+     * @return this configuration
+     * @since 1.1
+     */
+    public ModuleConfiguration withCompressionMode(CompressionMode compressionMode) {
+        this.compressionMode = compressionMode;
+        return this;
+    }
+
+    /**
+     * Sets the approximate number of bytes of compressed content held in memory when compressing lazily.  Defaults
+     * to 64 MiB.
+     *
+     * @param compressedCacheSize the approximate number of bytes of compressed content to hold
+     * @return this configuration
+     * @since 1.1
+     */
+    public ModuleConfiguration withCompressedCacheSize(long compressedCacheSize) {
+        if (compressedCacheSize < 0) throw new IllegalArgumentException("The compressed cache size cannot be negative");
+        this.compressedCacheSize = compressedCacheSize;
+        return this;
+    }
+
+    /**
+     * Sets the deflate implementation used to compress file content.  Defaults to CompressionEngine.JZLIB.
+     *
+     * @param compressionEngine the deflate implementation to use
+     * @return this configuration
+     * @since 1.1
+     */
+    public ModuleConfiguration withCompressionEngine(CompressionEngine compressionEngine) {
+        this.compressionEngine = compressionEngine;
+        return this;
+    }
+
+    /**
+     * Sets whether all compressed content is decoded and checked against the raw content as it is produced, at
+     * roughly the cost of compressing it again.  Content that fails the check is never served.  Defaults to false.
+     *
+     * @param verifyingCompression whether to check compressed content
+     * @return this configuration
+     * @since 1.1
+     */
+    public ModuleConfiguration withVerifyingCompression(boolean verifyingCompression) {
+        this.verifyingCompression = verifyingCompression;
+        return this;
+    }
+
+    /**
+     * Sets the compression level used for clients that do not ask for one.  Content at this level is compressed as
+     * the CompressionMode says; content at any other level is compressed on first use.  Defaults to 6, as rsync does.
+     *
+     * @param compressionLevel the default compression level, from 0 to 9
+     * @return this configuration
+     * @since 1.1
+     */
+    public ModuleConfiguration withCompressionLevel(int compressionLevel) {
+        if (compressionLevel < 0 || compressionLevel > 9)
+            throw new IllegalArgumentException("Compression levels run from 0 to 9");
+        this.compressionLevel = compressionLevel;
+        return this;
+    }
+
+    /**
+     * Sets the compression levels clients may ask for.  A client asking for any other level is sent content at the
+     * default level.  Each allowed level other than the default has its own cache of compressed content, bounded by
+     * the compressed cache size.  Defaults to all levels, 0 to 9.
+     *
+     * @param allowedCompressionLevels the compression levels clients may ask for
+     * @return this configuration
+     * @since 1.1
+     */
+    public ModuleConfiguration withAllowedCompressionLevels(int... allowedCompressionLevels) {
+        for (int level : allowedCompressionLevels) {
+            if (level < 0 || level > 9) throw new IllegalArgumentException("Compression levels run from 0 to 9");
+        }
+        this.allowedCompressionLevels = levels(allowedCompressionLevels);
+        return this;
+    }
+
+    /**
+     * Sets the smallest saving, as a percentage of a file's size, for which a file is compressed.  A sample of each
+     * file is compressed when it is built; a file that deflate shrinks by less than this is not compressed, and is
+     * sent to clients asking for compression as deflate stored blocks framed from its raw content.  Zero compresses
+     * every file.  Defaults to 5.
+     *
+     * @param minimumCompressionGain the smallest saving worth compressing for, as a percentage
+     * @return this configuration
+     * @since 1.1
+     */
+    public ModuleConfiguration withMinimumCompressionGain(int minimumCompressionGain) {
+        if (minimumCompressionGain < 0 || minimumCompressionGain > 100)
+            throw new IllegalArgumentException("The minimum compression gain is a percentage");
+        this.minimumCompressionGain = minimumCompressionGain;
+        return this;
+    }
+
+    /**
+     * Sets where file content and file list data are held.  Defaults to StorageMode.HEAP.
+     *
+     * @param storageMode where file content and file list data are held
+     * @return this configuration
+     * @since 1.1
+     */
+    public ModuleConfiguration withStorageMode(StorageMode storageMode) {
+        this.storageMode = storageMode;
+        return this;
+    }
+
+    /**
+     * Sets the size below which a file is always sent whole, even to a client holding an older version of it, and a
+     * changed file has no delta precomputed from its previous version.  For each larger file that changes, the module
+     * keeps the previous version and the delta from it, raw and compressed, and sends that delta to clients holding
+     * the previous version; clients holding any other version are sent a delta made as they ask.  Defaults to 16 KiB;
+     * Integer.MAX_VALUE sends no deltas.
+     *
+     * @param minimumDeltaSize the smallest file, in bytes, sent as a delta
+     * @return this configuration
+     * @since 1.1
+     */
+    public ModuleConfiguration withMinimumDeltaSize(int minimumDeltaSize) {
+        if (minimumDeltaSize < 0) throw new IllegalArgumentException("The minimum delta size cannot be negative");
+        this.minimumDeltaSize = minimumDeltaSize;
+        return this;
+    }
+
+    private static SortedSet<Integer> levels(int... levels) {
+        SortedSet<Integer> set = new TreeSet<>();
+        for (int level : levels) {
+            set.add(level);
+        }
+        return Collections.unmodifiableSortedSet(set);
+    }
+
+    /**
+     * Returns the directory cached content is persisted in, or null if nothing is persisted.
+     *
+     * @return the directory cached content is persisted in, or null
+     * @since 1.1
+     */
+    public Path getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    /**
+     * Returns the number of threads used to hash and compress files.
+     *
+     * @return the number of build threads
+     * @since 1.1
+     */
+    public int getBuildThreads() {
+        return buildThreads;
+    }
+
+    /**
+     * Returns the approximate number of bytes of file lists to hold in memory.
+     *
+     * @return the approximate number of bytes of file lists to hold
+     * @since 1.1
+     */
+    public long getFileListCacheSize() {
+        return fileListCacheSize;
+    }
+
+    /**
+     * Returns when file content is compressed.
+     *
+     * @return when file content is compressed
+     * @since 1.1
+     */
+    public CompressionMode getCompressionMode() {
+        return compressionMode;
+    }
+
+    /**
+     * Returns the approximate number of bytes of compressed content held in memory when compressing lazily.
+     *
+     * @return the approximate number of bytes of compressed content to hold
+     * @since 1.1
+     */
+    public long getCompressedCacheSize() {
+        return compressedCacheSize;
+    }
+
+    /**
+     * Returns the deflate implementation used to compress file content.
+     *
+     * @return the deflate implementation used
+     * @since 1.1
+     */
+    public CompressionEngine getCompressionEngine() {
+        return compressionEngine;
+    }
+
+    /**
+     * Returns true if compressed content is checked as it is produced.
+     *
+     * @return true if compressed content is checked
+     * @since 1.1
+     */
+    public boolean isVerifyingCompression() {
+        return verifyingCompression;
+    }
+
+    /**
+     * Returns the compression level used for clients that do not ask for one.
+     *
+     * @return the default compression level
+     * @since 1.1
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Returns the compression levels clients may ask for.
+     *
+     * @return the allowed compression levels, in ascending order
+     * @since 1.1
+     */
+    public SortedSet<Integer> getAllowedCompressionLevels() {
+        return allowedCompressionLevels;
+    }
+
+    /**
+     * Returns the smallest saving, as a percentage of a file's size, for which a file is compressed.
+     *
+     * @return the minimum compression gain, as a percentage
+     * @since 1.1
+     */
+    public int getMinimumCompressionGain() {
+        return minimumCompressionGain;
+    }
+
+    /**
+     * Returns where file content and file list data are held.
+     *
+     * @return where file content and file list data are held
+     * @since 1.1
+     */
+    public StorageMode getStorageMode() {
+        return storageMode;
+    }
+
+    /**
+     * Returns the size below which a file is always sent whole, and a changed file has no delta precomputed.
+     *
+     * @return the smallest file, in bytes, sent as a delta
+     * @since 1.1
+     */
+    public int getMinimumDeltaSize() {
+        return minimumDeltaSize;
+    }
+}
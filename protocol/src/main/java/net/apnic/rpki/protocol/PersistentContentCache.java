@@ -0,0 +1,263 @@
+package net.apnic.rpki.protocol;
+
+import net.apnic.rpki.data.Repository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persists the expensive parts of a cached file - its MD5 and its framed raw and compressed content - on disk, so that
+ * a restarted server only hashes and compresses files that changed while it was down.
+ *
+ * Entries are keyed by path, size, modification time in nanoseconds, and file key (device and inode, where the
+ * repository provides them), so a file rewritten within the same second is not taken for the file it replaced.  They
+ * are labelled with the form of content they hold, so a change of compression settings invalidates them.
+ * Each entry is a file named for a digest of its key, written atomically.  Unreadable or mismatched entries are treated
+ * as absent.
+ *
+ * The cache is safe for use from multiple threads.
+ *
+ * @author bje
+ * @since 1.1
+ */
+// CHECKSTYLE:OFF MagicNumber
+class PersistentContentCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PersistentContentCache.class);
+    private static final int MAGIC = 0x72706b63;   // "rpkc"
+    private static final int VERSION = 4;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Path directory;
+    private final String variant;
+
+    // The entry file in use for each path in the current generation, so superseded entries can be removed
+    private final Map<String, Path> live = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * A cached digest and framed content.  The compressed content is null if it is compressed on first use, or if
+     * the content is stored: sent as deflate stored blocks because it does not compress usefully.
+     */
+    static class Entry {
+        final byte[] checksum;
+        final byte[] contents;
+        final byte[] zipped;
+        final boolean stored;
+
+        Entry(byte[] checksum, byte[] contents, byte[] zipped) {
+            this(checksum, contents, zipped, false);
+        }
+
+        Entry(byte[] checksum, byte[] contents, byte[] zipped, boolean stored) {
+            this.checksum = checksum;
+            this.contents = contents;
+            this.zipped = zipped;
+            this.stored = stored;
+        }
+    }
+
+    /**
+     * Constructs a cache persisting entries in the given directory.
+     *
+     * @param directory where to persist entries; created if it does not exist
+     * @param variant a label for the form of content cached, such as the compression settings used
+     * @throws IOException if the directory cannot be created
+     */
+    PersistentContentCache(Path directory, String variant) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.variant = variant;
+    }
+
+    private String keyOf(Repository.Node node) {
+        return String.format("%s|%d|%d|%s|%s", node.getName(), node.getSize(), node.getLastModifiedTimeNanos(),
+                node.getFileKey(), variant);
+    }
+
+    private Path fileFor(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(UTF8));
+            StringBuilder name = new StringBuilder(32);
+            for (byte b : digest) {
+                name.append(String.format("%02x", b & 0xff));
+            }
+            return directory.resolve(name.substring(0, 2)).resolve(name.toString());
+        } catch (NoSuchAlgorithmException ex) {
+            // MD5 is guaranteed available by spec, this only happens if your JRE is broken
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Returns the persisted entry for the given node, or null if there is no usable entry.
+     *
+     * @param node the node to look up
+     * @return the persisted entry for the node, or null
+     */
+    Entry lookup(Repository.Node node) {
+        String key = keyOf(node);
+        Path file = fileFor(key);
+        if (!Files.exists(file)) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !key.equals(in.readUTF()))
+                throw new IOException("entry does not match its key");
+
+            byte[] checksum = readArray(in);
+            byte[] contents = readArray(in);
+            byte[] zipped = readArray(in);
+            boolean stored = in.readBoolean();
+            markLive(node, file);
+            hits.incrementAndGet();
+            return new Entry(checksum, contents, zipped, stored);
+        } catch (IOException ex) {
+            LOGGER.debug("Discarding unusable cache entry {} for {}: {}", file, node.getName(), ex.getMessage());
+            delete(file);
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Persists an entry for the given node, replacing any entry it previously had.  Failure to persist is logged and
+     * otherwise ignored; the cache is an optimisation only.
+     *
+     * @param node the node the entry was computed for
+     * @param entry the entry to persist
+     */
+    void store(Repository.Node node, Entry entry) {
+        String key = keyOf(node);
+        Path file = fileFor(key);
+
+        try {
+            Files.createDirectories(file.getParent());
+            Path temporary = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(key);
+                writeArray(out, entry.checksum);
+                writeArray(out, entry.contents);
+                writeArray(out, entry.zipped);
+                out.writeBoolean(entry.stored);
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            markLive(node, file);
+        } catch (IOException ex) {
+            LOGGER.warn("Unable to persist cache entry for {}: {}", node.getName(), ex.getMessage());
+        }
+    }
+
+    /**
+     * Removes the entries of paths that are no longer present in the module.
+     *
+     * @param present true for each path still present, keyed by name
+     */
+    void retainPaths(Map<String, ?> present) {
+        for (Map.Entry<String, Path> entry : live.entrySet()) {
+            if (!present.containsKey(entry.getKey()) && live.remove(entry.getKey(), entry.getValue())) {
+                delete(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Removes the entries of files removed from the module.
+     *
+     * @param removed the nodes removed from the repository
+     */
+    void removePaths(List<Repository.Node> removed) {
+        for (Repository.Node node : removed) {
+            if (node.isDirectory()) continue;
+            Path file = live.remove(node.getName());
+            if (file != null) delete(file);
+        }
+    }
+
+    /**
+     * Removes every entry on disk that is not in use by the current generation.  Intended for use once, after the
+     * first generation is built, to clear out entries left by files changed while the server was down.
+     */
+    void prune() {
+        int removed = 0;
+        Set<Path> inUse = new HashSet<>(live.values());
+        try (DirectoryStream<Path> buckets = Files.newDirectoryStream(directory)) {
+            for (Path bucket : buckets) {
+                if (!Files.isDirectory(bucket)) continue;
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(bucket)) {
+                    for (Path file : files) {
+                        if (!inUse.contains(file)) {
+                            delete(file);
+                            removed++;
+                        }
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            LOGGER.warn("Unable to prune cache directory {}: {}", directory, ex.getMessage());
+        }
+        LOGGER.info("Content cache {}: {} hits, {} misses, {} stale entries removed", directory, hits.get(),
+                misses.get(), removed);
+    }
+
+    private void markLive(Repository.Node node, Path file) {
+        Path previous = live.put(node.getName(), file);
+        if (previous != null && !previous.equals(file)) delete(previous);
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ex) {
+            LOGGER.warn("Unable to remove cache entry {}: {}", file, ex.getMessage());
+        }
+    }
+
+    private static byte[] readArray(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == -1) return null;
+        if (length < 0) throw new IOException("negative array length");
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return data;
+    }
+
+    private static void writeArray(DataOutputStream out, byte[] data) throws IOException {
+        if (data == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    long getMissCount() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,163 @@
+package net.apnic.rpki.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The delta from the previous version of a changed file to the current one, encoded when the module is rebuilt, for
+ * the clients that still hold the previous version.  Most clients fetching a changed manifest or CRL hold exactly the
+ * version before it, and ask for it with the block size rsync picks for that version's length.
+ *
+ * A client's checksums are taken to describe the previous version if their block layout and every rolling checksum
+ * are the previous version's, and every block's MD5, with the session's seed, is too.  Checking costs one MD5 pass
+ * over the previous version, rather than a rolling checksum search over the current one.
+ *
+ * @author bje
+ * @since 1.1
+ */
+// CHECKSTYLE:OFF MagicNumber
+final class PrecomputedDelta {
+    // As rsync's BLOCK_SIZE and, for protocol 30, MAX_BLOCK_SIZE
+    private static final int BLOCK_SIZE = 700;
+    private static final int MAX_BLOCK_SIZE = 1 << 17;
+
+    private static final ThreadLocal<MessageDigest> DIGESTS = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException ex) {
+                // MD5 is guaranteed available by spec, this only happens if your JRE is broken
+                throw new RuntimeException(ex);
+            }
+        }
+    };
+
+    private final byte[] basis;
+    private final Checksums signature;
+    private final byte[] raw;
+    private final byte[] compressed;
+
+    private PrecomputedDelta(byte[] basis, Checksums signature, byte[] raw, byte[] compressed) {
+        this.basis = basis;
+        this.signature = signature;
+        this.raw = raw;
+        this.compressed = compressed;
+    }
+
+    /**
+     * Encodes the delta from a file's previous version to its current one, at the block size rsync picks for the
+     * previous version, unless it would be no smaller than the file itself.
+     *
+     * @param previous the raw content of the previous version, framed as for RsyncFile.getContents()
+     * @param current the raw content of the current version, framed as for RsyncFile.getContents()
+     * @param level the compression level of the compressed delta's literal data
+     * @param encoder the encoder to use
+     * @return the delta, or null if it saves nothing
+     */
+    static PrecomputedDelta compute(ByteBuffer previous, ByteBuffer current, int level, DeltaEncoder encoder) {
+        byte[] basis = unchunk(previous);
+        Checksums signature = encoder.signature(previous, blockSize(basis.length));
+        byte[] raw = encoder.encode(current, signature, 0, false, level);
+        if (raw.length >= current.remaining()) return null;
+        return new PrecomputedDelta(basis, signature, raw, encoder.encode(current, signature, 0, true, level));
+    }
+
+    /**
+     * Returns the block size rsync's generator picks for a basis file of the given length, as sum_sizes_sqroot does:
+     * the default block size, or about the square root of the length, rounded down to a multiple of 8.
+     *
+     * @param length the length of the basis file
+     * @return the block size rsync uses for the file
+     */
+    static int blockSize(long length) {
+        if (length <= (long)BLOCK_SIZE * BLOCK_SIZE) return BLOCK_SIZE;
+
+        long c = 1;
+        for (long l = length >> 2; l != 0; l >>= 2) {
+            c <<= 1;
+        }
+        if (c >= MAX_BLOCK_SIZE) return MAX_BLOCK_SIZE;
+
+        long blength = 0;
+        do {
+            blength |= c;
+            if (length < blength * blength) blength &= ~c;
+            c >>= 1;
+        } while (c >= 8);
+        return (int)Math.max(blength, BLOCK_SIZE);
+    }
+
+    /**
+     * Returns whether a client's checksums describe the previous version of the file.
+     *
+     * @param checksums the client's checksums
+     * @param checksumSeed the seed mixed into the client's block MD5s
+     * @return true if the client holds the previous version
+     */
+    boolean matches(Checksums checksums, int checksumSeed) {
+        int count = signature.getBlockCount();
+        if (!checksums.hasBlockSums() || checksums.getBlockCount() != count
+                || checksums.getBlockSize() != signature.getBlockSize()
+                || checksums.getRemainder() != signature.getRemainder()
+                || checksums.getSecondaryLength() > 16) {
+            return false;
+        }
+        for (int block = 0; block < count; block++) {
+            if (checksums.getWeakSum(block) != signature.getWeakSum(block)) return false;
+        }
+
+        MessageDigest digest = DIGESTS.get();
+        byte[] seed = new byte[] {
+                (byte)checksumSeed, (byte)(checksumSeed >> 8), (byte)(checksumSeed >> 16), (byte)(checksumSeed >> 24)
+        };
+        for (int block = 0; block < count; block++) {
+            digest.reset();
+            digest.update(basis, block * signature.getBlockSize(), signature.getBlockLength(block));
+            if (checksumSeed != 0) digest.update(seed);
+            if (!checksums.strongSumMatches(block, digest.digest())) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the delta's token stream, followed by the file's checksum.
+     *
+     * @param compressed whether to return the deflated token stream
+     * @return the delta
+     */
+    byte[] getDelta(boolean compressed) {
+        return compressed ? this.compressed : raw;
+    }
+
+    /**
+     * Returns the number of bytes the delta holds.
+     *
+     * @return the size of the delta and the previous version it is from
+     */
+    long getSize() {
+        return basis.length + raw.length + compressed.length + signature.getBlockCount() * 20L;
+    }
+
+    private static byte[] unchunk(ByteBuffer contents) {
+        ByteBuffer source = contents.duplicate();
+        source.order(ByteOrder.LITTLE_ENDIAN);
+        int size = 0;
+        for (int chunk = source.getInt(); chunk != 0; chunk = source.getInt()) {
+            source.position(source.position() + chunk);
+            size += chunk;
+        }
+
+        byte[] basis = new byte[size];
+        source = contents.duplicate();
+        source.order(ByteOrder.LITTLE_ENDIAN);
+        int position = 0;
+        for (int chunk = source.getInt(); chunk != 0; chunk = source.getInt()) {
+            source.get(basis, position, chunk);
+            position += chunk;
+        }
+        return basis;
+    }
+}
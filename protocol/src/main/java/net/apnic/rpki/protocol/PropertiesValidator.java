@@ -39,7 +39,7 @@ class PropertiesValidator {
             "block_size",           // safe to ignore for sender
             "compress",             // ** supported! **
             "skip_compress",        // safe to ignore as client will accept compressed files anyway
-            "def_compress_level",   // "
+            "def_compress_level",   // ** supported! ** where the module offers the level
             "make_backups",         // safe to ignore if deletes are not permitted
             "backup_dir",           // "
             "backup_suffix",        // "
@@ -51,6 +51,7 @@ class PropertiesValidator {
             "recurse",              // ** supported! **
             "xfer_dirs",            // ** supported! **
             "checksum_seed",        // ** supported! **
+            "always_checksum",      // ** supported! ** each file's checksum is sent in the file list
             "server",               // ** required! **
             "sender"                // ** required! **
     )));
@@ -84,8 +85,7 @@ class PropertiesValidator {
     //   append, append_mode: won't help for this model, and will cause server load
     //   missing_args: only single-arg form is supported, so it doesn't make a lot of sense to ignore errors
     //   remove_source_files: this can be sent, even though delete cannot, must be refused
-    //   cvs_exclude: if filters are ever supported, this could be too
-    //   always_checksum: affects what is sent in the file list bytestream
+    //   cvs_exclude: needs the CVS default rules, which FilterRules does not have
     //   bwlimit_arg: affects how quickly bytes are thrown at a client
     //   files_from, from0: not useful for RPKI repositories
     //   protect_args: changes the way arguments are sent on the wire; TODO: handle in RsyncHandler?
@@ -72,15 +72,27 @@ public interface Protocol {
      */
     public int getChecksumSeed();
 
+    /**
+     * Sets the client's include and exclude rules, applied to the file lists sent from then on.
+     *
+     * @param filters the rules, as the client sent them
+     * @throws ProtocolError if a rule is not supported
+     * @since 1.1
+     */
+    public void setFilters(List<String> filters) throws ProtocolError;
+
     /**
      * Send the file list through the given MessageSender.
      *
-     * Note that incremental recursion means this may not send the entire file list.  The @{sendExtraFileList} method
-     * should be called repeatedly until there are no more files to send.
+     * Note that incremental recursion means this may not send the entire file list.  The lists of further directories
+     * are sent along with the responses to @{transferFile} and @{completedList}, a little ahead of the client.
+     *
+     * Several paths are sent as one list, ordered as rsync orders its arguments' files.  Under incremental recursion,
+     * paths whose top directories sort among each other's, or which list the same name, are refused.
      *
      * @param paths the path(s) to send lists for
      * @param sender the MessageSender to use
-     * @throws ProtocolError if the path(s) do not exist
+     * @throws ProtocolError if the path(s) do not exist, or cannot be sent together
      * @since 0.9
      */
     public void sendFileList(List<String> paths, MessageSender sender) throws ProtocolError;
@@ -104,4 +116,11 @@ public interface Protocol {
      * @since 0.9
      */
     public boolean completedList(MessageSender sender) throws ProtocolError;
+
+    /**
+     * Note that the connection has ended, releasing any file list held for it.
+     *
+     * @since 1.1
+     */
+    public void close();
 }
\ No newline at end of file
@@ -4,7 +4,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
@@ -23,8 +27,13 @@ class ProtocolImpl implements Protocol {
     private Module activeModule = null;
     private Map<String, List<String>> properties;
     private int checksumSeed = (int)(System.currentTimeMillis() / 1000);
+    private int compressionLevel = -1;
+    private FilterRules filterRules;
+    private DeltaEncoder deltaEncoder;
 
-    private FileList fileList;
+    // The lists sent and not yet finished with by the client, oldest first, and the lists still to send
+    private final Deque<FileList> fileLists = new ArrayDeque<>();
+    private IncrementalFileList incrementalLists;
     private int phase;
 
     ProtocolImpl(int version, List<Module> modules) {
@@ -36,6 +45,11 @@ class ProtocolImpl implements Protocol {
     @Override public int getVersion() { return version; }
 
     private static final int NDX_DONE = -1;
+    private static final int NDX_FLIST_EOF = -2;
+    private static final int NDX_FLIST_OFFSET = -101;
+
+    // As rsync's MIN_FILECNT_LOOKAHEAD: how many files are listed ahead of the list the client is working through
+    private static final int FILE_LOOKAHEAD = 1000;
 
     private int previousPositive = -1, previous_negative = 1;
 
@@ -84,27 +98,162 @@ class ProtocolImpl implements Protocol {
 
     @Override
     public void sendFileList(List<String> paths, MessageSender sender) throws ProtocolError {
-        if (paths.size() != 1) throw new ProtocolError(ProtocolError.ErrorType.FERROR, "Requesting multiple paths is not supported");
-
         phase = 0;
+        releaseLists();
+
+        try {
+            FileList fileList;
+            if (isIncremental()) {
+                incrementalLists = paths.size() == 1
+                        ? activeModule.getIncrementalFileList(paths.get(0), alwaysChecksum(), filterRules)
+                        : mergeIncrementalLists(paths);
+                fileList = incrementalLists.next();
+            } else {
+                fileList = paths.size() == 1 ? listPath(paths.get(0), sender) : mergeFileLists(paths, sender);
+            }
+
+            if (fileList != null) {
+                fileLists.add(fileList);
+                sendHeld(sender, fileList.getFileListBuffer(), fileList);
+            }
+        } catch (NoSuchPathException ex) {
+            throw new ProtocolError(ProtocolError.ErrorType.FERROR, "the requested path does not exist.");
+        }
+
+        sender.sendByte(0);
+        sendExtraFileLists(sender);
+    }
 
-        for (String path: paths) {
-            try {
-                fileList = activeModule.getFileList(path, isRecursive());
+    // Lists a path, or returns null for a directory the client has not asked to be sent
+    private FileList listPath(String path, MessageSender sender) throws NoSuchPathException {
+        FileList fileList = activeModule.getFileList(path, isRecursive(), alwaysChecksum(), filterRules);
+        if (fileList.getRoot().isDirectory() && !isRecursive() && !xferDirs()) {
+            sender.sendInformation("skipping directory " + path);
+            fileList.release();
+            return null;
+        }
+        return fileList;
+    }
 
-                if (fileList.getRoot().isDirectory() && !isRecursive() && !xferDirs()) {
-                    sender.sendInformation("skipping directory " + path);
-                    continue;
-                }
+    // Lists several paths as one list, merging the module's list of each as rsync's sender lists its arguments
+    private FileList mergeFileLists(List<String> paths, MessageSender sender) throws NoSuchPathException {
+        List<FileList> parts = new ArrayList<>();
+        boolean[] dotDirs = new boolean[paths.size()];
+        try {
+            for (String path : paths) {
+                FileList part = listPath(path, sender);
+                if (part == null) continue;
+                dotDirs[parts.size()] = isDotDir(path);
+                parts.add(part);
+            }
+        } catch (NoSuchPathException ex) {
+            for (FileList part : parts) {
+                part.release();
+            }
+            throw ex;
+        }
+        return new MergedFileList(parts, dotDirs, 0);
+    }
 
-                sender.sendBytes(fileList.getFileListData());
-            } catch (NoSuchPathException ex) {
-                throw new ProtocolError(ProtocolError.ErrorType.FERROR, "the requested path does not exist.");
+    // Lists several paths for incremental recursion, merging the module's lists of each
+    private IncrementalFileList mergeIncrementalLists(List<String> paths) throws NoSuchPathException, ProtocolError {
+        List<IncrementalFileList> parts = new ArrayList<>();
+        boolean[] dotDirs = new boolean[paths.size()];
+        try {
+            for (String path : paths) {
+                dotDirs[parts.size()] = isDotDir(path);
+                parts.add(activeModule.getIncrementalFileList(path, alwaysChecksum(), filterRules));
             }
+        } catch (NoSuchPathException ex) {
+            for (IncrementalFileList part : parts) {
+                part.release();
+            }
+            throw ex;
         }
 
+        try {
+            return new MergedIncrementalFileList(parts, dotDirs);
+        } catch (IllegalArgumentException ex) {
+            throw new ProtocolError(ProtocolError.ErrorType.FERROR, ex.getMessage());
+        }
+    }
 
-        sender.sendByte(0);
+    // A path ending in '/', or naming the module alone, lists a directory's contents under '.'
+    private static boolean isDotDir(String path) {
+        return path.endsWith("/") || path.indexOf('/') < 0;
+    }
+
+    // As rsync's send_extra_file_list: sends the lists of further directories while fewer than FILE_LOOKAHEAD files
+    // are listed beyond the oldest list not yet finished with, then marks the end of the lists once all are sent
+    private void sendExtraFileLists(MessageSender sender) {
+        if (incrementalLists == null) return;
+
+        int ahead = -fileLists.peekFirst().getSize();
+        for (FileList list : fileLists) {
+            ahead += list.getSize();
+        }
+
+        while (incrementalLists != null) {
+            if (!incrementalLists.hasNext()) {
+                writeNdx(sender, NDX_FLIST_EOF);
+                incrementalLists.release();
+                incrementalLists = null;
+                return;
+            }
+            if (ahead >= FILE_LOOKAHEAD) return;
+
+            FileList list = incrementalLists.next();
+            writeNdx(sender, NDX_FLIST_OFFSET - incrementalLists.getDirectoryIndex());
+            sendHeld(sender, list.getFileListBuffer(), list);
+            sender.sendByte(0);
+            fileLists.add(list);
+            ahead += list.getSize();
+        }
+    }
+
+    // Finds the list holding an index, or whose directory the index refers to
+    private FileList listFor(int index) {
+        for (FileList list : fileLists) {
+            if (index >= list.getFirstIndex() - 1 && index < list.getFirstIndex() + list.getSize()) return list;
+        }
+        return null;
+    }
+
+    private void releaseLists() {
+        for (FileList list : fileLists) {
+            list.release();
+        }
+        fileLists.clear();
+        if (incrementalLists != null) {
+            incrementalLists.release();
+            incrementalLists = null;
+        }
+    }
+
+    // Sends a view of the storage of a list or its files, which the module may re-use once the list is released: the
+    // sender is given a hold on the list, to release once the bytes are written.  A list already released may have
+    // had its storage re-used, so nothing of it is sent.
+    private static void sendHeld(MessageSender sender, ByteBuffer buffer, FileList list) {
+        if (!list.retain()) throw new IllegalStateException("File list released before its storage was sent");
+        sender.sendBytes(buffer, list);
+    }
+
+    // A sender passing views of a list's storage on with a hold on the list, for framing content as it is sent
+    private static final class HeldSender implements MessageSender {
+        private final MessageSender sender;
+        private final FileList list;
+
+        private HeldSender(MessageSender sender, FileList list) {
+            this.sender = sender;
+            this.list = list;
+        }
+
+        @Override public void sendBytes(byte[] bytes) { sender.sendBytes(bytes); }
+        @Override public void sendByte(int datum) { sender.sendByte(datum); }
+        @Override public void sendBytes(byte[] bytes, int from, int length) { sender.sendBytes(bytes, from, length); }
+        @Override public void sendBytes(ByteBuffer buffer) { sendHeld(sender, buffer, list); }
+        @Override public void sendBytes(ByteBuffer buffer, FileList owner) { sender.sendBytes(buffer, owner); }
+        @Override public void sendInformation(String message) { sender.sendInformation(message); }
     }
 
     @Override
@@ -132,10 +281,14 @@ class ProtocolImpl implements Protocol {
             sender.sendByte(length & 0xff);
         }
 
-        if (attributes.getFileIndex() >= fileList.getSize())
+        FileList fileList = listFor(attributes.getFileIndex());
+        if (fileList == null) {
+            FileList first = fileLists.peekFirst(), last = fileLists.peekLast();
             throw new ProtocolError(ProtocolError.ErrorType.FERROR,
-                    String.format("RsyncFile-list index %d not in %d - %d [repositoryd]",
-                            attributes.getFileIndex(), 0, fileList.getSize() - 1));
+                    String.format("RsyncFile-list index %d not in %d - %d [repositoryd]", attributes.getFileIndex(),
+                            first == null ? 0 : first.getFirstIndex(),
+                            last == null ? -1 : last.getFirstIndex() + last.getSize() - 1));
+        }
 
         int position = attributes.getFileIndex() - fileList.getFirstIndex();
         RsyncFile file = (position >= 0) ? fileList.getFile(position) : fileList.getRoot();
@@ -152,18 +305,44 @@ class ProtocolImpl implements Protocol {
                 throw new ProtocolError(ProtocolError.ErrorType.FERROR, "Invalid transfer index");
             }
 
+            // a client holding an older version of a large enough file is sent only what has changed, precomputed
+            // when it holds the version before this one
+            ByteBuffer delta = checksums.hasBlockSums()
+                    ? file.getDeltaBuffer(checksums, checksumSeed, properties.containsKey("compress")) : null;
+            if (delta != null) {
+                sender.sendBytes(delta);
+                LOGGER.debug("Sent {} as a precomputed delta of {} blocks", file.getName(), checksums.getBlockCount());
+            } else if (checksums.hasBlockSums() && file.getSize() >= activeModule.getMinimumDeltaSize()) {
+                if (deltaEncoder == null) deltaEncoder = new DeltaEncoder(activeModule.getCompressionEngine());
+                boolean compress = properties.containsKey("compress");
+                sender.sendBytes(deltaEncoder.encode(file.getContentBuffer(), checksums, checksumSeed, compress,
+                        file.isStored() ? 0 : compressionLevel));
+                LOGGER.debug("Sent {} as a delta of {} blocks", file.getName(), checksums.getBlockCount());
             // the [compressed] contents contain framing, eof, and checksum data already
-            if (properties.containsKey("compress")) {
-                sender.sendBytes(file.getCompressedContents());
+            } else if (properties.containsKey("compress") && file.isStored()) {
+                StoredBlocks.send(file.getContentBuffer(), new HeldSender(sender, fileList));
+            } else if (properties.containsKey("compress")) {
+                sendHeld(sender, file.getCompressedContentBuffer(compressionLevel), fileList);
             } else {
-                sender.sendBytes(file.getContents());
+                sendHeld(sender, file.getContentBuffer(), fileList);
             }
         }
+
+        sendExtraFileLists(sender);
     }
 
     // CHECKSTYLE:OFF TrailingComment
     @Override
     public boolean completedList(MessageSender sender) throws ProtocolError {
+        // Under incremental recursion the client finishes with each list in turn; only the last ends the phase
+        if (fileLists.size() > 1) {
+            fileLists.removeFirst().release();
+            LOGGER.debug("File list completed, {} lists outstanding", fileLists.size());
+            writeNdx(sender, NDX_DONE);
+            sendExtraFileLists(sender);
+            return false;
+        }
+
         phase++;
         LOGGER.debug("All file lists completed, sender at phase {}", phase);
         if (phase == 2) {
@@ -185,6 +364,11 @@ class ProtocolImpl implements Protocol {
         return false;
     }
 
+    @Override
+    public void close() {
+        releaseLists();
+    }
+
     @Override
     public Iterable<Module> getModuleList() {
         return modules;
@@ -240,16 +424,42 @@ class ProtocolImpl implements Protocol {
         if (properties.containsKey("checksum_seed")) {
             checksumSeed = Integer.parseInt(properties.get("checksum_seed").get(0), 10);
         }
+
+        // A client asking for a compression level gets it if the module offers it; -1 is zlib's default level
+        if (properties.containsKey("def_compress_level")) {
+            compressionLevel = Integer.parseInt(properties.get("def_compress_level").get(0), 10);
+        }
+    }
+
+    @Override
+    public void setFilters(List<String> filters) throws ProtocolError {
+        try {
+            filterRules = FilterRules.compile(filters);
+        } catch (IllegalArgumentException ex) {
+            throw new ProtocolError(ProtocolError.ErrorType.FERROR, ex.getMessage());
+        }
+        if (filterRules != null) LOGGER.debug("Filtering file lists with {}", filterRules);
     }
 
     private boolean isRecursive() {
         return properties.containsKey("recurse");
     }
 
+    // The client compares files by checksum, and so needs each file's checksum in the file list
+    private boolean alwaysChecksum() {
+        List<String> values = properties.get("always_checksum");
+        return values != null && "1".equals(values.get(0));
+    }
+
     private boolean xferDirs() {
         return properties.containsKey("xfer_dirs");
     }
 
+    // The client only sends 'i' when none of its options rule out incremental recursion
+    private boolean isIncremental() {
+        return isRecursive() && getClientInfo().contains("i");
+    }
+
     private String getClientInfo() {
         List<String> flags = properties.get("shell_cmd");
         return flags == null ? "" : flags.get(0);
@@ -259,7 +469,9 @@ class ProtocolImpl implements Protocol {
     public byte getCompatibilityFlags() {
         byte flags = 0;
 
-        // We don't support incremental recursion
+        // Incremental recursion supported if recursing and the client sends 'i' in client_info
+        flags |= isIncremental() ? (1 << 0) : 0;
+
         // We don't support symlink times
         // We don't support symlink iconv
 
@@ -0,0 +1,44 @@
+package net.apnic.rpki.protocol;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An object whose resources are released once every holder has given up its reference.  An object starts with one
+ * reference, held by whoever created it.
+ *
+ * @author bje
+ * @since 1.1
+ */
+abstract class ReferenceCounted {
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    /**
+     * Takes another reference to this object, unless every reference to it has already been released.
+     *
+     * @return true if a reference was taken, or false if the object has been deallocated
+     */
+    boolean tryRetain() {
+        while (true) {
+            int count = references.get();
+            if (count == 0) return false;
+            if (references.compareAndSet(count, count + 1)) return true;
+        }
+    }
+
+    /**
+     * Gives up a reference to this object, deallocating it if that was the last.
+     */
+    public void release() {
+        int count = references.decrementAndGet();
+        if (count == 0) {
+            deallocate();
+        } else if (count < 0) {
+            throw new IllegalStateException("Released more often than retained");
+        }
+    }
+
+    /**
+     * Releases the object's resources, once nothing holds a reference to it.
+     */
+    protected abstract void deallocate();
+}
@@ -1,5 +1,7 @@
 package net.apnic.rpki.protocol;
 
+import java.nio.ByteBuffer;
+
 import java.util.List;
 
 /**
@@ -51,6 +53,15 @@ public interface RsyncFile {
      */
     public byte[] getContents();
 
+    /**
+     * Returns the contents of the file as a buffer, which may be a view of storage outside the Java heap.  The
+     * buffer's content remains valid until the list the file came from is released.
+     *
+     * @return the contents of the file as a buffer
+     * @since 1.1
+     */
+    public ByteBuffer getContentBuffer();
+
     /**
      * Returns the contents of the file, compressed with the rsync-specific zlib settings.
      *
@@ -59,6 +70,50 @@ public interface RsyncFile {
      */
     public byte[] getCompressedContents();
 
+    /**
+     * Returns the contents of the file, compressed with the rsync-specific zlib settings at the given level.  A file
+     * may not offer every level, in which case its contents are returned compressed at its default level.
+     *
+     * @param level the compression level the client asked for, from 0 to 9
+     * @return the compressed contents of the file as a byte array
+     * @since 1.1
+     */
+    public byte[] getCompressedContents(int level);
+
+    /**
+     * Returns the contents of the file, compressed at the given level, as a buffer which may be a view of storage
+     * outside the Java heap.  The buffer's content remains valid until the list the file came from is released.
+     *
+     * @param level the compression level the client asked for, from 0 to 9, or -1 for the file's default level
+     * @return the compressed contents of the file as a buffer
+     * @since 1.1
+     */
+    public ByteBuffer getCompressedContentBuffer(int level);
+
+    /**
+     * Returns true if the file's content does not compress usefully, and is sent to clients asking for compression
+     * as deflate stored blocks framed from its raw content.  The compressed contents of such a file are built anew on
+     * each request, and sending them with StoredBlocks avoids the copy.
+     *
+     * @return true if the file's compressed content is stored blocks
+     * @since 1.1
+     */
+    public boolean isStored();
+
+    /**
+     * Returns the file's content as a delta from its previous version, for a client whose checksums show it holds
+     * that version: the rsync token stream, deflated if asked for, followed by the file's checksum.  A delta is kept
+     * only for larger files that changed, and only for clients whose block size is the one rsync picks for the
+     * previous version.
+     *
+     * @param checksums the client's checksums of its basis file
+     * @param checksumSeed the seed mixed into the client's block MD5s
+     * @param compressed whether to return the deflated token stream
+     * @return the delta, or null if there is none for the client's basis file
+     * @since 1.1
+     */
+    public ByteBuffer getDeltaBuffer(Checksums checksums, int checksumSeed, boolean compressed);
+
     /**
      * Returns the MD5 checksum of the file.
      *
@@ -28,7 +28,7 @@ public class RsyncUtils {
         }
 
         bit = 1 << (7 - cnt + minBytes);
-        if (buf[cnt] >= bit) {
+        if ((buf[cnt] & 0xff) >= bit) {
             cnt++;
             buf[0] = (byte)~(bit - 1);
         } else if (cnt > minBytes) {
@@ -0,0 +1,119 @@
+package net.apnic.rpki.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Frames raw file content as a compressed rsync token stream made of deflate stored blocks, for content that deflate
+ * would barely shrink.  A stored block is a five byte header followed by the bytes themselves, so the stream is built
+ * from a file's raw content as it is sent, without compressing it or holding a second copy: the raw content is passed
+ * to the MessageSender in slices.
+ *
+ * Each raw chunk becomes one stored block, split over DEFLATED_DATA tokens of up to 16383 bytes.  The stream ends as
+ * zlib's does after a sync flush with its 00 00 ff ff marker removed: with the single zero byte of an empty stored
+ * block's header.  Any rsync receiver inflates it as it would a stream compressed at level 0.
+ *
+ * @author bje
+ * @since 1.1
+ */
+// CHECKSTYLE:OFF MagicNumber
+final class StoredBlocks {
+    private static final int DEFLATED_DATA = 0x40;
+    private static final int END_FLAG = 0x00;
+    private static final int MAX_DATA_COUNT = 16383;
+    private static final int HEADER_LENGTH = 5;
+
+    private StoredBlocks() {
+    }
+
+    /**
+     * Sends raw content as a stored-block token stream, followed by its checksum.
+     *
+     * @param contents the raw content, framed as for RsyncFile.getContents()
+     * @param sender the destination for the token stream
+     */
+    static void send(ByteBuffer contents, MessageSender sender) {
+        int position = 0;
+        for (int size = rawChunkSize(contents, 0); size != 0; size = rawChunkSize(contents, position)) {
+            int from = position + 4;
+            int end = from + size;
+
+            // The first token carries the block header and as much data as fits after it
+            int count = Math.min(size, MAX_DATA_COUNT - HEADER_LENGTH);
+            sender.sendBytes(new byte[] {
+                    (byte)(DEFLATED_DATA | (count + HEADER_LENGTH) >> 8), (byte)(count + HEADER_LENGTH),
+                    0x00, (byte)size, (byte)(size >> 8), (byte)~size, (byte)(~size >> 8)
+            });
+            sender.sendBytes(slice(contents, from, count));
+
+            for (from += count; from < end; from += count) {
+                count = Math.min(end - from, MAX_DATA_COUNT);
+                sender.sendBytes(new byte[] { (byte)(DEFLATED_DATA | count >> 8), (byte)count });
+                sender.sendBytes(slice(contents, from, count));
+            }
+            position = end;
+        }
+
+        sender.sendBytes(new byte[] { (byte)DEFLATED_DATA, 0x01, 0x00, END_FLAG });
+        sender.sendBytes(slice(contents, position + 4, 16));
+    }
+
+    // The length of the raw chunk whose four byte little-endian header is at position
+    private static int rawChunkSize(ByteBuffer contents, int position) {
+        int at = contents.position() + position;
+        return (contents.get(at) & 0xff) | (contents.get(at + 1) & 0xff) << 8
+                | (contents.get(at + 2) & 0xff) << 16 | (contents.get(at + 3) & 0xff) << 24;
+    }
+
+    private static ByteBuffer slice(ByteBuffer contents, int from, int length) {
+        ByteBuffer slice = contents.duplicate();
+        slice.position(contents.position() + from);
+        slice.limit(contents.position() + from + length);
+        return slice;
+    }
+
+    /**
+     * Returns raw content as a stored-block token stream, followed by its checksum, in a new array.
+     *
+     * @param contents the raw content, framed as for RsyncFile.getContents()
+     * @return the token stream, framed as for RsyncFile.getCompressedContents()
+     */
+    static byte[] frame(ByteBuffer contents) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(contents.remaining() + 64);
+        send(contents, new MessageSender() {
+            @Override
+            public void sendBytes(byte[] bytes) {
+                out.write(bytes, 0, bytes.length);
+            }
+
+            @Override
+            public void sendByte(int datum) {
+                out.write(datum);
+            }
+
+            @Override
+            public void sendBytes(byte[] bytes, int from, int length) {
+                out.write(bytes, from, length);
+            }
+
+            @Override
+            public void sendBytes(ByteBuffer buffer) {
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.duplicate().get(bytes);
+                out.write(bytes, 0, bytes.length);
+            }
+
+            @Override
+            public void sendBytes(ByteBuffer buffer, FileList owner) {
+                sendBytes(buffer);
+                owner.release();
+            }
+
+            @Override
+            public void sendInformation(String message) {
+                throw new UnsupportedOperationException();
+            }
+        });
+        return out.toByteArray();
+    }
+}
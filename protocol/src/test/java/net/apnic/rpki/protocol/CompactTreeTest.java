@@ -0,0 +1,214 @@
+package net.apnic.rpki.protocol;
+
+import net.apnic.rpki.data.ChangeSet;
+import net.apnic.rpki.data.Repository;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class CompactTreeTest {
+    private final ContentBuilder builder = new ContentBuilder("test", new ModuleConfiguration().withBuildThreads(1));
+
+    private CompactTree build(Repository.Node root, CompactTree previous) {
+        return build(root, previous, null);
+    }
+
+    // Builds a tree as MemoryCachedModule does, from the files added or changed if the change set is known
+    private CompactTree build(Repository.Node root, CompactTree previous, ChangeSet changes) {
+        List<Repository.Node> files = new ArrayList<>();
+        if (previous != null && changes != null) {
+            for (Repository.Node node : changes.getAdded()) collect(node, previous, files);
+            for (Repository.Node node : changes.getModified()) collect(node, previous, files);
+        } else {
+            collectAll(root, previous, files);
+        }
+        return CompactTree.build(root, previous, changes, built(files), null, null, new CompressedContentCache[10]);
+    }
+
+    private Map<Repository.Node, PersistentContentCache.Entry> built(Repository.Node root, CompactTree previous) {
+        List<Repository.Node> files = new ArrayList<>();
+        collectAll(root, previous, files);
+        return built(files);
+    }
+
+    private Map<Repository.Node, PersistentContentCache.Entry> built(List<Repository.Node> files) {
+        List<PersistentContentCache.Entry> entries = builder.build(files, null);
+        Map<Repository.Node, PersistentContentCache.Entry> built = new IdentityHashMap<>();
+        for (int i = 0; i < files.size(); i++) {
+            built.put(files.get(i), entries.get(i));
+        }
+        return built;
+    }
+
+    private static void collect(Repository.Node node, CompactTree previous, List<Repository.Node> files) {
+        if (!node.isDirectory() && (previous == null || previous.reusable(node) < 0)) files.add(node);
+    }
+
+    private static void collectAll(Repository.Node node, CompactTree previous, List<Repository.Node> files) {
+        if (!node.isDirectory()) {
+            collect(node, previous, files);
+            return;
+        }
+        for (Repository.Node child : node.getChildren()) {
+            collectAll(child, previous, files);
+        }
+    }
+
+    private static Repository.Node tree(Repository.Node file) {
+        return new NodeBuilder(true).withName("module")
+                .withChild(new NodeBuilder(true).withName("module/ca")
+                        .withChild(NodeBuilder.fileNode("module/ca/a.roa", new byte[] { 1 }))
+                        .withChild(file)
+                        .build())
+                .withChild(new NodeBuilder(false).withName("module/ta.cer").withContent(new byte[] { 3, 4 })
+                        .withFileKey("ta.cer").build())
+                .build();
+    }
+
+    private static Repository.Node file(String name, byte[] content, Object fileKey, long nanos) {
+        return new NodeBuilder(false).withName(name).withContent(content).withFileKey(fileKey).withNanos(nanos).build();
+    }
+
+    @Test
+    public void viewsFilesAsTheyWereBuilt() throws Exception {
+        CompactTree tree = build(tree(NodeBuilder.fileNode("module/ca/b.mft", new byte[] { 2 })), null);
+        assertThat("Every node is held", tree.size(), is(equalTo(5)));
+
+        RsyncFile root = tree.getRoot();
+        assertThat(root.getName(), is(equalTo("module")));
+        assertThat(root.isDirectory(), is(true));
+        assertThat(root.getChildren().size(), is(equalTo(2)));
+
+        RsyncFile ca = root.getChildren().get(1);
+        assertThat("A directory's children are viewed in order", ca.getChildren().get(1).getName(),
+                is(equalTo("module/ca/b.mft")));
+        assertThat("Files are found by name", tree.getFile("module/ta.cer"), is(equalTo(root.getChildren().get(0))));
+        assertThat(tree.getFile("module/ta.cer").getSize(), is(equalTo(2)));
+        assertThat(tree.getFile("module/ta.cer").getChildren(), is(nullValue()));
+        assertThat("Missing files are not found", tree.getFile("module/missing"), is(nullValue()));
+        assertThat(tree.getFiles().containsKey("module/ca/a.roa"), is(true));
+        assertThat(tree.getFiles().size(), is(equalTo(5)));
+    }
+
+    @Test
+    public void sortsChildrenAsRsyncDoes() throws Exception {
+        CompactTree tree = build(new NodeBuilder(true).withName("module")
+                .withChild(new NodeBuilder(true).withName("module/a").build())
+                .withChild(NodeBuilder.fileNode("module/\ud83d\ude00", new byte[] { 1 }))
+                .withChild(NodeBuilder.fileNode("module/\uff5e", new byte[] { 2 }))
+                .withChild(new NodeBuilder(true).withName("module/a.b").build())
+                .withChild(NodeBuilder.fileNode("module/z", new byte[] { 3 }))
+                .build(), null);
+
+        List<String> names = new ArrayList<>();
+        for (RsyncFile child : tree.getRoot().getChildren()) {
+            names.add(child.getName());
+        }
+        assertThat("Files come first, by UTF-8 bytes, and directories compare as if ending in '/'", names,
+                is(equalTo(Arrays.asList("module/z", "module/\uff5e", "module/\ud83d\ude00", "module/a.b", "module/a"))));
+    }
+
+    @Test
+    public void namesFilesFromTheirComponents() throws Exception {
+        CompactTree tree = build(tree(NodeBuilder.fileNode("module/ca/\u00e9t\u00e9.mft", new byte[] { 2 })), null);
+        assertThat(tree.getFile("module/ca/\u00e9t\u00e9.mft").getName(), is(equalTo("module/ca/\u00e9t\u00e9.mft")));
+        assertThat(tree.getFile("module/ca").getChildren().get(0).getName(), is(equalTo("module/ca/a.roa")));
+        assertThat("A suffix of a name is not the name", tree.getFile("ca/a.roa"), is(nullValue()));
+        assertThat("A name needs every component", tree.getFile("module/a.roa"), is(nullValue()));
+        assertThat("A prefix of a name is not the name", tree.getFile("module/c"), is(nullValue()));
+    }
+
+    @Test
+    public void reusesContentOfUnchangedFiles() throws Exception {
+        CompactTree first = build(tree(NodeBuilder.fileNode("module/ca/b.mft", new byte[] { 2 })), null);
+        CompactTree second = build(tree(NodeBuilder.fileNode("module/ca/b.mft", new byte[] { 5, 6 })), first);
+
+        assertThat("An unchanged file is the same file", second.getFile("module/ta.cer"),
+                is(equalTo(first.getFile("module/ta.cer"))));
+        assertThat(second.getFile("module/ta.cer").getContents(),
+                is(sameInstance(first.getFile("module/ta.cer").getContents())));
+        assertThat("A changed file is a different file", second.getFile("module/ca/b.mft"),
+                is(not(equalTo(first.getFile("module/ca/b.mft")))));
+        assertThat(second.getFile("module/ca/b.mft").getSize(), is(equalTo(2)));
+    }
+
+    @Test
+    public void rebuildsFilesRewrittenInTheSameSecond() throws Exception {
+        CompactTree first = build(tree(file("module/ca/b.mft", new byte[] { 2 }, "b.mft", 100)), null);
+        CompactTree second = build(tree(file("module/ca/b.mft", new byte[] { 7 }, "b.mft", 200)), first);
+        assertThat("A file with the same size, second, and key, but a later nanosecond, is rebuilt",
+                second.getFile("module/ca/b.mft").getContents(),
+                is(not(sameInstance(first.getFile("module/ca/b.mft").getContents()))));
+
+        CompactTree third = build(tree(file("module/ca/b.mft", new byte[] { 7 }, "b.mft", 200)), second);
+        assertThat("A new node for the same file is re-used", third.getFile("module/ca/b.mft"),
+                is(equalTo(second.getFile("module/ca/b.mft"))));
+
+        CompactTree fourth = build(tree(NodeBuilder.fileNode("module/ca/b.mft", new byte[] { 8 })), third);
+        CompactTree fifth = build(tree(NodeBuilder.fileNode("module/ca/b.mft", new byte[] { 9 })), fourth);
+        assertThat("A new node without a file key is never taken for the same file", fifth.getFile("module/ca/b.mft"),
+                is(not(equalTo(fourth.getFile("module/ca/b.mft")))));
+    }
+
+    @Test
+    public void carriesOverWhatTheChangeSetShowsUnchanged() throws Exception {
+        Repository.Node ca = new NodeBuilder(true).withName("module/ca")
+                .withChild(NodeBuilder.fileNode("module/ca/a.roa", new byte[] { 1 }))
+                .withChild(NodeBuilder.fileNode("module/ca/b.mft", new byte[] { 2 }))
+                .build();
+        Repository.Node cer = NodeBuilder.fileNode("module/ta.cer", new byte[] { 3, 4 });
+        Repository.Node before = new NodeBuilder(true).withName("module").withChild(ca).withChild(cer).build();
+        Repository.Node after = new NodeBuilder(true).withName("module").withChild(ca).withChild(cer)
+                .withChild(NodeBuilder.fileNode("module/new.crl", new byte[] { 5 })).build();
+
+        CompactTree first = build(before, null);
+        CompactTree second = build(after, first, ChangeSet.between(2, before, after));
+        assertThat("An unchanged directory is carried over whole", second.getFile("module/ca/b.mft"),
+                is(equalTo(first.getFile("module/ca/b.mft"))));
+        assertThat(second.getFile("module/ca").getChildren().get(0).getName(), is(equalTo("module/ca/a.roa")));
+        assertThat("An unchanged file without a file key is the same file", second.getFile("module/ta.cer"),
+                is(equalTo(first.getFile("module/ta.cer"))));
+        assertThat(second.getFile("module/ta.cer").getLastModifiedTime(), is(equalTo(1391755776L)));
+        assertThat("An added file is built", second.getFile("module/new.crl").getContents(), is(notNullValue()));
+        assertThat(second.size(), is(equalTo(first.size() + 1)));
+    }
+
+    @Test
+    public void holdsItsOwnReferencesToCarriedContent() throws Exception {
+        ContentStore store = new ContentStore();
+        Repository.Node root = tree(NodeBuilder.fileNode("module/ca/b.mft", new byte[] { 2 }));
+        CompactTree first = CompactTree.build(root, null, null, built(root, null), store, null,
+                new CompressedContentCache[10]);
+        Repository.Node changed = tree(NodeBuilder.fileNode("module/ca/b.mft", new byte[] { 5, 6 }));
+        CompactTree second = CompactTree.build(changed, first, null, built(changed, first), store, null,
+                new CompressedContentCache[10]);
+        assertThat("Compressed content is counted as files are built and carried", second.getCompressedSize(),
+                is(equalTo(first.getCompressedSize())));
+        assertThat(second.getStoredCount(), is(equalTo(3)));
+
+        byte[] carried = first.getFile("module/ta.cer").getContents();
+        first.releaseContent();
+        assertThat("Carried content outlives the tree it was built for",
+                second.getFile("module/ta.cer").getContents(), is(equalTo(carried)));
+        second.releaseContent();
+        assertThat(store.getLiveBytes(), is(equalTo(0L)));
+    }
+
+    @Test
+    public void listsFilesById() throws Exception {
+        CompactTree tree = build(tree(NodeBuilder.fileNode("module/ca/b.mft", new byte[] { 2 })), null);
+        List<RsyncFile> files = tree.newFileList();
+        for (int i = 0; i < 20; i++) {
+            files.add(tree.getFile("module/ca/a.roa"));
+        }
+        assertThat(files.size(), is(equalTo(20)));
+        assertThat(files.get(19), is(equalTo((RsyncFile)tree.getFile("module/ca/a.roa"))));
+    }
+}
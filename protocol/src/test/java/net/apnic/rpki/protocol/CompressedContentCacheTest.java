@@ -0,0 +1,70 @@
+package net.apnic.rpki.protocol;
+
+import net.apnic.rpki.data.Repository;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class CompressedContentCacheTest {
+    private final ContentBuilder builder = new ContentBuilder("test",
+            new ModuleConfiguration().withBuildThreads(1).withMinimumCompressionGain(0));
+
+    // A file whose compressed form is about 30 bytes
+    private RsyncFile file(String name) {
+        Repository.Node node = NodeBuilder.fileNode(name, name.getBytes());
+        PersistentContentCache.Entry entry = builder.build(Collections.singletonList(node), null).get(0);
+        RsyncFile file = mock(RsyncFile.class);
+        when(file.getName()).thenReturn(name);
+        when(file.getSize()).thenReturn(name.length());
+        when(file.getContents()).thenReturn(entry.contents);
+        when(file.getChecksum()).thenReturn(entry.checksum);
+        when(file.getCompressedContents()).thenReturn(entry.zipped);
+        return file;
+    }
+
+    @Test
+    public void compressesAsBuildsDo() throws Exception {
+        CompressedContentCache cache = new CompressedContentCache(1000, builder, 6);
+        RsyncFile file = file("module/a.cer");
+        byte[] zipped = cache.get(file);
+        assertThat("The content matches an eager build", zipped, is(equalTo(file.getCompressedContents())));
+        assertThat("The content is cached", cache.get(file), is(sameInstance(zipped)));
+    }
+
+    @Test
+    public void keepsFrequentlyUsedFiles() throws Exception {
+        CompressedContentCache cache = new CompressedContentCache(100, builder, 6);
+        RsyncFile hot = file("module/hot.cer");
+        cache.get(hot);
+        cache.get(hot);
+
+        // A scan of once-used files evicts other once-used files first
+        for (int i = 0; i < 10; i++) {
+            cache.get(file("module/cold-" + i + ".roa"));
+        }
+        assertTrue("The frequently used file is resident", cache.contains(hot));
+    }
+
+    @Test
+    public void discardsRetiredFiles() throws Exception {
+        CompressedContentCache cache = new CompressedContentCache(1000, builder, 6);
+        RsyncFile kept = file("module/kept.cer");
+        RsyncFile replaced = file("module/replaced.cer");
+        cache.get(kept);
+        cache.get(replaced);
+
+        Map<String, RsyncFile> current = new HashMap<>();
+        current.put(kept.getName(), kept);
+        current.put(replaced.getName(), file("module/replaced.cer"));
+        cache.retain(current);
+
+        assertTrue("The current file is kept", cache.contains(kept));
+        assertFalse("The replaced file is discarded", cache.contains(replaced));
+    }
+}
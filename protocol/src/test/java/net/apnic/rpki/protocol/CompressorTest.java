@@ -0,0 +1,71 @@
+package net.apnic.rpki.protocol;
+
+import net.apnic.rpki.data.Repository;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class CompressorTest {
+    @Rule
+    public final ExpectedException invalidContent = ExpectedException.none();
+
+    // Sizes around the raw and compressed chunk boundaries, with compressible and incompressible content
+    private List<Repository.Node> objects() throws Exception {
+        List<Repository.Node> nodes = new ArrayList<>();
+        Random random = new Random(7);
+        for (int size : new int[] { 0, 1, 100, 16383, 16384, 32767, 32768, 32769, 100000 }) {
+            byte[] text = new byte[size];
+            byte[] noise = new byte[size];
+            for (int i = 0; i < size; i++) {
+                text[i] = (byte)('a' + random.nextInt(8));
+            }
+            random.nextBytes(noise);
+            nodes.add(NodeBuilder.fileNode("module/text-" + size, text));
+            nodes.add(NodeBuilder.fileNode("module/noise-" + size, noise));
+        }
+
+        InputStream certStream = getClass().getResourceAsStream("/-Dcw_Tkbb492_vMXbtufxvVUHkA.cer");
+        byte[] cert = new byte[certStream.available()];
+        int used = certStream.read(cert);
+        nodes.add(NodeBuilder.fileNode("module/cert.cer", Arrays.copyOf(cert, used)));
+        return nodes;
+    }
+
+    private void verifyEngine(ModuleConfiguration.CompressionEngine engine) throws Exception {
+        List<Repository.Node> nodes = objects();
+        List<PersistentContentCache.Entry> entries = new ContentBuilder("test", new ModuleConfiguration()
+                .withCompressionEngine(engine).withVerifyingCompression(true).withMinimumCompressionGain(0))
+                .build(nodes, null);
+        for (int i = 0; i < nodes.size(); i++) {
+            CompressionVerifier.verify(nodes.get(i).getName(), entries.get(i).contents, entries.get(i).zipped);
+        }
+    }
+
+    @Test
+    public void jzlibProducesValidTokenStreams() throws Exception {
+        verifyEngine(ModuleConfiguration.CompressionEngine.JZLIB);
+    }
+
+    @Test
+    public void jdkProducesValidTokenStreams() throws Exception {
+        verifyEngine(ModuleConfiguration.CompressionEngine.JDK);
+    }
+
+    @Test
+    public void rejectsCorruptContent() throws Exception {
+        Repository.Node node = NodeBuilder.fileNode("module/file", "some content, some content".getBytes("UTF-8"));
+        PersistentContentCache.Entry entry = new ContentBuilder("test",
+                new ModuleConfiguration().withMinimumCompressionGain(0))
+                .build(Arrays.asList(node), null).get(0);
+        entry.zipped[4] ^= 0x55;
+
+        invalidContent.expect(IllegalStateException.class);
+        CompressionVerifier.verify(node.getName(), entry.contents, entry.zipped);
+    }
+}
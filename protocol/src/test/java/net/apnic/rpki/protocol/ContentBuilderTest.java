@@ -0,0 +1,91 @@
+package net.apnic.rpki.protocol;
+
+import net.apnic.rpki.data.Repository;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class ContentBuilderTest {
+    @Test
+    public void storesIncompressibleContent() throws Exception {
+        Random random = new Random(2);
+        byte[] noise = new byte[3000];
+        random.nextBytes(noise);
+        byte[] text = new byte[3000];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = (byte)(random.nextInt(16) + 'a');
+        }
+
+        List<PersistentContentCache.Entry> entries = new ContentBuilder("test",
+                new ModuleConfiguration().withVerifyingCompression(true)).build(Arrays.asList(
+                NodeBuilder.fileNode("module/noise", noise), NodeBuilder.fileNode("module/text", text)), null);
+        assertThat("Random content is stored", entries.get(0).stored, is(true));
+        assertThat("Stored content is not compressed", entries.get(0).zipped, is(nullValue()));
+        assertThat("Text is compressed", entries.get(1).stored, is(false));
+        assertThat("Text has compressed content", entries.get(1).zipped, is(notNullValue()));
+    }
+
+    @Test
+    public void parallelBuildMatchesSequentialBuild() throws Exception {
+        Random random = new Random(1);
+        List<Repository.Node> nodes = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            byte[] content = new byte[random.nextInt(70000)];
+            for (int j = 0; j < content.length; j++) {
+                content[j] = (byte)(random.nextInt(16) + 'a');
+            }
+            nodes.add(NodeBuilder.fileNode("module/file-" + i, content));
+        }
+
+        List<PersistentContentCache.Entry> sequential = new ContentBuilder("test",
+                new ModuleConfiguration().withBuildThreads(1)).build(nodes, null);
+        List<PersistentContentCache.Entry> parallel = new ContentBuilder("test",
+                new ModuleConfiguration().withBuildThreads(4)).build(nodes, null);
+
+        assertThat("Every node is built", parallel.size(), is(equalTo(nodes.size())));
+        for (int i = 0; i < nodes.size(); i++) {
+            assertThat("The checksums match", parallel.get(i).checksum, is(equalTo(sequential.get(i).checksum)));
+            assertThat("The contents match", parallel.get(i).contents, is(equalTo(sequential.get(i).contents)));
+            assertThat("The compressed contents match", parallel.get(i).zipped, is(equalTo(sequential.get(i).zipped)));
+        }
+    }
+
+    @Test
+    public void reportsAMappedFileTruncatedWhileItIsRead() throws Exception {
+        Path path = Files.createTempFile("content", ".roa");
+        try {
+            Files.write(path, new byte[65536]);
+            ByteBuffer mapped;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, 65536);
+            }
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(0);
+            }
+            Repository.Node node = mock(Repository.Node.class);
+            when(node.getName()).thenReturn("module/truncated.roa");
+            when(node.getContentBuffer()).thenReturn(mapped);
+
+            try {
+                new ContentBuilder("test", new ModuleConfiguration()).build(Arrays.asList(node), null);
+                fail("Reading a truncated mapping succeeded");
+            } catch (IllegalStateException ex) {
+                assertThat("The fault is reported as a changed file", ex.getMessage(), containsString("has changed"));
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package net.apnic.rpki.protocol;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class ContentStoreTest {
+    private static byte[] filled(int size, int value) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte)value;
+        }
+        return bytes;
+    }
+
+    @Test
+    public void viewsStoredBytes() throws Exception {
+        ContentStore store = new ContentStore();
+        ContentStore.Block both = store.allocate(filled(10, 1), filled(5, 2));
+        ContentStore.Block one = store.allocate(filled(3, 3), null);
+
+        assertThat("Content is held off the heap", both.first().isDirect(), is(true));
+        assertThat(both.first(), is(equalTo(ByteBuffer.wrap(filled(10, 1)))));
+        assertThat(both.second(), is(equalTo(ByteBuffer.wrap(filled(5, 2)))));
+        assertThat(one.first(), is(equalTo(ByteBuffer.wrap(filled(3, 3)))));
+        assertThat("A block may hold one array", one.hasSecond(), is(false));
+        assertThat(store.getLiveBytes(), is(equalTo(18L)));
+    }
+
+    @Test
+    public void reusesReleasedSlabs() throws Exception {
+        ContentStore store = new ContentStore();
+        List<ContentStore.Block> blocks = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            ContentStore.Block block = store.allocate(filled(100 * 1024, i), null);
+            store.retain(block);
+            blocks.add(block);
+        }
+        int slabs = store.getSlabCount();
+        assertThat("Blocks share slabs", slabs, is(lessThan(30)));
+
+        for (ContentStore.Block block : blocks) {
+            store.release(block);
+        }
+        assertThat(store.getLiveBytes(), is(equalTo(0L)));
+
+        for (int i = 0; i < 30; i++) {
+            store.retain(store.allocate(filled(100 * 1024, i), null));
+        }
+        assertThat("Empty slabs are re-used", store.getSlabCount(), is(equalTo(slabs)));
+    }
+
+    @Test
+    public void freesLargeBlocks() throws Exception {
+        ContentStore store = new ContentStore();
+        ContentStore.Block large = store.allocate(filled(600 * 1024, 1), null);
+        store.retain(large);
+        assertThat("A large block has a slab of its own", store.getSlabCount(), is(equalTo(1)));
+        store.retain(large);
+        store.release(large);
+        assertThat("A block is kept while referenced", store.getSlabCount(), is(equalTo(1)));
+        store.release(large);
+        assertThat("A large block's slab is not kept", store.getSlabCount(), is(equalTo(0)));
+    }
+
+    @Test
+    public void reclaimsSpaceFreedAmongLongLivedBlocks() throws Exception {
+        ContentStore store = new ContentStore();
+        List<ContentStore.Block> generation = new ArrayList<>();
+        ContentStore.Block first = null;
+        for (int update = 0; update < 200; update++) {
+            // Each generation carries over the long-lived blocks, adds one more, and replaces the churning one
+            List<ContentStore.Block> next = new ArrayList<>();
+            for (int i = 0; i < generation.size() - 1; i++) {
+                next.add(store.relocate(generation.get(i)));
+            }
+            next.add(store.allocate(filled(1024, update), null));
+            next.add(store.allocate(filled(100 * 1024, update), filled(10, update)));
+            if (first == null) first = next.get(0);
+
+            for (ContentStore.Block block : next) {
+                store.retain(block);
+            }
+            for (ContentStore.Block block : generation) {
+                store.release(block);
+            }
+            generation = next;
+        }
+
+        assertThat("About 20 MiB has been stored", store.getLiveBytes(), is(lessThan(512 * 1024L)));
+        assertThat("Slabs are held in proportion to live content", store.getSlabCount(), is(lessThanOrEqualTo(3)));
+        assertThat("A relocated block keeps its content", generation.get(0).first(),
+                is(equalTo(ByteBuffer.wrap(filled(1024, 0)))));
+        assertThat("A relocated block keeps its key", generation.get(0).getKey(), is(sameInstance(first.getKey())));
+        assertThat("The churning block keeps both runs", generation.get(200).second(),
+                is(equalTo(ByteBuffer.wrap(filled(10, 199)))));
+    }
+}
@@ -0,0 +1,175 @@
+package net.apnic.rpki.protocol;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Inflater;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+// CHECKSTYLE:OFF MagicNumber
+public class DeltaEncoderTest {
+    static final int BLOCK_SIZE = 700;
+    static final int SEED = 0x1234abcd;
+
+    private final DeltaEncoder encoder = new DeltaEncoder(ModuleConfiguration.CompressionEngine.JZLIB);
+
+    static byte[] md5(byte[] data, int offset, int length, int seed) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        digest.update(data, offset, length);
+        if (seed != 0) digest.update(new byte[] { (byte)seed, (byte)(seed >> 8), (byte)(seed >> 16), (byte)(seed >> 24) });
+        return digest.digest();
+    }
+
+    // The checksums an rsync generator sends for its basis file
+    static Checksums checksums(byte[] basis, int secondaryLength) throws Exception {
+        int count = (basis.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        int[] weak = new int[count];
+        byte[] strong = new byte[count * secondaryLength];
+        for (int block = 0; block < count; block++) {
+            int offset = block * BLOCK_SIZE;
+            int length = Math.min(BLOCK_SIZE, basis.length - offset);
+            int s1 = 0, s2 = 0;
+            for (int i = offset; i < offset + length; i++) {
+                s1 += basis[i];
+                s2 += s1;
+            }
+            weak[block] = (s1 & 0xffff) + (s2 << 16);
+            System.arraycopy(md5(basis, offset, length, SEED), 0, strong, block * secondaryLength, secondaryLength);
+        }
+        return new Checksums(count, BLOCK_SIZE, secondaryLength, basis.length % BLOCK_SIZE, weak, strong);
+    }
+
+    static ByteBuffer contents(byte[] data) throws Exception {
+        return ByteBuffer.wrap(ContentBuilder.chunkContents(ByteBuffer.wrap(data), md5(data, 0, data.length, 0), false));
+    }
+
+    private static byte[] block(byte[] basis, int block) {
+        int offset = block * BLOCK_SIZE;
+        return Arrays.copyOfRange(basis, offset, Math.min(offset + BLOCK_SIZE, basis.length));
+    }
+
+    // Rebuilds a file from an uncompressed token stream, as rsync's receiver does
+    static byte[] apply(byte[] basis, ByteBuffer tokens) {
+        tokens.order(ByteOrder.LITTLE_ENDIAN);
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        for (int token = tokens.getInt(); token != 0; token = tokens.getInt()) {
+            byte[] bytes = token > 0 ? new byte[token] : block(basis, -token - 1);
+            if (token > 0) tokens.get(bytes);
+            file.write(bytes, 0, bytes.length);
+        }
+        return file.toByteArray();
+    }
+
+    // Rebuilds a file from a deflated token stream as rsync's receiver does, adding each matched block to the
+    // inflater's history as stored blocks, as see_deflate_token does
+    static byte[] applyDeflated(byte[] basis, ByteBuffer tokens) throws Exception {
+        Inflater inflater = new Inflater(true);
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        byte[] output = new byte[65536];
+        int token = 0;
+        boolean inflating = false;
+        while (true) {
+            int flag = tokens.get() & 0xff;
+            if ((flag & 0xc0) == 0x40) {
+                byte[] data = new byte[(flag & 0x3f) << 8 | (tokens.get() & 0xff)];
+                tokens.get(data);
+                inflater.setInput(data);
+                for (int n = inflater.inflate(output); n > 0; n = inflater.inflate(output)) file.write(output, 0, n);
+                inflating = true;
+                continue;
+            }
+            if (inflating) {
+                inflater.setInput(new byte[] { 0, 0, (byte)0xff, (byte)0xff });
+                for (int n = inflater.inflate(output); n > 0; n = inflater.inflate(output)) file.write(output, 0, n);
+                inflating = false;
+            }
+            if (flag == 0) break;
+
+            int run = 0;
+            if ((flag & 0x80) != 0) {
+                token += flag & 0x3f;
+                if ((flag & 0x40) != 0) run = (tokens.get() & 0xff) | (tokens.get() & 0xff) << 8;
+            } else {
+                token = tokens.order(ByteOrder.LITTLE_ENDIAN).getInt();
+                if ((flag & 1) != 0) run = (tokens.get() & 0xff) | (tokens.get() & 0xff) << 8;
+            }
+            for (int i = 0; i <= run; i++, token++) {
+                byte[] bytes = block(basis, token);
+                file.write(bytes, 0, bytes.length);
+                ByteBuffer stored = ByteBuffer.allocate(bytes.length + 5).order(ByteOrder.LITTLE_ENDIAN);
+                stored.put((byte)0).putShort((short)bytes.length).putShort((short)~bytes.length).put(bytes);
+                inflater.setInput(stored.array());
+                while (inflater.inflate(output) > 0) {
+                    // the receiver discards what it has already copied from its basis
+                }
+            }
+            token--;
+        }
+        return file.toByteArray();
+    }
+
+    static byte[][] versions() {
+        Random random = new Random(1);
+        byte[] basis = new byte[100000];
+        for (int i = 0; i < basis.length; i++) {
+            basis[i] = (byte)"0123456789abcdef".charAt(random.nextInt(random.nextInt(16) + 1));
+        }
+
+        // The new version has bytes inserted in the middle, and a different ending
+        byte[] changed = new byte[basis.length + 100];
+        System.arraycopy(basis, 0, changed, 0, 50000);
+        Arrays.fill(changed, 50000, 50100, (byte)'x');
+        System.arraycopy(basis, 50000, changed, 50100, 49900);
+        Arrays.fill(changed, changed.length - 300, changed.length, (byte)'y');
+        return new byte[][] { basis, changed };
+    }
+
+    @Test
+    public void sendsOnlyWhatHasChanged() throws Exception {
+        byte[][] versions = versions();
+        byte[] delta = encoder.encode(contents(versions[1]), checksums(versions[0], 16), SEED, false, -1);
+
+        ByteBuffer tokens = ByteBuffer.wrap(delta);
+        assertThat(apply(versions[0], tokens), is(equalTo(versions[1])));
+        assertThat("The content's checksum follows the tokens", Arrays.copyOfRange(delta, tokens.position(),
+                delta.length), is(equalTo(md5(versions[1], 0, versions[1].length, 0))));
+        assertThat("Matched blocks are not sent", delta.length, is(lessThan(4000)));
+    }
+
+    @Test
+    public void sendsDeflatedDeltas() throws Exception {
+        byte[][] versions = versions();
+        byte[] delta = encoder.encode(contents(versions[1]), checksums(versions[0], 2), SEED, true, 6);
+
+        ByteBuffer tokens = ByteBuffer.wrap(delta);
+        assertThat(applyDeflated(versions[0], tokens), is(equalTo(versions[1])));
+        assertThat("The content's checksum follows the tokens", tokens.remaining(), is(equalTo(16)));
+        assertThat("Matched blocks are not sent", delta.length, is(lessThan(2000)));
+    }
+
+    @Test
+    public void deflatesLiteralDataWithEitherEngine() throws Exception {
+        byte[][] versions = versions();
+        byte[] delta = new DeltaEncoder(ModuleConfiguration.CompressionEngine.JDK)
+                .encode(contents(versions[1]), checksums(versions[0], 16), SEED, true, 9);
+        assertThat(applyDeflated(versions[0], ByteBuffer.wrap(delta)), is(equalTo(versions[1])));
+    }
+
+    @Test
+    public void sendsAnUnchangedFileAsOneRun() throws Exception {
+        byte[] basis = versions()[0];
+        byte[] delta = encoder.encode(contents(basis), checksums(basis, 16), SEED, true, 6);
+
+        int blocks = (basis.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        assertThat(Arrays.copyOf(delta, 4), is(equalTo(new byte[] {
+                (byte)0xc0, (byte)(blocks - 1), (byte)((blocks - 1) >> 8), 0 })));
+        assertThat(applyDeflated(basis, ByteBuffer.wrap(delta)), is(equalTo(basis)));
+    }
+}
@@ -0,0 +1,68 @@
+package net.apnic.rpki.protocol;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class FileListCacheTest {
+    private static FileListBuilder.ImmutableFileList list(int bytes) {
+        FileListBuilder.ImmutableFileList list = mock(FileListBuilder.ImmutableFileList.class);
+        when(list.getFileListBuffer()).thenReturn(ByteBuffer.allocate(bytes));
+        when(list.getSize()).thenReturn(1);
+        when(list.tryRetain()).thenReturn(true);
+        return list;
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        FileListCache cache = new FileListCache(250);
+        FileListBuilder.ImmutableFileList a = list(92), b = list(92), c = list(92);
+        cache.put("a", true, false, null, a);
+        cache.put("b", true, false, null, b);
+        assertThat(cache.get("a", true, false, null), is(sameInstance(a)));
+
+        cache.put("c", true, false, null, c);
+        assertThat("The least recently used list is evicted", cache.get("b", true, false, null), is(nullValue()));
+        verify(b).release();
+        assertThat("The recently used list is kept", cache.get("a", true, false, null), is(sameInstance(a)));
+        assertThat("The new list is kept", cache.get("c", true, false, null), is(sameInstance(c)));
+    }
+
+    @Test
+    public void keepsFirstListForPath() throws Exception {
+        FileListCache cache = new FileListCache(1000);
+        FileListBuilder.ImmutableFileList first = list(10);
+        cache.put("a", false, false, null, first);
+        FileListBuilder.ImmutableFileList racing = list(10);
+        assertThat("A racing build gets the cached list", cache.put("a", false, false, null, racing), is(sameInstance(first)));
+        verify(racing).release();
+        assertThat("Recursive and non-recursive lists are distinct", cache.get("a", true, false, null), is(nullValue()));
+        assertThat("Lists with and without checksums are distinct", cache.get("a", false, true, null), is(nullValue()));
+        assertThat("Filtered lists are distinct", cache.get("a", false, false,
+                FilterRules.compile(Arrays.asList("- *.cer"))), is(nullValue()));
+    }
+
+    @Test
+    public void keepsOversizedNewestList() throws Exception {
+        FileListCache cache = new FileListCache(10);
+        FileListBuilder.ImmutableFileList large = list(1000);
+        cache.put("large", true, false, null, large);
+        assertThat(cache.get("large", true, false, null), is(sameInstance(large)));
+        assertThat(cache.getCount(), is(equalTo(1)));
+    }
+
+    @Test
+    public void clearReleasesLists() throws Exception {
+        FileListCache cache = new FileListCache(1000);
+        FileListBuilder.ImmutableFileList a = list(10);
+        cache.put("a", true, false, null, a);
+        cache.clear();
+        verify(a).release();
+        assertThat(cache.getCount(), is(equalTo(0)));
+    }
+}
@@ -0,0 +1,170 @@
+package net.apnic.rpki.protocol;
+
+import net.apnic.rpki.data.Repository;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+// CHECKSTYLE:OFF MagicNumber
+public class FileListEncoderTest {
+    private final ContentBuilder builder = new ContentBuilder("test", new ModuleConfiguration().withBuildThreads(1));
+
+    private CompactTree build(Repository.Node root) {
+        List<Repository.Node> files = new ArrayList<>();
+        collect(root, files);
+        List<PersistentContentCache.Entry> entries = builder.build(files, null);
+        Map<Repository.Node, PersistentContentCache.Entry> built = new IdentityHashMap<>();
+        for (int i = 0; i < files.size(); i++) {
+            built.put(files.get(i), entries.get(i));
+        }
+        return CompactTree.build(root, null, null, built, null, null, new CompressedContentCache[10]);
+    }
+
+    private static void collect(Repository.Node node, List<Repository.Node> files) {
+        if (!node.isDirectory()) {
+            files.add(node);
+            return;
+        }
+        for (Repository.Node child : node.getChildren()) {
+            collect(child, files);
+        }
+    }
+
+    // Reads a list's entries back as rsync's receiver does, returning the name and size of each
+    private static List<String> decode(ByteBuffer data) {
+        return decode(data, null);
+    }
+
+    // Reads a list's entries back, collecting the checksum following each file's entry if checksums is not null
+    private static List<String> decode(ByteBuffer data, List<byte[]> checksums) {
+        List<String> entries = new ArrayList<>();
+        byte[] lastName = new byte[0];
+        int mode = 0;
+        while (data.hasRemaining()) {
+            int flags = data.get() & 0xff;
+            if ((flags & 0x04) != 0) data.get();
+            int shared = (flags & 0x20) != 0 ? data.get() & 0xff : 0;
+            int suffix = (flags & 0x40) != 0 ? (int)readVarlong(data, 1) : data.get() & 0xff;
+            byte[] name = Arrays.copyOf(lastName, shared + suffix);
+            data.get(name, shared, suffix);
+            long size = readVarlong(data, 3);
+            if ((flags & 0x80) == 0) readVarlong(data, 4);
+            if ((flags & 0x02) == 0) mode = data.order(ByteOrder.LITTLE_ENDIAN).getInt();
+            if (checksums != null && (mode & 0170000) == 0100000) {
+                byte[] checksum = new byte[16];
+                data.get(checksum);
+                checksums.add(checksum);
+            }
+            entries.add(new String(name, StandardCharsets.UTF_8) + ":" + size);
+            lastName = name;
+        }
+        return entries;
+    }
+
+    private static long readVarlong(ByteBuffer data, int minBytes) {
+        int first = data.get() & 0xff;
+        byte[] bytes = new byte[9];
+        data.get(bytes, 0, minBytes - 1);
+        int extra = Integer.numberOfLeadingZeros(~first << 24);
+        if (extra > 0) {
+            data.get(bytes, minBytes - 1, extra);
+            bytes[minBytes + extra - 1] = (byte)(first & ((1 << (8 - extra)) - 1));
+        } else {
+            bytes[minBytes - 1] = (byte)first;
+        }
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = value << 8 | (bytes[i] & 0xff);
+        }
+        return value;
+    }
+
+    @Test
+    public void sharesEachNameWithTheEntryBefore() throws Exception {
+        CompactTree tree = build(new NodeBuilder(true).withName("module")
+                .withChild(new NodeBuilder(true).withName("module/ca")
+                        .withChild(new NodeBuilder(true).withName("module/ca/child")
+                                .withChild(NodeBuilder.fileNode("module/ca/child/c.roa", new byte[] { 1 }))
+                                .build())
+                        .withChild(NodeBuilder.fileNode("module/ca/b.mft", new byte[] { 1, 2 }))
+                        .withChild(NodeBuilder.fileNode("module/ca/a.roa", new byte[] { 3 }))
+                        .build())
+                .withChild(NodeBuilder.fileNode("module/ta.cer", new byte[] { 4, 5, 6 }))
+                .build());
+
+        FileList list = new FileListBuilder().makeList("module", tree.getRoot(), true);
+        assertThat(decode(list.getFileListBuffer()), is(equalTo(Arrays.asList(
+                ".:0", "ta.cer:3", "ca:0", "ca/a.roa:1", "ca/b.mft:2", "ca/child:0", "ca/child/c.roa:1"))));
+        assertThat(list.getFile(3).getName(), is(equalTo("module/ca/a.roa")));
+    }
+
+    @Test
+    public void writesEachFilesChecksumWhenAskedFor() throws Exception {
+        CompactTree tree = build(new NodeBuilder(true).withName("module")
+                .withChild(new NodeBuilder(true).withName("module/ca")
+                        .withChild(NodeBuilder.fileNode("module/ca/a.roa", new byte[] { 3 }))
+                        .build())
+                .withChild(NodeBuilder.fileNode("module/ta.cer", new byte[] { 4, 5, 6 }))
+                .build());
+
+        List<byte[]> checksums = new ArrayList<>();
+        FileList list = new FileListBuilder().makeList("module", tree.getRoot(), true, true, null, null);
+        assertThat(decode(list.getFileListBuffer(), checksums), is(equalTo(Arrays.asList(
+                ".:0", "ta.cer:3", "ca:0", "ca/a.roa:1"))));
+        assertThat("Only files carry checksums", checksums.size(), is(equalTo(2)));
+        assertThat(checksums.get(0), is(equalTo(list.getFile(1).getChecksum())));
+        assertThat(checksums.get(1), is(equalTo(list.getFile(3).getChecksum())));
+    }
+
+    @Test
+    public void writesLongNamesInFull() throws Exception {
+        char[] leaf = new char[300];
+        Arrays.fill(leaf, 'x');
+        String name = new String(leaf);
+        CompactTree tree = build(new NodeBuilder(true).withName("module")
+                .withChild(NodeBuilder.fileNode("module/" + name, new byte[] { 1 }))
+                .withChild(NodeBuilder.fileNode("module/" + name + "y", new byte[] { 2 }))
+                .build());
+
+        FileList list = new FileListBuilder().makeList("module", tree.getRoot(), true);
+        assertThat("Shared prefixes are at most 255 bytes", decode(list.getFileListBuffer()),
+                is(equalTo(Arrays.asList(".:0", name + ":1", name + "y:1"))));
+    }
+
+    @Test
+    public void writesSizesWhoseTopByteHasItsHighBitSet() throws Exception {
+        CompactTree tree = build(new NodeBuilder(true).withName("module")
+                .withChild(new NodeBuilder(false).withName("module/large").withContent(new byte[] { 1 })
+                        .withSize(0x800000).build())
+                .withChild(new NodeBuilder(false).withName("module/larger").withContent(new byte[] { 1 })
+                        .withSize(0x7f123456).build())
+                .build());
+
+        FileList list = new FileListBuilder().makeList("module", tree.getRoot(), true);
+        assertThat(decode(list.getFileListBuffer()),
+                is(equalTo(Arrays.asList(".:0", "large:" + 0x800000, "larger:" + 0x7f123456))));
+    }
+
+    @Test
+    public void writesVarlongsAsRsyncDoes() throws Exception {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        RsyncUtils.writeVarlong(data, 0x800000, 3);
+        assertThat(data.toByteArray(), is(equalTo(new byte[] { (byte)0x80, 0x00, 0x00, (byte)0x80 })));
+
+        data.reset();
+        RsyncUtils.writeVarlong(data, 0x7fffff, 3);
+        assertThat(data.toByteArray(), is(equalTo(new byte[] { 0x7f, (byte)0xff, (byte)0xff })));
+        assertThat(readVarlong(ByteBuffer.wrap(data.toByteArray()), 3), is(equalTo(0x7fffffL)));
+    }
+}
@@ -0,0 +1,75 @@
+package net.apnic.rpki.protocol;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class FilterRulesTest {
+    private static FilterRules compile(String... rules) {
+        return FilterRules.compile(Arrays.asList(rules));
+    }
+
+    @Test
+    public void excludesByFileType() {
+        FilterRules rules = compile("- *.cer");
+        assertThat(rules.excludes("ca/child/a.cer", false), is(true));
+        assertThat(rules.excludes("a.cer", false), is(true));
+        assertThat(rules.excludes("ca/a.roa", false), is(false));
+        assertThat("The whole component must match", rules.excludes("ca/a.cerx", false), is(false));
+    }
+
+    @Test
+    public void appliesTheFirstRuleThatMatches() {
+        FilterRules rules = compile("+ */", "+ *.roa", "+ *.crl", "- *");
+        assertThat(rules.excludes("ca", true), is(false));
+        assertThat(rules.excludes("ca/a.roa", false), is(false));
+        assertThat(rules.excludes("ca/a.crl", false), is(false));
+        assertThat(rules.excludes("ca/a.mft", false), is(true));
+        assertThat("A directory-only rule does not match files", rules.excludes("ca/roa", false), is(true));
+    }
+
+    @Test
+    public void matchesNamesAndPaths() {
+        FilterRules rules = compile("- /ca/", "- child/c.roa", "- exact.mft", "- [0-9]?.roa");
+        assertThat("An anchored pattern matches at the top", rules.excludes("ca", true), is(true));
+        assertThat("An anchored pattern matches only at the top", rules.excludes("x/ca", true), is(false));
+        assertThat("A pattern with a slash matches the end of the name", rules.excludes("x/child/c.roa", false),
+                is(true));
+        assertThat("A pattern with a slash matches whole components", rules.excludes("x/achild/c.roa", false),
+                is(false));
+        assertThat(rules.excludes("x/exact.mft", false), is(true));
+        assertThat(rules.excludes("x/inexact.mft", false), is(false));
+        assertThat(rules.excludes("x/1a.roa", false), is(true));
+        assertThat(rules.excludes("x/a1.roa", false), is(false));
+    }
+
+    @Test
+    public void matchesDirectoriesAndTheirContents() {
+        FilterRules rules = compile("+ keep/***", "+ **/deep/*.roa", "- *");
+        assertThat(rules.excludes("keep", true), is(false));
+        assertThat(rules.excludes("keep/a/b.mft", false), is(false));
+        assertThat(rules.excludes("a/b/deep/c.roa", false), is(false));
+        assertThat(rules.excludes("a/b/deep/c.mft", false), is(true));
+        assertThat(rules.excludes("other", true), is(true));
+    }
+
+    @Test
+    public void compilesEachRuleSetOnce() {
+        assertThat(compile("- *.cer", "+ *.roa"), is(sameInstance(compile("- *.cer", "+ *.roa"))));
+        assertThat("Sender-only rules are the same rules", compile("H *.cer", "S *.roa"),
+                is(sameInstance(compile("- *.cer", "+ *.roa"))));
+        assertThat("A clear drops the rules before it", compile("- *.mft", "!", "- *.cer", "+ *.roa"),
+                is(sameInstance(compile("- *.cer", "+ *.roa"))));
+        assertThat("Rules for the receiver only do not filter", compile("P *.cer", "-r *.roa"), is(nullValue()));
+        assertThat(FilterRules.compile(Collections.<String>emptyList()), is(nullValue()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesMergeRules() {
+        compile(": .rsync-filter");
+    }
+}
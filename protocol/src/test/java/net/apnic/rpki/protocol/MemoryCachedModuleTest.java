@@ -1,5 +1,6 @@
 package net.apnic.rpki.protocol;
 
+import net.apnic.rpki.data.ChangeSet;
 import net.apnic.rpki.data.Repository;
 import org.junit.Before;
 import org.junit.Rule;
@@ -12,7 +13,14 @@ import org.mockito.runners.MockitoJUnitRunner;
 import org.mockito.stubbing.Answer;
 
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.*;
@@ -32,6 +40,50 @@ public class MemoryCachedModuleTest {
         return result;
     }
 
+    // A module over a mocked repository, told of the changes whenever the repository is given a new root, as
+    // FileSystemRepository tells a ChangeWatcher
+    private static final class WatchedModule {
+        private final Repository repository = mock(Repository.class);
+        private Repository.Watcher watcher;
+        private Repository.Node root;
+        private long generation = 0;
+        private MemoryCachedModule module;
+
+        void update(Repository.Node newRoot) {
+            ChangeSet changes = ChangeSet.between(++generation, root, newRoot);
+            root = newRoot;
+            ((Repository.ChangeWatcher)watcher).repositoryChanged(repository, changes);
+        }
+    }
+
+    private static WatchedModule watchedModule(Repository.Node root, ModuleConfiguration configuration) {
+        final WatchedModule watched = new WatchedModule();
+        doAnswer(new Answer() {
+            @Override
+            public Object answer(InvocationOnMock invocationOnMock) throws Throwable {
+                watched.watcher = (Repository.Watcher)invocationOnMock.getArguments()[0];
+                return null;
+            }
+        }).when(watched.repository).setWatcher(Matchers.any(Repository.Watcher.class));
+        when(watched.repository.getRepositoryRoot()).thenAnswer(new Answer<Repository.Node>() {
+            @Override
+            public Repository.Node answer(InvocationOnMock invocationOnMock) throws Throwable {
+                return watched.root;
+            }
+        });
+
+        watched.module = new MemoryCachedModule("module", "module", watched.repository, configuration);
+        watched.update(root);
+        return watched;
+    }
+
+    // A module holding one file
+    private static Repository.Node fileRoot(byte[] content) {
+        return new NodeBuilder(true).withName("module")
+                .withChild(NodeBuilder.fileNode("module/file", content))
+                .build();
+    }
+
     @Before
     public void mockRepository() throws Exception {
         final byte[] oneByte = new byte[] { 1 };
@@ -114,8 +166,10 @@ public class MemoryCachedModuleTest {
         assertThat("There is at least one file", fileList.getSize(), is(greaterThan(1)));
         byte[] compressed = fileList.getFile(1).getCompressedContents();
         assertNotNull("The first file has compressed data", compressed);
+        // Nine bytes do not compress, so are sent in a stored block
         assertThat("The first file's compressed data is correct", compressed,
-                is(equalTo(bytes(0x40, 0x0b, 0x4a, 0x4a, 0x4c, 0x29, 0xcd, 0x2d, 0x28, 0xce, 0xe0, 0x02, 0x00,
+                is(equalTo(bytes(0x40, 0x0e, 0x00, 0x09, 0x00, 0xf6, 0xff,
+                        0x62, 0x61, 0x64, 0x75, 0x6d, 0x70, 0x73, 0x68, 0x0a, 0x40, 0x01, 0x00,
                         0x00, 0x8d, 0xb4, 0xcb, 0x44, 0x9f, 0xd9, 0xee, 0x49, 0x83, 0x67, 0x84, 0xb9,
                         0x3a, 0x8f, 0x0d, 0xd5))));
     }
@@ -131,6 +185,392 @@ public class MemoryCachedModuleTest {
         assertThat("The compressed data is 1,217 bytes long", file.getCompressedContents().length, is(equalTo(1217)));
     }
 
+    @Test
+    public void compressesAtRequestedLevels() throws Exception {
+        RsyncFile file = module.getFileList("repository", true).getFile(3);
+        assertThat("The default level is compressed eagerly", file.getCompressedContents(6),
+                is(sameInstance(file.getCompressedContents())));
+        assertThat("An unknown level gets the default level", file.getCompressedContents(12),
+                is(sameInstance(file.getCompressedContents())));
+
+        byte[] stored = file.getCompressedContents(0);
+        byte[] best = file.getCompressedContents(9);
+        CompressionVerifier.verify(file.getName(), file.getContents(), stored);
+        CompressionVerifier.verify(file.getName(), file.getContents(), best);
+        assertThat("Level 9 is smaller than level 0", best.length, is(lessThan(stored.length)));
+        assertThat("Other levels are cached", file.getCompressedContents(9), is(sameInstance(best)));
+        assertThat("Memory is counted per level", module.getCompressedContentSize(9), is(equalTo((long)best.length)));
+        assertThat("Levels not requested hold nothing", module.getCompressedContentSize(3), is(equalTo(0L)));
+    }
+
+    @Test
+    public void servesOnlyAllowedLevels() throws Exception {
+        MemoryCachedModule restricted = watchedModule(fileRoot(bytes(0x62, 0x61, 0x64, 0x75, 0x6d, 0x70, 0x73, 0x68, 0x0a)),
+                new ModuleConfiguration().withCompressionLevel(1).withAllowedCompressionLevels(1, 9)
+                        .withMinimumCompressionGain(0)).module;
+
+        RsyncFile file = restricted.getFileList("module/file", false).getFile(0);
+        assertThat("A level not allowed gets the default level", file.getCompressedContents(6),
+                is(sameInstance(file.getCompressedContents())));
+        assertThat("An allowed level is compressed separately", file.getCompressedContents(9),
+                is(not(sameInstance(file.getCompressedContents()))));
+        assertThat("The default level is held for every file", restricted.getCompressedContentSize(1),
+                is(equalTo((long)file.getCompressedContents().length)));
+    }
+
+    @Test
+    public void sendsSharedNamePrefixesOnce() throws Exception {
+        String data = new String(module.getFileList("repository/838DB214166511E2B3BC286172FD1FF2/", false)
+                .getFileListData(), "ISO-8859-1");
+        assertThat("The first of two similar names is sent in full", data, containsString("C5zKkN0Neoo3ZmsZIX_g2EA3t6I.crl"));
+        assertThat("The second shares its prefix with the first", data, not(containsString("C5zKkN0Neoo3ZmsZIX_g2EA3t6I.mft")));
+        assertThat("Only the three bytes after the 28 shared are sent", data, containsString("\u001c\u0003mft"));
+    }
+
+    @Test
+    public void buildsListsOnceOnDemand() throws Exception {
+        FileList first = module.getFileList("repository/838DB214166511E2B3BC286172FD1FF2/", true);
+        assertThat("The list has the directory and its three files", first.getSize(), is(equalTo(4)));
+        assertThat("The list is re-used", module.getFileList("repository/838DB214166511E2B3BC286172FD1FF2/", true),
+                is(sameInstance(first)));
+        assertThat("The root list is held", module.getFileList("repository", true),
+                is(sameInstance(module.getFileList("repository/", true))));
+    }
+
+    @Test
+    public void cachesListsWithChecksumsSeparately() throws Exception {
+        FileList plain = module.getFileList("repository", true);
+        FileList withChecksums = module.getFileList("repository", true, true, null);
+        assertThat("The list is a variant of its own", withChecksums, is(not(sameInstance(plain))));
+        assertThat("Each of the five files carries its checksum", withChecksums.getFileListBuffer().remaining(),
+                is(equalTo(plain.getFileListBuffer().remaining() + 5 * 16)));
+        assertThat("The list is re-used", module.getFileList("repository/", true, true, null),
+                is(sameInstance(withChecksums)));
+    }
+
+    @Test
+    public void compressesLazily() throws Exception {
+        MemoryCachedModule lazy = watchedModule(fileRoot(bytes(0x62, 0x61, 0x64, 0x75, 0x6d, 0x70, 0x73, 0x68, 0x0a)),
+                new ModuleConfiguration().withCompressionMode(ModuleConfiguration.CompressionMode.LAZY)).module;
+
+        RsyncFile file = lazy.getFileList("module/file", false).getFile(0);
+        assertThat("The file is compressed on request", file.getCompressedContents(),
+                is(equalTo(module.getFileList("repository", true).getFile(1).getCompressedContents())));
+    }
+
+    @Test
+    public void holdsContentOffHeap() throws Exception {
+        WatchedModule watched = watchedModule(fileRoot(bytes(0x62, 0x61, 0x64, 0x75, 0x6d, 0x70, 0x73, 0x68, 0x0a)),
+                new ModuleConfiguration().withStorageMode(ModuleConfiguration.StorageMode.OFFHEAP));
+        MemoryCachedModule offHeap = watched.module;
+
+        FileList list = offHeap.getFileList("module", true);
+        RsyncFile file = list.getFile(1);
+        assertThat("Content is held off the heap", file.getContentBuffer().isDirect(), is(true));
+        assertThat("List data is held off the heap", list.getFileListBuffer().isDirect(), is(true));
+        assertThat("Content is unchanged", file.getContents(),
+                is(equalTo(module.getFileList("repository", true).getFile(1).getContents())));
+        assertThat("Stored blocks are framed from the content", file.getCompressedContents(),
+                is(equalTo(module.getFileList("repository", true).getFile(1).getCompressedContents())));
+        long held = offHeap.getOffHeapSize();
+
+        watched.update(fileRoot(bytes(0x62, 0x61, 0x64, 0x75, 0x6d, 0x70, 0x73, 0x68, 0x0b)));
+        assertThat("The old generation is held while a client holds its list", offHeap.getOffHeapSize(),
+                is(greaterThan(held)));
+        assertThat("The old content is still readable", file.getContentBuffer().get(12), is(equalTo((byte)0x0a)));
+
+        list.release();
+        assertThat("The old generation is freed once released", offHeap.getOffHeapSize(), is(equalTo(held)));
+    }
+
+    @Test
+    public void holdsTheBytesOfWritesStillQueued() throws Exception {
+        WatchedModule watched = watchedModule(fileRoot(bytes(0x62, 0x61, 0x64, 0x75, 0x6d, 0x70, 0x73, 0x68, 0x0a)),
+                new ModuleConfiguration().withStorageMode(ModuleConfiguration.StorageMode.OFFHEAP));
+        MemoryCachedModule offHeap = watched.module;
+
+        // A sender whose writes stay queued, as a slow client's do, until the holds on them are released
+        final List<ByteBuffer> queued = new ArrayList<>();
+        final List<byte[]> sent = new ArrayList<>();
+        final List<FileList> holds = new ArrayList<>();
+        MessageSender sender = new MessageSender() {
+            @Override public void sendBytes(byte[] bytes) { }
+            @Override public void sendByte(int datum) { }
+            @Override public void sendBytes(byte[] bytes, int from, int length) { }
+            @Override public void sendInformation(String message) { }
+            @Override
+            public void sendBytes(ByteBuffer buffer) {
+                fail("A view of the module's storage was sent without a hold");
+            }
+            @Override
+            public void sendBytes(ByteBuffer buffer, FileList owner) {
+                queued.add(buffer);
+                sent.add(toArray(buffer));
+                holds.add(owner);
+            }
+        };
+
+        ProtocolImpl protocol = new ProtocolImpl(30, Collections.<Module>singletonList(offHeap));
+        Map<String, List<String>> properties = new HashMap<>();
+        properties.put("server", Collections.<String>emptyList());
+        properties.put("sender", Collections.<String>emptyList());
+        protocol.selectModule("module");
+        protocol.setProperties(properties);
+        protocol.sendFileList(Arrays.asList("module/file"), sender);
+        protocol.transferFile(new TransferAttributes(0, EnumSet.of(ItemFlag.ITEM_TRANSFER), (byte)0, null),
+                new Checksums(0, 0, 0, 0), sender);
+        protocol.close();
+        assertThat("The list and the file's content are sent with a hold", holds.size(), is(equalTo(2)));
+
+        watched.update(fileRoot(bytes(0x62, 0x61, 0x64, 0x75, 0x6d, 0x70, 0x73, 0x68, 0x0b)));
+        long held = offHeap.getOffHeapSize();
+        for (int write = 0; write < queued.size(); write++) {
+            assertThat("A queued write's bytes survive the generation swap", toArray(queued.get(write)),
+                    is(equalTo(sent.get(write))));
+        }
+
+        for (FileList hold : holds) {
+            hold.release();
+        }
+        assertThat("The old generation is freed once its writes are done", offHeap.getOffHeapSize(),
+                is(lessThan(held)));
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void reusesUnchangedFiles() throws Exception {
+        Repository.Node stable = NodeBuilder.fileNode("module/stable", bytes(1, 2, 3));
+        WatchedModule watched = watchedModule(new NodeBuilder(true).withName("module")
+                .withChild(stable)
+                .withChild(NodeBuilder.fileNode("module/changing", bytes(4)))
+                .build(), new ModuleConfiguration());
+        MemoryCachedModule changing = watched.module;
+        RsyncFile stableBefore = changing.getFileList("module/stable", false).getFile(0);
+        RsyncFile changingBefore = changing.getFileList("module/changing", false).getFile(0);
+
+        watched.update(new NodeBuilder(true).withName("module")
+                .withChild(stable)
+                .withChild(NodeBuilder.fileNode("module/changing", bytes(5, 6)))
+                .build());
+
+        RsyncFile stableAfter = changing.getFileList("module/stable", false).getFile(0);
+        assertThat("The unchanged file is re-used", stableAfter, is(equalTo(stableBefore)));
+        assertThat("The unchanged file's content is shared", stableAfter.getContents(),
+                is(sameInstance(stableBefore.getContents())));
+        RsyncFile changingAfter = changing.getFileList("module/changing", false).getFile(0);
+        assertThat("The changed file is rebuilt", changingAfter, is(not(equalTo(changingBefore))));
+        assertThat("The changed file has its new size", changingAfter.getSize(), is(equalTo(2)));
+    }
+
+    @Test
+    public void buildsOnlyTheFilesTheChangeSetLists() throws Exception {
+        WatchedModule watched = watchedModule(new NodeBuilder(true).withName("module")
+                .withChild(NodeBuilder.fileNode("module/listed", bytes(1)))
+                .withChild(NodeBuilder.fileNode("module/unlisted", bytes(2)))
+                .build(), new ModuleConfiguration());
+        MemoryCachedModule changing = watched.module;
+        RsyncFile unlistedBefore = changing.getFileList("module/unlisted", false).getFile(0);
+
+        // A change set listing one of the two new nodes: the other is taken to be unchanged, without being examined
+        Repository.Node unlisted = NodeBuilder.fileNode("module/unlisted", bytes(5, 6));
+        Repository.Node reported = new NodeBuilder(true).withName("module")
+                .withChild(NodeBuilder.fileNode("module/listed", bytes(1)))
+                .withChild(unlisted)
+                .build();
+        Repository.Node after = new NodeBuilder(true).withName("module")
+                .withChild(NodeBuilder.fileNode("module/listed", bytes(3, 4)))
+                .withChild(unlisted)
+                .build();
+        watched.root = after;
+        ((Repository.ChangeWatcher)watched.watcher).repositoryChanged(watched.repository,
+                ChangeSet.between(2, reported, after));
+
+        assertThat("The listed file is rebuilt", changing.getFileList("module/listed", false).getFile(0).getSize(),
+                is(equalTo(2)));
+        assertThat("The unlisted file is carried over", changing.getFileList("module/unlisted", false).getFile(0),
+                is(equalTo(unlistedBefore)));
+    }
+
+    @Test
+    public void keepsTheDeltaFromAChangedFilesPreviousVersion() throws Exception {
+        byte[][] versions = DeltaEncoderTest.versions();
+        WatchedModule watched = watchedModule(new NodeBuilder(true).withName("module")
+                .withChild(NodeBuilder.fileNode("module/large.crl", versions[0]))
+                .build(), new ModuleConfiguration());
+        MemoryCachedModule changing = watched.module;
+        Checksums previous = DeltaEncoderTest.checksums(versions[0], 16);
+        assertThat("The first version has nothing to be a delta from",
+                changing.getFileList("module/large.crl", false).getFile(0)
+                        .getDeltaBuffer(previous, DeltaEncoderTest.SEED, false), is(nullValue()));
+
+        watched.update(new NodeBuilder(true).withName("module")
+                .withChild(NodeBuilder.fileNode("module/large.crl", versions[1]))
+                .build());
+
+        RsyncFile file = changing.getFileList("module/large.crl", false).getFile(0);
+        ByteBuffer delta = file.getDeltaBuffer(previous, DeltaEncoderTest.SEED, false);
+        assertThat(delta, is(notNullValue()));
+        assertThat(DeltaEncoderTest.apply(versions[0], delta), is(equalTo(versions[1])));
+        assertThat("A client holding something else has no delta",
+                file.getDeltaBuffer(DeltaEncoderTest.checksums(versions[1], 16), DeltaEncoderTest.SEED, true),
+                is(nullValue()));
+    }
+
+    @Test
+    public void listsOneDirectoryAtATime() throws Exception {
+        IncrementalFileList lists = module.getIncrementalFileList("repository/", false, null);
+
+        FileList top = lists.next();
+        assertThat("The top list holds '.' and its children", top.getSize(), is(equalTo(4)));
+        assertThat("The top list's indexes start at 1", top.getFirstIndex(), is(equalTo(1)));
+        assertThat(lists.getDirectoryIndex(), is(equalTo(-1)));
+        assertThat(top.getFile(2).getName(), is(equalTo("repository/838DB214166511E2B3BC286172FD1FF2")));
+
+        FileList ca = lists.next();
+        assertThat("'.' is the first directory listed", lists.getDirectoryIndex(), is(equalTo(1)));
+        assertThat(ca.getFirstIndex(), is(equalTo(6)));
+        assertThat(ca.getSize(), is(equalTo(3)));
+        assertThat(ca.getRoot().getName(), is(equalTo("repository/838DB214166511E2B3BC286172FD1FF2")));
+        assertThat("Names are relative to the requested directory",
+                new String(ca.getFileListData(), "ISO-8859-1"),
+                containsString("838DB214166511E2B3BC286172FD1FF2/-Dcw_Tkbb492_vMXbtufxvVUHkA.cer"));
+
+        FileList expandable = lists.next();
+        assertThat(lists.getDirectoryIndex(), is(equalTo(2)));
+        assertThat(expandable.getFirstIndex(), is(equalTo(10)));
+        assertThat(expandable.getFile(1).getName(), is(equalTo("repository/expandable/subdir")));
+
+        FileList subdir = lists.next();
+        assertThat("Directories are numbered in the order they are listed", lists.getDirectoryIndex(),
+                is(equalTo(3)));
+        assertThat("An empty directory has an empty list", subdir.getSize(), is(equalTo(0)));
+        assertThat(subdir.getFirstIndex(), is(equalTo(13)));
+        assertThat(lists.hasNext(), is(false));
+
+        for (FileList list : Arrays.asList(top, ca, expandable, subdir)) {
+            list.release();
+        }
+        lists.release();
+    }
+
+    @Test
+    public void filtersListsByTheClientsRules() throws Exception {
+        FilterRules rules = FilterRules.compile(Arrays.asList("- *.cer", "- expandable/"));
+        FileList filtered = module.getFileList("repository", true, false, rules);
+        assertThat("Only '.' and the CA's CRL and manifest are left", filtered.getSize(), is(equalTo(4)));
+        assertThat(filtered.getFile(2).getName(),
+                is(equalTo("repository/838DB214166511E2B3BC286172FD1FF2/C5zKkN0Neoo3ZmsZIX_g2EA3t6I.crl")));
+        assertThat("The filtered list is cached for the rules", module.getFileList("repository/", true, false,
+                FilterRules.compile(Arrays.asList("- *.cer", "- expandable/"))), is(sameInstance(filtered)));
+        assertThat("The filtered list is not the plain list", module.getFileList("repository", true),
+                is(not(sameInstance(filtered))));
+    }
+
+    @Test
+    public void skipsExcludedDirectoriesOneDirectoryAtATime() throws Exception {
+        IncrementalFileList lists = module.getIncrementalFileList("repository/", false,
+                FilterRules.compile(Arrays.asList("- /838DB214166511E2B3BC286172FD1FF2/")));
+
+        FileList top = lists.next();
+        assertThat("The top list holds '.' and the children left", top.getSize(), is(equalTo(3)));
+        FileList expandable = lists.next();
+        assertThat("The excluded directory is not numbered", lists.getDirectoryIndex(), is(equalTo(1)));
+        assertThat(expandable.getRoot().getName(), is(equalTo("repository/expandable")));
+        assertThat(lists.next().getSize(), is(equalTo(0)));
+        assertThat(lists.hasNext(), is(false));
+        lists.release();
+    }
+
+    @Test
+    public void listsAnEntryBeforeItsContents() throws Exception {
+        IncrementalFileList lists = module.getIncrementalFileList("repository/expandable", false, null);
+
+        FileList top = lists.next();
+        assertThat("The top list holds only the entry", top.getSize(), is(equalTo(1)));
+        assertThat(top.getFile(0).getName(), is(equalTo("repository/expandable")));
+
+        FileList contents = lists.next();
+        assertThat(lists.getDirectoryIndex(), is(equalTo(0)));
+        assertThat(contents.getFirstIndex(), is(equalTo(3)));
+        assertThat("Names are relative to the entry's parent", new String(contents.getFileListData(), "ISO-8859-1"),
+                containsString("expandable/file-1"));
+        assertThat(lists.next().getSize(), is(equalTo(0)));
+        assertThat(lists.hasNext(), is(false));
+    }
+
+    @Test
+    public void mergesTheListsOfSeveralPaths() throws Exception {
+        FileList certificate = module.getFileList("repository/apnic-rpki-root-iana-origin.cer", false);
+        FileList ca = module.getFileList("repository/838DB214166511E2B3BC286172FD1FF2/", false);
+        MergedFileList merged = new MergedFileList(Arrays.asList(certificate, ca), new boolean[] { false, true }, 0);
+
+        assertThat(merged.getSize(), is(equalTo(5)));
+        assertThat("The lists' data is sent as it is", merged.getFileListData().length, is(equalTo(
+                certificate.getFileListData().length + ca.getFileListData().length)));
+        assertThat("'.' sorts first", merged.getFile(0).getName(),
+                is(equalTo("repository/838DB214166511E2B3BC286172FD1FF2")));
+        assertThat(merged.getFile(1).getName(),
+                is(equalTo("repository/838DB214166511E2B3BC286172FD1FF2/-Dcw_Tkbb492_vMXbtufxvVUHkA.cer")));
+        assertThat("Names sort as the client receives them", merged.getFile(4).getName(),
+                is(equalTo("repository/apnic-rpki-root-iana-origin.cer")));
+        assertThat(merged.getPart(4), is(equalTo(0)));
+        assertThat(merged.getDuplicate(), is(nullValue()));
+        merged.release();
+    }
+
+    @Test
+    public void mergesTheListOfATopLevelPath() throws Exception {
+        FileList root = module.getFileList("repository", false);
+        FileList again = module.getFileList("repository", false);
+        MergedFileList merged = new MergedFileList(Arrays.asList(root, again), new boolean[] { false, false }, 0);
+
+        assertThat(merged.getSize(), is(equalTo(root.getSize() * 2)));
+        assertThat("A top-level path is named in full", merged.getDuplicate(), is(equalTo("repository")));
+        merged.release();
+    }
+
+    @Test
+    public void mergesIncrementalListsPathByPath() throws Exception {
+        IncrementalFileList lists = new MergedIncrementalFileList(Arrays.asList(
+                module.getIncrementalFileList("repository/expandable", false, null),
+                module.getIncrementalFileList("repository/838DB214166511E2B3BC286172FD1FF2/", false, null)),
+                new boolean[] { false, true });
+
+        FileList top = lists.next();
+        assertThat("The top list holds both paths' entries", top.getSize(), is(equalTo(5)));
+        assertThat(top.getFirstIndex(), is(equalTo(1)));
+        assertThat(top.getFile(4).getName(), is(equalTo("repository/expandable")));
+
+        FileList expandable = lists.next();
+        assertThat("'.' is numbered before the entry that sorts after it", lists.getDirectoryIndex(),
+                is(equalTo(1)));
+        assertThat(expandable.getFirstIndex(), is(equalTo(7)));
+        assertThat(expandable.getRoot().getName(), is(equalTo("repository/expandable")));
+
+        FileList subdir = lists.next();
+        assertThat(lists.getDirectoryIndex(), is(equalTo(2)));
+        assertThat(subdir.getFirstIndex(), is(equalTo(10)));
+        assertThat(lists.hasNext(), is(false));
+
+        for (FileList list : Arrays.asList(top, expandable, subdir)) {
+            list.release();
+        }
+        lists.release();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesIncrementalListsOfTheSameName() throws Exception {
+        new MergedIncrementalFileList(Arrays.asList(
+                module.getIncrementalFileList("repository/", false, null),
+                module.getIncrementalFileList("repository/expandable", false, null)),
+                new boolean[] { true, false });
+    }
+
     @Rule
     public final ExpectedException unknownPathException = ExpectedException.none();
 
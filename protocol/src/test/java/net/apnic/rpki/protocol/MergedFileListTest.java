@@ -0,0 +1,29 @@
+package net.apnic.rpki.protocol;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+// CHECKSTYLE:OFF MagicNumber
+public class MergedFileListTest {
+    private static int compare(String a, boolean aIsDirectory, String b, boolean bIsDirectory) {
+        Charset utf8 = Charset.forName("UTF-8");
+        return MergedFileList.compareNames(a.getBytes(utf8), aIsDirectory, b.getBytes(utf8), bIsDirectory);
+    }
+
+    @Test
+    public void sortsNamesAsRsyncDoes() {
+        assertThat("'.' sorts first", compare(".", true, "-", false), is(lessThan(0)));
+        assertThat("Files sort before directories", compare("z", false, "a", true), is(lessThan(0)));
+        assertThat("Files in a directory sort after those beside it", compare("a/b", false, "z", false),
+                is(greaterThan(0)));
+        assertThat("A directory sorts before its contents", compare("a", true, "a/b", false), is(lessThan(0)));
+        assertThat("A directory compares as if it ended in '/'", compare("a", true, "a.b", true), is(greaterThan(0)));
+        assertThat("A shorter file name sorts first", compare("a", false, "a.b", false), is(lessThan(0)));
+        assertThat("Bytes are unsigned", compare("é", false, "z", false), is(greaterThan(0)));
+        assertThat(compare("a/b", false, "a/b", false), is(equalTo(0)));
+    }
+}
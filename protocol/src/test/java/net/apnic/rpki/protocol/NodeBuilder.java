@@ -2,6 +2,7 @@ package net.apnic.rpki.protocol;
 
 import net.apnic.rpki.data.Repository;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -11,6 +12,8 @@ import java.util.List;
 class NodeBuilder {
     private String name = "unnamed";
     private long lastModifiedTime = 1391755776;
+    private long nanos = 0;
+    private Object fileKey = null;
     private boolean isDirectory = false;
     private byte[] content = null;
     private long size = 0;
@@ -34,6 +37,11 @@ class NodeBuilder {
                 return lastModifiedTime;
             }
 
+            @Override
+            public long getLastModifiedTimeNanos() {
+                return lastModifiedTime * 1000000000L + nanos;
+            }
+
             @Override
             public boolean isDirectory() {
                 return isDirectory;
@@ -44,11 +52,21 @@ class NodeBuilder {
                 return content;
             }
 
+            @Override
+            public ByteBuffer getContentBuffer() {
+                return content == null ? null : ByteBuffer.wrap(content).asReadOnlyBuffer();
+            }
+
             @Override
             public long getSize() {
                 return size;
             }
 
+            @Override
+            public Object getFileKey() {
+                return fileKey;
+            }
+
             @Override
             public List<Repository.Node> getChildren() {
                 return children;
@@ -66,6 +84,16 @@ class NodeBuilder {
         return this;
     }
 
+    NodeBuilder withNanos(long nanos) {
+        this.nanos = nanos;
+        return this;
+    }
+
+    NodeBuilder withFileKey(Object fileKey) {
+        this.fileKey = fileKey;
+        return this;
+    }
+
     NodeBuilder withContent(byte[] content) {
         this.content = content;
         this.size = content.length;
@@ -0,0 +1,116 @@
+package net.apnic.rpki.protocol;
+
+import net.apnic.rpki.data.Repository;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class PersistentContentCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final PersistentContentCache.Entry ENTRY = new PersistentContentCache.Entry(
+            new byte[] { 1, 2, 3 }, new byte[] { 4, 5 }, new byte[] { 6 });
+
+    private static Repository.Node node(String name, long size, long lastModifiedTime) {
+        return new NodeBuilder(false).withName(name).withSize(size).withLastModifiedTime(lastModifiedTime).build();
+    }
+
+    @Test
+    public void survivesRestart() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        new PersistentContentCache(directory, "test").store(node("a", 10, 100), ENTRY);
+
+        PersistentContentCache cache = new PersistentContentCache(directory, "test");
+        PersistentContentCache.Entry entry = cache.lookup(node("a", 10, 100));
+        assertThat(entry, is(notNullValue()));
+        assertThat(entry.checksum, is(equalTo(ENTRY.checksum)));
+        assertThat(entry.contents, is(equalTo(ENTRY.contents)));
+        assertThat(entry.zipped, is(equalTo(ENTRY.zipped)));
+        assertThat(cache.getHitCount(), is(equalTo(1L)));
+    }
+
+    @Test
+    public void missesChangedFiles() throws Exception {
+        PersistentContentCache cache = new PersistentContentCache(folder.getRoot().toPath(), "test");
+        cache.store(node("a", 10, 100), ENTRY);
+
+        assertThat(cache.lookup(node("a", 11, 100)), is(nullValue()));
+        assertThat(cache.lookup(node("a", 10, 101)), is(nullValue()));
+        assertThat(cache.lookup(node("b", 10, 100)), is(nullValue()));
+        assertThat(new PersistentContentCache(folder.getRoot().toPath(), "other").lookup(node("a", 10, 100)),
+                is(nullValue()));
+        assertThat(cache.getMissCount(), is(equalTo(3L)));
+    }
+
+    @Test
+    public void rebuildsFilesRewrittenInTheSameSecond() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        ContentBuilder builder = new ContentBuilder("test", new ModuleConfiguration().withBuildThreads(1));
+        Repository.Node before = new NodeBuilder(false).withName("a.mft").withContent(new byte[] { 1, 2 })
+                .withFileKey("a.mft").withNanos(100).build();
+        Repository.Node after = new NodeBuilder(false).withName("a.mft").withContent(new byte[] { 3, 4 })
+                .withFileKey("a.mft").withNanos(200).build();
+        byte[] stale = builder.build(Collections.singletonList(before), new PersistentContentCache(directory, "test"))
+                .get(0).contents;
+
+        PersistentContentCache cache = new PersistentContentCache(directory, "test");
+        List<PersistentContentCache.Entry> rebuilt = builder.build(Collections.singletonList(after), cache);
+        assertThat("A file with the same size, second, and key, but a later nanosecond, is not served from the cache",
+                rebuilt.get(0).contents, is(not(equalTo(stale))));
+        assertThat(cache.getMissCount(), is(equalTo(1L)));
+
+        PersistentContentCache restarted = new PersistentContentCache(directory, "test");
+        assertThat("The rewritten file's entry survives a restart", restarted.lookup(after).contents,
+                is(equalTo(rebuilt.get(0).contents)));
+    }
+
+    @Test
+    public void pruneRemovesUnusedEntries() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        PersistentContentCache first = new PersistentContentCache(directory, "test");
+        first.store(node("a", 10, 100), ENTRY);
+        first.store(node("b", 10, 100), ENTRY);
+
+        PersistentContentCache second = new PersistentContentCache(directory, "test");
+        assertThat(second.lookup(node("a", 10, 100)), is(notNullValue()));
+        second.prune();
+
+        PersistentContentCache third = new PersistentContentCache(directory, "test");
+        assertThat(third.lookup(node("a", 10, 100)), is(notNullValue()));
+        assertThat(third.lookup(node("b", 10, 100)), is(nullValue()));
+    }
+
+    @Test
+    public void retainPathsRemovesDeletedFiles() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        PersistentContentCache cache = new PersistentContentCache(directory, "test");
+        cache.store(node("a", 10, 100), ENTRY);
+        cache.store(node("b", 10, 100), ENTRY);
+        cache.retainPaths(Collections.singletonMap("a", true));
+
+        PersistentContentCache restarted = new PersistentContentCache(directory, "test");
+        assertThat(restarted.lookup(node("a", 10, 100)), is(notNullValue()));
+        assertThat(restarted.lookup(node("b", 10, 100)), is(nullValue()));
+    }
+
+    @Test
+    public void removePathsRemovesDeletedFiles() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        PersistentContentCache cache = new PersistentContentCache(directory, "test");
+        cache.store(node("a", 10, 100), ENTRY);
+        cache.store(node("b", 10, 100), ENTRY);
+        cache.removePaths(Collections.singletonList(node("b", 10, 100)));
+
+        PersistentContentCache restarted = new PersistentContentCache(directory, "test");
+        assertThat(restarted.lookup(node("a", 10, 100)), is(notNullValue()));
+        assertThat(restarted.lookup(node("b", 10, 100)), is(nullValue()));
+    }
+}
@@ -0,0 +1,64 @@
+package net.apnic.rpki.protocol;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+// CHECKSTYLE:OFF MagicNumber
+public class PrecomputedDeltaTest {
+    private final DeltaEncoder encoder = new DeltaEncoder(ModuleConfiguration.CompressionEngine.JZLIB);
+
+    @Test
+    public void picksRsyncsBlockSize() {
+        assertThat(PrecomputedDelta.blockSize(100), is(equalTo(700)));
+        assertThat(PrecomputedDelta.blockSize(490000), is(equalTo(700)));
+        assertThat(PrecomputedDelta.blockSize(1000000), is(equalTo(1000)));
+        assertThat(PrecomputedDelta.blockSize(1L << 40), is(equalTo(131072)));
+    }
+
+    @Test
+    public void sendsTheDeltaToAClientHoldingThePreviousVersion() throws Exception {
+        byte[][] versions = DeltaEncoderTest.versions();
+        PrecomputedDelta delta = PrecomputedDelta.compute(DeltaEncoderTest.contents(versions[0]),
+                DeltaEncoderTest.contents(versions[1]), 6, encoder);
+        assertThat(delta, is(notNullValue()));
+
+        Checksums checksums = DeltaEncoderTest.checksums(versions[0], 2);
+        assertThat(delta.matches(checksums, DeltaEncoderTest.SEED), is(true));
+        assertThat(DeltaEncoderTest.apply(versions[0], ByteBuffer.wrap(delta.getDelta(false))),
+                is(equalTo(versions[1])));
+        assertThat(DeltaEncoderTest.applyDeflated(versions[0], ByteBuffer.wrap(delta.getDelta(true))),
+                is(equalTo(versions[1])));
+    }
+
+    @Test
+    public void doesNotSendTheDeltaAgainstOtherFiles() throws Exception {
+        byte[][] versions = DeltaEncoderTest.versions();
+        PrecomputedDelta delta = PrecomputedDelta.compute(DeltaEncoderTest.contents(versions[0]),
+                DeltaEncoderTest.contents(versions[1]), 6, encoder);
+
+        byte[] other = Arrays.copyOf(versions[0], versions[0].length);
+        other[12345] ^= 1;
+        assertThat("A changed byte changes a rolling checksum",
+                delta.matches(DeltaEncoderTest.checksums(other, 16), DeltaEncoderTest.SEED), is(false));
+        assertThat("A different seed changes every MD5",
+                delta.matches(DeltaEncoderTest.checksums(versions[0], 16), 42), is(false));
+        assertThat("A shorter basis has fewer blocks",
+                delta.matches(DeltaEncoderTest.checksums(Arrays.copyOf(versions[0], 50000), 16),
+                        DeltaEncoderTest.SEED), is(false));
+    }
+
+    @Test
+    public void keepsNoDeltaBetweenUnrelatedVersions() throws Exception {
+        byte[][] versions = DeltaEncoderTest.versions();
+        byte[] unrelated = new byte[versions[1].length];
+        new Random(2).nextBytes(unrelated);
+        assertThat(PrecomputedDelta.compute(DeltaEncoderTest.contents(versions[0]),
+                DeltaEncoderTest.contents(unrelated), 6, encoder), is(nullValue()));
+    }
+}
@@ -2,13 +2,168 @@ package net.apnic.rpki.protocol;
 
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
 /**
  * @author bje
  */
+// CHECKSTYLE:OFF MagicNumber
 public class ProtocolImplTest {
     @Test
     public void propertiesTest() {
 
     }
 
+    // Collects everything sent, as the client would receive it
+    private static final class RecordingSender implements MessageSender {
+        private final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+
+        @Override public void sendBytes(byte[] bytes) { sent.write(bytes, 0, bytes.length); }
+        @Override public void sendByte(int datum) { sent.write(datum); }
+        @Override public void sendBytes(byte[] bytes, int from, int length) { sent.write(bytes, from, length); }
+        @Override public void sendBytes(ByteBuffer buffer) {
+            while (buffer.hasRemaining()) sent.write(buffer.get());
+        }
+        @Override public void sendBytes(ByteBuffer buffer, FileList owner) {
+            sendBytes(buffer);
+            owner.release();
+        }
+        @Override public void sendInformation(String message) { }
+
+        byte[] take() {
+            byte[] bytes = sent.toByteArray();
+            sent.reset();
+            return bytes;
+        }
+    }
+
+    private static FileList list(int firstIndex, int size, byte data) {
+        FileList list = mock(FileList.class);
+        when(list.getFirstIndex()).thenReturn(firstIndex);
+        when(list.getSize()).thenReturn(size);
+        when(list.getFileListBuffer()).thenReturn(ByteBuffer.wrap(new byte[] { data }));
+        when(list.getRoot()).thenReturn(mock(RsyncFile.class));
+        when(list.retain()).thenReturn(true);
+        return list;
+    }
+
+    @Test
+    public void sendsOneListPerDirectory() throws Exception {
+        FileList top = list(1, 2, (byte)'t');
+        FileList subdirectory = list(4, 1, (byte)'s');
+        IncrementalFileList lists = mock(IncrementalFileList.class);
+        when(lists.next()).thenReturn(top, subdirectory);
+        when(lists.hasNext()).thenReturn(true, false);
+        when(lists.getDirectoryIndex()).thenReturn(1);
+
+        Module module = mock(Module.class);
+        when(module.getName()).thenReturn("module");
+        when(module.getIncrementalFileList("module/", false, null)).thenReturn(lists);
+
+        ProtocolImpl protocol = new ProtocolImpl(30, Collections.singletonList(module));
+        Map<String, List<String>> properties = new HashMap<>();
+        properties.put("server", Collections.<String>emptyList());
+        properties.put("sender", Collections.<String>emptyList());
+        properties.put("recurse", Collections.<String>emptyList());
+        properties.put("shell_cmd", Collections.singletonList("e.iLsfx"));
+        protocol.selectModule("module");
+        protocol.setProperties(properties);
+        assertThat("Incremental recursion is offered", protocol.getCompatibilityFlags() & 1, is(equalTo(1)));
+
+        RecordingSender sender = new RecordingSender();
+        protocol.sendFileList(Arrays.asList("module/"), sender);
+        assertThat("Each list follows its directory's index, and the end of the lists is marked", sender.take(),
+                is(equalTo(new byte[] {
+                        't', 0,
+                        (byte)0xff, 101, 's', 0,
+                        (byte)0xff, (byte)0xfe, (byte)0x80, 2, 0, 0 })));
+        verify(lists).release();
+
+        // Each list is released once by the sender when its data is written, and once more when it is done with
+        assertThat(protocol.completedList(sender), is(false));
+        assertThat("The client's first list done is echoed", sender.take(), is(equalTo(new byte[] { 0 })));
+        verify(top, times(2)).release();
+        verify(subdirectory, times(1)).release();
+
+        protocol.close();
+        verify(subdirectory, times(2)).release();
+    }
+
+    @Test
+    public void sendsDeltasAsTheModuleIsConfigured() throws Exception {
+        byte[][] versions = DeltaEncoderTest.versions();
+        RsyncFile file = mock(RsyncFile.class);
+        when(file.getSize()).thenReturn(versions[1].length);
+        when(file.getContentBuffer()).thenReturn(DeltaEncoderTest.contents(versions[1]),
+                DeltaEncoderTest.contents(versions[1]));
+        FileList fileList = list(0, 1, (byte)'f');
+        when(fileList.getFile(0)).thenReturn(file);
+
+        Module module = mock(Module.class);
+        when(module.getName()).thenReturn("module");
+        when(module.getFileList("module/file", false, false, null)).thenReturn(fileList);
+        when(module.getMinimumDeltaSize()).thenReturn(versions[1].length + 1);
+        when(module.getCompressionEngine()).thenReturn(ModuleConfiguration.CompressionEngine.JDK);
+
+        ProtocolImpl protocol = new ProtocolImpl(30, Collections.singletonList(module));
+        Map<String, List<String>> properties = new HashMap<>();
+        properties.put("server", Collections.<String>emptyList());
+        properties.put("sender", Collections.<String>emptyList());
+        properties.put("checksum_seed", Collections.singletonList(String.valueOf(DeltaEncoderTest.SEED)));
+        protocol.selectModule("module");
+        protocol.setProperties(properties);
+
+        RecordingSender sender = new RecordingSender();
+        protocol.sendFileList(Arrays.asList("module/file"), sender);
+        TransferAttributes attributes = new TransferAttributes(0, EnumSet.of(ItemFlag.ITEM_TRANSFER), (byte)0, null);
+        Checksums checksums = DeltaEncoderTest.checksums(versions[0], 16);
+
+        sender.take();
+        protocol.transferFile(attributes, checksums, sender);
+        assertThat("A file smaller than the module's delta size is sent whole", sender.take().length,
+                is(greaterThan(versions[1].length)));
+        verify(module, never()).getCompressionEngine();
+
+        when(module.getMinimumDeltaSize()).thenReturn(versions[1].length);
+        protocol.transferFile(attributes, checksums, sender);
+        assertThat("A larger file is sent as a delta", sender.take().length, is(lessThan(4000)));
+        verify(module).getCompressionEngine();
+        protocol.close();
+    }
+
+    @Test
+    public void refusesToSendTheStorageOfAReleasedList() throws Exception {
+        FileList fileList = list(0, 1, (byte)'f');
+        when(fileList.retain()).thenReturn(false);
+        Module module = mock(Module.class);
+        when(module.getName()).thenReturn("module");
+        when(module.getFileList("module/file", false, false, null)).thenReturn(fileList);
+
+        ProtocolImpl protocol = new ProtocolImpl(30, Collections.singletonList(module));
+        Map<String, List<String>> properties = new HashMap<>();
+        properties.put("server", Collections.<String>emptyList());
+        properties.put("sender", Collections.<String>emptyList());
+        protocol.selectModule("module");
+        protocol.setProperties(properties);
+
+        RecordingSender sender = new RecordingSender();
+        try {
+            protocol.sendFileList(Arrays.asList("module/file"), sender);
+            fail("The storage of a released list was sent");
+        } catch (IllegalStateException expected) {
+            assertThat("Nothing of the list is sent", sender.take().length, is(equalTo(0)));
+        }
+        protocol.close();
+    }
 }
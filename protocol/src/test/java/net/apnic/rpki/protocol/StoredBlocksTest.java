@@ -0,0 +1,54 @@
+package net.apnic.rpki.protocol;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class StoredBlocksTest {
+    private static byte[] chunked(int size) {
+        byte[] raw = new byte[size];
+        new Random(size).nextBytes(raw);
+        return ContentBuilder.chunkContents(ByteBuffer.wrap(raw), new byte[16], false);
+    }
+
+    @Test
+    public void framesValidTokenStreams() throws Exception {
+        // Sizes around the token and raw chunk boundaries
+        for (int size : new int[] { 0, 1, 16377, 16378, 16379, 32768, 32769, 70000 }) {
+            byte[] contents = chunked(size);
+            CompressionVerifier.verify("size-" + size, contents, StoredBlocks.frame(ByteBuffer.wrap(contents)));
+        }
+    }
+
+    @Test
+    public void matchesZlibForEmptyContent() throws Exception {
+        byte[] contents = chunked(0);
+        assertThat("An empty file frames as zlib would compress it", StoredBlocks.frame(ByteBuffer.wrap(contents)),
+                is(equalTo(ContentBuilder.chunkContents(ByteBuffer.wrap(new byte[] { 0 }), new byte[16], true))));
+    }
+
+    @Test
+    public void sendsRawContentWithoutCopying() throws Exception {
+        final byte[] contents = chunked(40000);
+        final int[] shared = new int[1];
+        StoredBlocks.send(ByteBuffer.wrap(contents), new MessageSender() {
+            @Override public void sendBytes(byte[] bytes) { }
+            @Override public void sendByte(int datum) { }
+            @Override public void sendInformation(String message) { }
+            @Override public void sendBytes(byte[] bytes, int from, int length) { }
+            @Override
+            public void sendBytes(ByteBuffer buffer) {
+                if (buffer.array() == contents) shared[0] += buffer.remaining();
+            }
+            @Override
+            public void sendBytes(ByteBuffer buffer, FileList owner) {
+                throw new UnsupportedOperationException();
+            }
+        });
+        assertThat("The content and checksum are sent from the raw array", shared[0], is(equalTo(40000 + 16)));
+    }
+}
@@ -3,6 +3,7 @@ package net.apnic.rpki.server;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.socket.SocketChannel;
+import io.netty.util.concurrent.EventExecutorGroup;
 import net.apnic.rpki.protocol.Module;
 import net.apnic.rpki.protocol.ProtocolFactory;
 import org.slf4j.MDC;
@@ -10,20 +11,26 @@ import org.slf4j.MDC;
 /**
  * Initialize an rsync channel on connect.
  *
+ * The rsync protocol handler runs on a separate executor group from the channel's event loop, so that building file
+ * lists and compressing content for one client does not delay I/O for the others.
+ *
  * @author bje
  * @since 0.9
  */
 class RsyncChannelInitializer extends ChannelInitializer<SocketChannel> {
     private final ProtocolFactory protocolFactory;
+    private final EventExecutorGroup protocolGroup;
 
     /**
      * Constructs a new channel initializer with the given modules.
      *
+     * @param protocolGroup the executors to run protocol handlers on
      * @param modules the modules to serve
-     * @since 0.9
+     * @since 1.1
      */
-    public RsyncChannelInitializer(Module... modules) {
-        protocolFactory = new ProtocolFactory(modules);
+    public RsyncChannelInitializer(EventExecutorGroup protocolGroup, Module... modules) {
+        this.protocolFactory = new ProtocolFactory(modules);
+        this.protocolGroup = protocolGroup;
     }
 
     @Override
@@ -32,6 +39,6 @@ class RsyncChannelInitializer extends ChannelInitializer<SocketChannel> {
         ChannelPipeline pipeline = ch.pipeline();
 
         pipeline.addLast("codec", new RsyncCodec());
-        pipeline.addLast("handler", new RsyncHandler(protocolFactory));
+        pipeline.addLast(protocolGroup, "handler", new RsyncHandler(protocolFactory));
     }
 }
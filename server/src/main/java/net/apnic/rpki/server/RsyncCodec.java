@@ -228,7 +228,7 @@ class RsyncCodec extends ByteToMessageCodec<WireMessage> {
                 }
 
                 String filter = in.readBytes(filterExpressionSize).toString(CharsetUtil.UTF_8);
-                LOGGER.debug("I'm probably going to ingore this filter: {}", filter);
+                LOGGER.debug("Filter rule received: {}", filter);
                 filters.add(filter);
 
                 break;
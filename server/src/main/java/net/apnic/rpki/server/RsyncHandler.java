@@ -1,10 +1,13 @@
 package net.apnic.rpki.server;
 
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledDirectByteBuf;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.DecoderException;
 import net.apnic.rpki.protocol.*;
 import net.apnic.rpki.server.messages.*;
 import org.apache.commons.cli.CommandLine;
@@ -14,6 +17,7 @@ import org.apache.commons.cli.PosixParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -91,8 +95,40 @@ class RsyncHandler extends SimpleChannelInboundHandler<WireMessage> {
         public void sendBytes(final byte[] bytes, final int from, final int length) {
             buffer.addComponent(Unpooled.wrappedBuffer(bytes, from, length));
             buffer.writerIndex(buffer.writerIndex() + length);
+            flushIfFull();
+        }
+
+        @Override
+        public void sendBytes(ByteBuffer data) {
+            // Wrapping a slice of a direct buffer sends it straight from its storage, without a copy
+            int length = data.remaining();
+            buffer.addComponent(Unpooled.wrappedBuffer(data.slice()));
+            buffer.writerIndex(buffer.writerIndex() + length);
+            flushIfFull();
+        }
+
+        @Override
+        public void sendBytes(ByteBuffer data, FileList owner) {
+            if (!data.isDirect()) {
+                // Heap views are of arrays a module never re-uses, so need no hold
+                sendBytes(data);
+                owner.release();
+                return;
+            }
+
+            // The view holds the list until Netty has written the bytes and released the view, so that the storage
+            // they are in is not re-used while they wait to be written
+            int length = data.remaining();
+            buffer.addComponent(new HeldBuffer(ctx.alloc(), data.slice(), owner));
+            buffer.writerIndex(buffer.writerIndex() + length);
+            flushIfFull();
+        }
+
+        // A composite buffer with more components than its capacity copies them all into one, so flush first
+        private void flushIfFull() {
             if (buffer.numComponents() >= capacity) {
                 LOGGER.debug("Flushing due to buffer capacity");
+                flush();
             }
         }
 
@@ -123,6 +159,22 @@ class RsyncHandler extends SimpleChannelInboundHandler<WireMessage> {
         }
     }
 
+    // A view of a module's storage holding the file list it belongs to, released with the view
+    static final class HeldBuffer extends UnpooledDirectByteBuf {
+        private final FileList owner;
+
+        HeldBuffer(ByteBufAllocator alloc, ByteBuffer data, FileList owner) {
+            super(alloc, data, data.remaining());
+            this.owner = owner;
+        }
+
+        @Override
+        protected void deallocate() {
+            super.deallocate();
+            owner.release();
+        }
+    }
+
     private BufferedMessageSender sender;
 
     @Override
@@ -192,12 +244,10 @@ class RsyncHandler extends SimpleChannelInboundHandler<WireMessage> {
             ctx.writeAndFlush(new SetupMessage(protocol.getCompatibilityFlags(), protocol.getChecksumSeed()));
             protocolInitialising = false;
         } else if (msg instanceof FiltersMessage) {
-            if (((FiltersMessage) msg).getFilters().size() > 0)
-                throw new WireException("Filters not permitted on this server");
-
             // Need all but one arg
             List<String> args = Arrays.asList(commandLine.getArgs());
             try {
+                protocol.setFilters(((FiltersMessage) msg).getFilters());
                 protocol.sendFileList(args.subList(1, args.size()), sender);
             } catch (ProtocolError error) {
                 throw new WireException(error);
@@ -234,6 +284,7 @@ class RsyncHandler extends SimpleChannelInboundHandler<WireMessage> {
     @Override
     public void channelInactive(ChannelHandlerContext ctx) {
         LOGGER.info("Client connection ended.");
+        if (protocol != null) protocol.close();
     }
 
     @Override
@@ -246,15 +297,18 @@ class RsyncHandler extends SimpleChannelInboundHandler<WireMessage> {
 
         LOGGER.error("Exception caught in RsyncHandler: {}", cause.getMessage());
         LOGGER.debug("Exception caught in RsyncHandler: ", cause);
+        // A malformed request found while decoding it is reported to the client as any other protocol error
+        ProtocolError protocolError = null;
         if (cause instanceof WireException) {
-            WireException ex = (WireException)cause;
-            final ErrorMessage error;
-            if (ex.getCause() instanceof ProtocolError) {
-               error = new ErrorMessage((ProtocolError)ex.getCause());
-            } else {
-                error = new ErrorMessage(new ProtocolError(ProtocolError.ErrorType.FERROR, cause.getMessage()));
-            }
-            ctx.write(error);
+            protocolError = cause.getCause() instanceof ProtocolError
+                    ? (ProtocolError)cause.getCause()
+                    : new ProtocolError(ProtocolError.ErrorType.FERROR, cause.getMessage());
+        } else if (cause instanceof DecoderException && cause.getCause() instanceof ProtocolError) {
+            protocolError = (ProtocolError)cause.getCause();
+        }
+
+        if (protocolError != null) {
+            ctx.write(new ErrorMessage(protocolError));
             ctx.writeAndFlush(new ProtocolMessage(Unpooled.wrappedBuffer(bytes, 0, 1)))
                     .addListener(ChannelFutureListener.CLOSE);
         } else {
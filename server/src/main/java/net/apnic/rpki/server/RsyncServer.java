@@ -5,6 +5,8 @@ import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutorGroup;
 import net.apnic.rpki.data.FileSystemRepository;
 import net.apnic.rpki.protocol.MemoryCachedModule;
 import net.apnic.rpki.protocol.Module;
@@ -15,7 +17,8 @@ import java.nio.file.Paths;
 /**
  * An rsync server.
  *
- * Listens for connections on the given port to serve the given modules.
+ * Listens for connections on the given port to serve the given modules.  Socket I/O runs on Netty event loops, while
+ * the rsync protocol for each connection runs on a separate group of protocol threads.
  *
  * @author bje
  * @since 0.9
@@ -23,18 +26,33 @@ import java.nio.file.Paths;
 public class RsyncServer {
     private final int port;
 
+    private final EventExecutorGroup protocolGroup;
     private final RsyncChannelInitializer rsyncChannelInitializer;
 
     /**
-     * Constructs a new RsyncServer with the given configuration.
+     * Constructs a new RsyncServer with the given configuration, running the protocol on twice as many threads as
+     * there are available processors.
      *
      * @param port the port to listen on
      * @param modules the modules to serve
      * @since 0.9
      */
     public RsyncServer(int port, Module... modules) {
+        this(port, Runtime.getRuntime().availableProcessors() * 2, modules);
+    }
+
+    /**
+     * Constructs a new RsyncServer with the given configuration.
+     *
+     * @param port the port to listen on
+     * @param protocolThreads the number of threads to run the rsync protocol on
+     * @param modules the modules to serve
+     * @since 1.1
+     */
+    public RsyncServer(int port, int protocolThreads, Module... modules) {
         this.port = port;
-        this.rsyncChannelInitializer = new RsyncChannelInitializer(modules);
+        this.protocolGroup = new DefaultEventExecutorGroup(protocolThreads);
+        this.rsyncChannelInitializer = new RsyncChannelInitializer(protocolGroup, modules);
     }
 
     /**
@@ -60,6 +78,7 @@ public class RsyncServer {
 
             bootstrap.bind(port).sync().channel().closeFuture().sync();
         } finally {
+            protocolGroup.shutdownGracefully();
             serviceGroup.shutdownGracefully();
             listenGroup.shutdownGracefully();
         }
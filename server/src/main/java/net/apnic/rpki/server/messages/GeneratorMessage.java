@@ -3,6 +3,7 @@ package net.apnic.rpki.server.messages;
 import io.netty.buffer.ByteBuf;
 import net.apnic.rpki.protocol.Checksums;
 import net.apnic.rpki.protocol.ItemFlag;
+import net.apnic.rpki.protocol.ProtocolError;
 import net.apnic.rpki.protocol.TransferAttributes;
 
 import java.nio.ByteOrder;
@@ -19,6 +20,10 @@ import java.util.EnumSet;
  * @since 0.9
  */
 public class GeneratorMessage extends WireMessage {
+    // As rsync's MAX_BLOCK_SIZE and the length of an MD5 digest: the largest blocks and strong sums a client may send
+    private static final int MAX_BLOCK_SIZE = 131072;
+    private static final int MAX_CHECKSUM_LENGTH = 16;
+
     private final int fileIndex;
     private EnumSet<ItemFlag> iflags;
     private byte basisType;
@@ -27,6 +32,8 @@ public class GeneratorMessage extends WireMessage {
     private int checksumBlockSize;
     private int checksumLength;
     private int checksumRemainder;
+    private int[] weakSums = new int[0];
+    private byte[] strongSums = new byte[0];
 
     private enum Phase {
         IFLAGS,
@@ -54,9 +61,10 @@ public class GeneratorMessage extends WireMessage {
      *
      * @param in the received bytes to process for message construction
      * @return true when the GeneratorMessage is fully constructed
+     * @throws ProtocolError if the client's checksum header is not one rsync would send
      * @since 0.9
      */
-    public boolean constructWithBytes(ByteBuf in) {
+    public boolean constructWithBytes(ByteBuf in) throws ProtocolError {
         // it would be so nice if this could be made the default
         in = in.order(ByteOrder.LITTLE_ENDIAN);
 
@@ -104,15 +112,21 @@ public class GeneratorMessage extends WireMessage {
                     checksumBlockSize = in.readInt();       // should be max. 131,072
                     checksumLength = in.readInt();    // should be max. 16, MD5 digest length
                     checksumRemainder = in.readInt();   // bytes left after checksummed blocks
+                    checkChecksumHeader();
                 }
 
                 phase = Phase.CHECKSUMS;
                 // Fall through to CHECKSUMS now
             case CHECKSUMS:
-                // for the purposes of this client, checksum blocks are ignored
-                int checksumBlockBytes = checksumBlockCount * (4 + checksumLength);
+                // each block's rolling checksum and leading bytes of MD5, kept for sending a delta
+                long checksumBlockBytes = (long)checksumBlockCount * (4 + checksumLength);
                 if (in.readableBytes() < checksumBlockBytes) return false;
-                in.skipBytes(checksumBlockBytes);
+                weakSums = new int[checksumBlockCount];
+                strongSums = new byte[checksumBlockCount * checksumLength];
+                for (int block = 0; block < checksumBlockCount; block++) {
+                    weakSums[block] = in.readInt();
+                    in.readBytes(strongSums, block * checksumLength, checksumLength);
+                }
 
                 // Well, that's all.
                 phase = Phase.DONE;
@@ -122,6 +136,21 @@ public class GeneratorMessage extends WireMessage {
         return false;
     }
 
+    // As rsync's read_sum_head: the header is checked before anything is allocated for the sums it describes.  A
+    // client with no basis file sends a header of zeroes, so a block size of zero is allowed only with no blocks.
+    private void checkChecksumHeader() throws ProtocolError {
+        boolean valid = checksumBlockCount >= 0
+                && checksumLength >= 0 && checksumLength <= MAX_CHECKSUM_LENGTH
+                && checksumBlockSize >= (checksumBlockCount == 0 ? 0 : 1) && checksumBlockSize <= MAX_BLOCK_SIZE
+                && checksumRemainder >= 0 && (checksumRemainder < checksumBlockSize || checksumRemainder == 0)
+                && (long)checksumBlockCount * (4 + checksumLength) <= Integer.MAX_VALUE;
+        if (!valid) {
+            throw new ProtocolError(ProtocolError.ErrorType.FERROR, String.format(
+                    "Invalid checksum header: count=%d, block size=%d, length=%d, remainder=%d",
+                    checksumBlockCount, checksumBlockSize, checksumLength, checksumRemainder));
+        }
+    }
+
     /**
      * Returns the attributes of the request.
      *
@@ -148,7 +177,9 @@ public class GeneratorMessage extends WireMessage {
                 checksumBlockCount,
                 checksumBlockSize,
                 checksumLength,
-                checksumRemainder
+                checksumRemainder,
+                weakSums,
+                strongSums
         );
     }
 }
@@ -1,20 +1,29 @@
 package net.apnic.rpki.server;
 
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
 import io.netty.channel.embedded.EmbeddedChannel;
 import net.apnic.rpki.protocol.FileList;
+import net.apnic.rpki.protocol.FilterRules;
+import net.apnic.rpki.protocol.IncrementalFileList;
 import net.apnic.rpki.protocol.Module;
+import net.apnic.rpki.protocol.ModuleConfiguration;
 import net.apnic.rpki.protocol.NoSuchPathException;
 import net.apnic.rpki.protocol.ProtocolFactory;
 import net.apnic.rpki.server.messages.*;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
 import java.util.Queue;
 
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 
 public class RsyncHandlerTest {
     private EmbeddedChannel channel;
@@ -34,6 +43,28 @@ public class RsyncHandlerTest {
         public FileList getFileList(String rootPath, boolean recursive) throws NoSuchPathException {
             return null;
         }
+
+        @Override
+        public FileList getFileList(String rootPath, boolean recursive, boolean checksums, FilterRules rules)
+                throws NoSuchPathException {
+            return null;
+        }
+
+        @Override
+        public IncrementalFileList getIncrementalFileList(String rootPath, boolean checksums, FilterRules rules)
+                throws NoSuchPathException {
+            return null;
+        }
+
+        @Override
+        public int getMinimumDeltaSize() {
+            return 0;
+        }
+
+        @Override
+        public ModuleConfiguration.CompressionEngine getCompressionEngine() {
+            return ModuleConfiguration.CompressionEngine.JZLIB;
+        }
     };
 
     @Before
@@ -93,4 +124,20 @@ public class RsyncHandlerTest {
         // send an empty filter list
         channel.writeInbound(new ProtocolMessage(Unpooled.wrappedBuffer(new byte[] { 0x00, 0x00, 0x00, 0x00})));
     }
+
+    @Test
+    public void holdsAListUntilItsBytesAreWritten() {
+        FileList list = mock(FileList.class);
+        ByteBuffer storage = ByteBuffer.allocateDirect(4).put(new byte[] { 1, 2, 3, 4 });
+        storage.flip();
+
+        CompositeByteBuf written = Unpooled.compositeBuffer();
+        written.addComponent(new RsyncHandler.HeldBuffer(UnpooledByteBufAllocator.DEFAULT, storage, list));
+        written.writerIndex(4);
+        assertThat("The bytes are sent from the list's storage", written.getByte(2), is(equalTo((byte)3)));
+        verify(list, never()).release();
+
+        written.release();
+        verify(list).release();
+    }
 }
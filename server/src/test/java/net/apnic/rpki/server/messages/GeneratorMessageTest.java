@@ -0,0 +1,68 @@
+package net.apnic.rpki.server.messages;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import net.apnic.rpki.protocol.ItemFlag;
+import net.apnic.rpki.protocol.ProtocolError;
+import org.junit.Test;
+
+import java.nio.ByteOrder;
+import java.util.EnumSet;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * @author bje
+ */
+// CHECKSTYLE:OFF MagicNumber
+public class GeneratorMessageTest {
+    private static ByteBuf request(int count, int blockSize, int length, int remainder) {
+        ByteBuf buffer = Unpooled.buffer().order(ByteOrder.LITTLE_ENDIAN);
+        buffer.writeShort(ItemFlag.intFromSet(EnumSet.of(ItemFlag.ITEM_TRANSFER)));
+        buffer.writeInt(count);
+        buffer.writeInt(blockSize);
+        buffer.writeInt(length);
+        buffer.writeInt(remainder);
+        return buffer;
+    }
+
+    private static boolean rejects(int count, int blockSize, int length, int remainder) {
+        try {
+            new GeneratorMessage(1).constructWithBytes(request(count, blockSize, length, remainder));
+            return false;
+        } catch (ProtocolError error) {
+            return true;
+        }
+    }
+
+    @Test
+    public void readsTheClientsChecksums() throws Exception {
+        ByteBuf buffer = request(2, 700, 2, 100);
+        buffer.writeInt(0x01020304).writeByte(1).writeByte(2);
+        buffer.writeInt(0x05060708).writeByte(3).writeByte(4);
+
+        GeneratorMessage message = new GeneratorMessage(1);
+        assertThat(message.constructWithBytes(buffer), is(true));
+        assertThat(message.getChecksums().getBlockCount(), is(equalTo(2)));
+        assertThat(message.getChecksums().getWeakSum(1), is(equalTo(0x05060708)));
+    }
+
+    @Test
+    public void acceptsTheHeaderOfAClientWithNoBasis() throws Exception {
+        assertThat(new GeneratorMessage(1).constructWithBytes(request(0, 0, 0, 0)), is(true));
+    }
+
+    @Test
+    public void rejectsChecksumHeadersRsyncWouldNotSend() throws Exception {
+        assertThat("Negative block count", rejects(-1, 700, 16, 0), is(true));
+        assertThat("Negative sum length", rejects(1, 700, -1, 0), is(true));
+        assertThat("Sums longer than MD5", rejects(1, 700, 17, 0), is(true));
+        assertThat("Blocks of no size", rejects(1, 0, 16, 0), is(true));
+        assertThat("Blocks larger than rsync's largest", rejects(1, 131073, 16, 0), is(true));
+        assertThat("A remainder as large as a block", rejects(1, 700, 16, 700), is(true));
+        assertThat("A negative remainder", rejects(1, 700, 16, -1), is(true));
+        assertThat("A count whose sums' size overflows an int", rejects(0x40000000, 700, 0, 0), is(true));
+        assertThat("A count too large to hold", rejects(0x10000000, 700, 16, 0), is(true));
+    }
+}
@@ -1,8 +1,10 @@
 package net.apnic.rpki.standalone;
 
 import net.apnic.rpki.data.FileSystemRepository;
+import net.apnic.rpki.data.RepositoryConfiguration;
 import net.apnic.rpki.protocol.MemoryCachedModule;
 import net.apnic.rpki.protocol.Module;
+import net.apnic.rpki.protocol.ModuleConfiguration;
 import net.apnic.rpki.server.RsyncServer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,7 +15,9 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Run a repository server delivering repositories out of directories that are watched for
@@ -34,6 +38,26 @@ public class DirectoryServer {
         // Basic configuration items
         int port = Integer.parseInt(configuration.getProperty("port"));
 
+        // Repository scanning and rebuild scheduling
+        RepositoryConfiguration repositoryConfiguration = new RepositoryConfiguration()
+                .withQuietPeriod(Long.parseLong(configuration.getProperty("rebuild.quiet", "500")),
+                        TimeUnit.MILLISECONDS)
+                .withMaximumStaleness(Long.parseLong(configuration.getProperty("rebuild.staleness", "10000")),
+                        TimeUnit.MILLISECONDS);
+        if (configuration.getProperty("scan.threads") != null) {
+            repositoryConfiguration.withScanThreads(Integer.parseInt(configuration.getProperty("scan.threads")));
+        }
+        repositoryConfiguration.withContentMode(RepositoryConfiguration.ContentMode.valueOf(
+                configuration.getProperty("content.mode", "heap").toUpperCase(Locale.ROOT)));
+        repositoryConfiguration
+                .withChangeDetection(RepositoryConfiguration.ChangeDetection.valueOf(
+                        configuration.getProperty("change.detection", "watch").toUpperCase(Locale.ROOT)))
+                .withPollInterval(Long.parseLong(configuration.getProperty("poll.interval", "60000")),
+                        TimeUnit.MILLISECONDS);
+
+        // Optional persistent content cache, one directory per module
+        String cache = configuration.getProperty("cache");
+
         List<Module> modules = new ArrayList<>();
 
         // Get the repository filesystem location
@@ -41,8 +65,41 @@ public class DirectoryServer {
         for (Path repository : Files.newDirectoryStream(Paths.get(repositories))) {
             if (!Files.isDirectory(repository)) continue;
 
-            final MemoryCachedModule module = new MemoryCachedModule(repository.getFileName().toString(), "",
-                    new FileSystemRepository(repository));
+            String moduleName = repository.getFileName().toString();
+            ModuleConfiguration moduleConfiguration = new ModuleConfiguration();
+            if (cache != null) moduleConfiguration.withCacheDirectory(Paths.get(cache, moduleName));
+            if (configuration.getProperty("build.threads") != null) {
+                moduleConfiguration.withBuildThreads(Integer.parseInt(configuration.getProperty("build.threads")));
+            }
+            moduleConfiguration.withFileListCacheSize(
+                    Long.parseLong(configuration.getProperty("filelist.cache", "64")) * 1024 * 1024);
+            moduleConfiguration.withCompressionMode(ModuleConfiguration.CompressionMode.valueOf(
+                    configuration.getProperty("compression", "eager").toUpperCase(Locale.ROOT)));
+            moduleConfiguration.withCompressedCacheSize(
+                    Long.parseLong(configuration.getProperty("compression.cache", "64")) * 1024 * 1024);
+            moduleConfiguration.withCompressionEngine(ModuleConfiguration.CompressionEngine.valueOf(
+                    configuration.getProperty("compression.engine", "jzlib").toUpperCase(Locale.ROOT)));
+            moduleConfiguration.withVerifyingCompression(
+                    Boolean.parseBoolean(configuration.getProperty("compression.verify", "false")));
+            moduleConfiguration.withCompressionLevel(
+                    Integer.parseInt(configuration.getProperty("compression.level", "6")));
+            moduleConfiguration.withMinimumCompressionGain(
+                    Integer.parseInt(configuration.getProperty("compression.gain", "5")));
+            moduleConfiguration.withMinimumDeltaSize(
+                    Integer.parseInt(configuration.getProperty("delta.size", "16")) * 1024);
+            moduleConfiguration.withStorageMode(ModuleConfiguration.StorageMode.valueOf(
+                    configuration.getProperty("storage", "heap").toUpperCase(Locale.ROOT)));
+            if (configuration.getProperty("compression.levels") != null) {
+                String[] levels = configuration.getProperty("compression.levels").split(",");
+                int[] allowed = new int[levels.length];
+                for (int i = 0; i < levels.length; i++) {
+                    allowed[i] = Integer.parseInt(levels[i].trim());
+                }
+                moduleConfiguration.withAllowedCompressionLevels(allowed);
+            }
+
+            final MemoryCachedModule module = new MemoryCachedModule(moduleName, "",
+                    new FileSystemRepository(repository, repositoryConfiguration), moduleConfiguration);
             modules.add(module);
             synchronized (module) {
                 module.wait();
@@ -50,7 +107,9 @@ public class DirectoryServer {
             LOGGER.info("Repository {} ready to serve", repository.getFileName().toString());
         }
 
-        RsyncServer server = new RsyncServer(port, modules.toArray(new Module[modules.size()]));
+        int protocolThreads = Integer.parseInt(configuration.getProperty("protocol.threads",
+                Integer.toString(Runtime.getRuntime().availableProcessors() * 2)));
+        RsyncServer server = new RsyncServer(port, protocolThreads, modules.toArray(new Module[modules.size()]));
         LOGGER.info("Server starting on port {}", port);
         server.run();
     }